@@ -0,0 +1,135 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
+import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
+
+/**
+ * Authorization url and current url building,compared with the way before
+ * {@link OAuthUrlTemplate} was introduced.
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuthUrlBenchmark {
+
+    static final String REDIRECT_URL = "http://localhost:8080/callback";
+    static final String STATE = "k3v0p9ffq1h4tq6uq2tbm4j2qo";
+
+    private GoogleAuthorizationCodeFlow mFlow;
+    private HttpServletRequest mRequest;
+
+    @Setup
+    public void setup() throws Exception {
+
+        final GoogleClientSecrets.Details web = new GoogleClientSecrets.Details()
+                .setClientId("0000000000-benchmark.apps.googleusercontent.com")
+                .setClientSecret("benchmark-secret");
+
+        OAuthSecrets.setClientSecrets(new GoogleClientSecrets().setWeb(web));
+        OAuthUtil.setScopes(Arrays.asList("openid", "email", "https://www.googleapis.com/auth/userinfo.profile"));
+
+        mFlow = OAuthUtil.getFlow();
+
+        final Map<String, Object> values = new HashMap<String, Object>();
+        values.put("getScheme", "http");
+        values.put("getServerName", "localhost");
+        values.put("getServerPort", Integer.valueOf(8080));
+        values.put("getRequestURI", "/app/main");
+        values.put("getQueryString", "page=1&sort=desc");
+
+        mRequest = MockServlets.request(values, MockServlets.session());
+    }
+
+    @Benchmark
+    public String authUrlBuilder() {
+        return mFlow.newAuthorizationUrl()
+                .setAccessType("offline")
+                .setRedirectUri(REDIRECT_URL)
+                .setState(STATE)
+                .toString();
+    }
+
+    @Benchmark
+    public String authUrlTemplate() throws Exception {
+        return OAuthUrlTemplate.get(OAuthUtil.getFlow(), REDIRECT_URL).build(STATE, false);
+    }
+
+    @Benchmark
+    public String currentUrlBuilder() {
+
+        final HttpServletRequest req = mRequest;
+
+        final String scheme = req.getScheme();
+        final int currentPort = req.getServerPort();
+
+        final StringBuilder sb = new StringBuilder();
+
+        sb.append(scheme);
+        sb.append("://");
+        sb.append(req.getServerName());
+
+        if (currentPort != 80 && currentPort != 443) {
+            sb.append(":");
+            sb.append(currentPort);
+        }
+
+        sb.append(req.getRequestURI());
+
+        if (req.getQueryString() != null && !req.getQueryString().isEmpty()) {
+            sb.append("?");
+            sb.append(req.getQueryString());
+        }
+
+        return sb.toString();
+    }
+
+    @Benchmark
+    public String currentUrlTemplate() {
+        return OAuthHandler.getCurrentUrl(mRequest, false);
+    }
+}
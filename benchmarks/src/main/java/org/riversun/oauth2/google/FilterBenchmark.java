@@ -0,0 +1,151 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.FilterChain;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
+
+/**
+ * {@link OAuthFilter#doFilter} of requests which have already passed OAuth2
+ * flow,and of requests to excluded paths.<br>
+ * This is the path every request of a protected application goes through.
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterBenchmark {
+
+    private OAuthFilter mFilter;
+    private FilterChain mChain;
+    private HttpServletResponse mResponse;
+
+    private HttpServletRequest mAuthenticatedRequest;
+    private HttpServletRequest mExcludedRequest;
+
+    @Setup
+    public void setup() throws Exception {
+
+        final GoogleClientSecrets.Details web = new GoogleClientSecrets.Details()
+                .setClientId("0000000000-benchmark.apps.googleusercontent.com")
+                .setClientSecret("benchmark-secret");
+
+        OAuthSecrets.setClientSecrets(new GoogleClientSecrets().setWeb(web));
+
+        mFilter = new BenchmarkFilter();
+        mFilter.init(MockServlets.filterConfig());
+
+        mChain = MockServlets.filterChain();
+        mResponse = MockServlets.response(new String[1]);
+
+        final HttpSession session = MockServlets.session();
+        session.setAttribute(OAuthConst.SESSION_KEY_AUTH_STATE,
+                new OAuthAuthState("100000000000000000001", "ya29.benchmark-access-token", "1/benchmark-refresh-token",
+                        System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1), true));
+
+        mAuthenticatedRequest = MockServlets.request(requestValues("/app/main"), session);
+        mExcludedRequest = MockServlets.request(requestValues("/static/css/main.css"), MockServlets.session());
+    }
+
+    private static Map<String, Object> requestValues(String uri) {
+
+        final Map<String, Object> values = new HashMap<String, Object>();
+        values.put("getScheme", "http");
+        values.put("getServerName", "localhost");
+        values.put("getServerPort", 8080);
+        values.put("getContextPath", "");
+        values.put("getRequestURI", uri);
+        values.put("getMethod", "GET");
+        return values;
+    }
+
+    @TearDown
+    public void tearDown() {
+        mFilter.destroy();
+    }
+
+    @Benchmark
+    public HttpServletRequest authenticated() throws Exception {
+        mFilter.doFilter(mAuthenticatedRequest, mResponse, mChain);
+        return mAuthenticatedRequest;
+    }
+
+    @Benchmark
+    public HttpServletRequest excludedPath() throws Exception {
+        mFilter.doFilter(mExcludedRequest, mResponse, mChain);
+        return mExcludedRequest;
+    }
+
+    /**
+     * Filter configured like a typical application
+     */
+    static final class BenchmarkFilter extends OAuthFilter {
+
+        @Override
+        protected String getAuthRedirectUrl() {
+            return "/callback";
+        }
+
+        @Override
+        protected List<String> getScopes() {
+            return Arrays.asList("email", "https://www.googleapis.com/auth/userinfo.profile");
+        }
+
+        @Override
+        protected boolean isAuthenticateEverytime() {
+            return false;
+        }
+
+        @Override
+        protected List<String> getExcludePaths() {
+            return Collections.singletonList("/static/*");
+        }
+    }
+}
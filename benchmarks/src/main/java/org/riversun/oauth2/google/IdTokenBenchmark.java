@@ -0,0 +1,163 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
+import com.google.api.client.googleapis.auth.oauth2.GoogleIdToken;
+import com.google.api.client.json.webtoken.JsonWebSignature;
+
+/**
+ * Parse and RS256 verification of idToken against keys served from a local
+ * file(no network access),and verification through {@link IdTokenCache}.
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IdTokenBenchmark {
+
+    static final String CLIENT_ID = "0000000000-benchmark.apps.googleusercontent.com";
+    static final String KEY_ID = "benchmark-key";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private File mCertsFile;
+    private String mIdToken;
+    private IdTokenCache mIdTokenCache;
+
+    @Setup
+    public void setup() throws Exception {
+
+        final GoogleClientSecrets.Details web = new GoogleClientSecrets.Details()
+                .setClientId(CLIENT_ID)
+                .setClientSecret("benchmark-secret");
+
+        OAuthSecrets.setClientSecrets(new GoogleClientSecrets().setWeb(web));
+
+        final KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(2048);
+        final KeyPair keyPair = keyPairGenerator.generateKeyPair();
+
+        // serve the public key as JWK set from a local file
+        final RSAPublicKey publicKey = (RSAPublicKey) keyPair.getPublic();
+
+        final String jwks = "{\"keys\":[{\"kty\":\"RSA\",\"alg\":\"RS256\",\"use\":\"sig\",\"kid\":\"" + KEY_ID + "\","
+                + "\"n\":\"" + base64Url(publicKey.getModulus()) + "\","
+                + "\"e\":\"" + base64Url(publicKey.getPublicExponent()) + "\"}]}";
+
+        mCertsFile = File.createTempFile("benchmark-certs", ".json");
+
+        final OutputStream os = new FileOutputStream(mCertsFile);
+        try {
+            os.write(jwks.getBytes(UTF_8));
+        } finally {
+            os.close();
+        }
+
+        OAuthKeyStore.getInstance().setCertsUrl(mCertsFile.toURI().toString());
+
+        final long nowSeconds = System.currentTimeMillis() / 1000;
+
+        final JsonWebSignature.Header header = new JsonWebSignature.Header()
+                .setAlgorithm("RS256")
+                .setKeyId(KEY_ID);
+
+        final GoogleIdToken.Payload payload = new GoogleIdToken.Payload()
+                .setIssuer("https://accounts.google.com")
+                .setAudience(CLIENT_ID)
+                .setSubject("100000000000000000001")
+                .setIssuedAtTimeSeconds(nowSeconds)
+                .setExpirationTimeSeconds(nowSeconds + TimeUnit.HOURS.toSeconds(1));
+        payload.setEmail("benchmark@example.com");
+
+        mIdToken = JsonWebSignature.signUsingRsaSha256(keyPair.getPrivate(), OAuthUtil.JSON_FACTORY, header, payload);
+
+        if (!OAuthHandler.verifyIdToken(GoogleIdToken.parse(OAuthUtil.JSON_FACTORY, mIdToken))) {
+            throw new IllegalStateException("idToken is not verified");
+        }
+
+        mIdTokenCache = new IdTokenCache(1000).setAudiences(Collections.singletonList(CLIENT_ID));
+        mIdTokenCache.verify(mIdToken);
+    }
+
+    private static String base64Url(BigInteger value) {
+
+        byte[] bytes = value.toByteArray();
+
+        // strip sign byte
+        if (bytes.length > 1 && bytes[0] == 0) {
+            final byte[] unsigned = new byte[bytes.length - 1];
+            System.arraycopy(bytes, 1, unsigned, 0, unsigned.length);
+            bytes = unsigned;
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mCertsFile.delete();
+    }
+
+    @Benchmark
+    public boolean parseAndVerify() throws Exception {
+        return OAuthHandler.verifyIdToken(GoogleIdToken.parse(OAuthUtil.JSON_FACTORY, mIdToken));
+    }
+
+    @Benchmark
+    public GoogleIdToken parseOnly() throws Exception {
+        return GoogleIdToken.parse(OAuthUtil.JSON_FACTORY, mIdToken);
+    }
+
+    @Benchmark
+    public GoogleIdToken cachedVerify() throws Exception {
+        return mIdTokenCache.verify(mIdToken);
+    }
+}
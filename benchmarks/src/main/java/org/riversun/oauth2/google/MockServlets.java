@@ -0,0 +1,197 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Minimal servlet objects for benchmarks<br>
+ * Only the methods used by the library are implemented,others return
+ * null/0/false.
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+final class MockServlets {
+
+    private MockServlets() {
+    }
+
+    /**
+     * Create request
+     * 
+     * @param values
+     *            return values by method name like "getServerName"
+     * @param session
+     * @return
+     */
+    static HttpServletRequest request(final Map<String, Object> values, final HttpSession session) {
+
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+
+        return proxy(HttpServletRequest.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+                final String name = method.getName();
+
+                if ("getSession".equals(name)) {
+                    return session;
+                } else if ("getAttribute".equals(name)) {
+                    return attributes.get(args[0]);
+                } else if ("setAttribute".equals(name)) {
+                    attributes.put((String) args[0], args[1]);
+                    return null;
+                } else if ("getHeader".equals(name) || "getParameter".equals(name)) {
+                    return values.get(name + ":" + args[0]);
+                }
+                return valueOrDefault(method, values.get(name));
+            }
+        });
+    }
+
+    /**
+     * Create session backed by HashMap
+     * 
+     * @return
+     */
+    static HttpSession session() {
+
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+
+        return proxy(HttpSession.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+                final String name = method.getName();
+
+                if ("getAttribute".equals(name)) {
+                    return attributes.get(args[0]);
+                } else if ("setAttribute".equals(name)) {
+                    if (args[1] == null) {
+                        attributes.remove(args[0]);
+                    } else {
+                        attributes.put((String) args[0], args[1]);
+                    }
+                    return null;
+                } else if ("removeAttribute".equals(name)) {
+                    attributes.remove(args[0]);
+                    return null;
+                } else if ("getId".equals(name)) {
+                    return "mock-session";
+                }
+                return valueOrDefault(method, null);
+            }
+        });
+    }
+
+    /**
+     * Create response that remembers the last redirect url in "location"
+     * 
+     * @param location
+     * @return
+     */
+    static HttpServletResponse response(final String[] location) {
+
+        return proxy(HttpServletResponse.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+                if ("sendRedirect".equals(method.getName())) {
+                    location[0] = (String) args[0];
+                    return null;
+                }
+                return valueOrDefault(method, null);
+            }
+        });
+    }
+
+    /**
+     * Create filter config without init parameters
+     * 
+     * @return
+     */
+    static FilterConfig filterConfig() {
+
+        return proxy(FilterConfig.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+                if ("getFilterName".equals(method.getName())) {
+                    return "benchmark";
+                }
+                return valueOrDefault(method, null);
+            }
+        });
+    }
+
+    /**
+     * Create filter chain which does nothing
+     * 
+     * @return
+     */
+    static FilterChain filterChain() {
+
+        return new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> clazz, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(MockServlets.class.getClassLoader(), new Class<?>[] { clazz }, handler);
+    }
+
+    private static Object valueOrDefault(Method method, Object value) {
+
+        if (value != null) {
+            return value;
+        }
+
+        final Class<?> returnType = method.getReturnType();
+
+        if (returnType == boolean.class) {
+            return Boolean.FALSE;
+        } else if (returnType == int.class) {
+            return Integer.valueOf(0);
+        } else if (returnType == long.class) {
+            return Long.valueOf(0);
+        }
+        return null;
+    }
+}
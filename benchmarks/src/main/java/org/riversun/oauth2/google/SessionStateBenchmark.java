@@ -0,0 +1,130 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serialization cost of the session state written by a login,compared with
+ * the way before {@link OAuthAuthState} was introduced(one attribute per
+ * value).<br>
+ * <br>
+ * Session managers like Tomcat DeltaManager replicate each modified attribute
+ * as name and serialized value,so both are counted.<br>
+ * Sizes are printed by running this class as a main class.
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionStateBenchmark {
+
+    private static final String USER_ID = "112233445566778899001";
+    private static final String ACCESS_TOKEN = "ya29.GlsABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123";
+    private static final String REFRESH_TOKEN = "1/ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstu";
+
+    private Map<String, Serializable> mLegacyAttributes;
+
+    private OAuthAuthState mState;
+
+    @Setup
+    public void setup() {
+
+        final long expiresAt = System.currentTimeMillis() + 3600 * 1000;
+
+        // attributes written by a login before OAuthAuthState
+        mLegacyAttributes = new LinkedHashMap<String, Serializable>();
+        mLegacyAttributes.put("org.riversun.goauth.session_key_payload_sub", USER_ID);
+        mLegacyAttributes.put("org.riversun.goauth.session_key_access_token", ACCESS_TOKEN);
+        mLegacyAttributes.put("org.riversun.goauth.session_key_access_token_expires_at", expiresAt);
+        mLegacyAttributes.put("org.riversun.goauth.session_key_refresh_token", REFRESH_TOKEN);
+        mLegacyAttributes.put("org.riversun.goauth.session_key_oauth2_done", Boolean.TRUE);
+
+        mState = new OAuthAuthState(USER_ID, ACCESS_TOKEN, REFRESH_TOKEN, expiresAt, true);
+    }
+
+    @Benchmark
+    public int legacyAttributes() throws IOException {
+
+        int bytes = 0;
+
+        for (Map.Entry<String, Serializable> entry : mLegacyAttributes.entrySet()) {
+            bytes += replicationBytes(entry.getKey(), entry.getValue());
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    public int authState() throws IOException {
+        return replicationBytes(OAuthConst.SESSION_KEY_AUTH_STATE, mState);
+    }
+
+    /**
+     * Returns bytes of the attribute serialized like a replication message
+     * 
+     * @param name
+     * @param value
+     * @return
+     * @throws IOException
+     */
+    private static int replicationBytes(String name, Serializable value) throws IOException {
+
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream(256);
+        final ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeUTF(name);
+        oos.writeObject(value);
+        oos.close();
+
+        return baos.size();
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        final SessionStateBenchmark benchmark = new SessionStateBenchmark();
+        benchmark.setup();
+
+        System.out.println("legacy attributes : " + benchmark.mLegacyAttributes.size() + " writes, " + benchmark.legacyAttributes() + " bytes");
+        System.out.println("OAuthAuthState    : 1 write, " + benchmark.authState() + " bytes");
+    }
+}
@@ -0,0 +1,567 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleIdToken;
+import com.google.api.client.json.webtoken.JsonWebSignature;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for Google's OAuth2 endpoints for offline load testing<br>
+ * <br>
+ * Serves the paths of {@link OAuthEndpoints#forBaseUrl(String)}.
+ * <ul>
+ * <li>/o/oauth2/auth : consents at once and redirects back with a code</li>
+ * <li>/o/oauth2/token : exchanges codes and refresh tokens,issues RS256
+ * idTokens</li>
+ * <li>/oauth2/v1/certs,/oauth2/v3/certs : JWK set of the signing key</li>
+ * <li>/oauth2/v2/tokeninfo : introspects access tokens</li>
+ * </ul>
+ * Latency and failures(like "invalid_grant") can be injected into the token
+ * endpoint.
+ * 
+ * <pre>
+ * GoogleStubServer stub = new GoogleStubServer(18080).start();
+ * OAuthUtil.setEndpoints(stub.getEndpoints());
+ * </pre>
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public final class GoogleStubServer {
+
+    static final String ISSUER = "https://accounts.google.com";
+    static final String KEY_ID = "stub-key";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final int mPort;
+
+    private final KeyPair mKeyPair;
+    private final String mJwks;
+
+    private final SecureRandom mRandom = new SecureRandom();
+
+    private final ConcurrentHashMap<String, Grant> mCodes = new ConcurrentHashMap<String, Grant>();
+    private final ConcurrentHashMap<String, Grant> mRefreshTokens = new ConcurrentHashMap<String, Grant>();
+    private final ConcurrentHashMap<String, AccessGrant> mAccessTokens = new ConcurrentHashMap<String, AccessGrant>();
+
+    private final AtomicLong mUserSequence = new AtomicLong();
+
+    private volatile long mMinLatencyMillis = 0;
+    private volatile long mMaxLatencyMillis = 0;
+
+    private volatile double mFailureRate = 0;
+    private volatile int mFailureStatus = 400;
+    private volatile String mFailureError = "invalid_grant";
+
+    private volatile long mAccessTokenLifetimeSeconds = TimeUnit.HOURS.toSeconds(1);
+
+    private final LongAdder mAuthorizationCount = new LongAdder();
+    private final LongAdder mTokenCount = new LongAdder();
+    private final LongAdder mFailureCount = new LongAdder();
+
+    private HttpServer mServer;
+    private ExecutorService mExecutor;
+
+    /**
+     * @param port
+     *            0 to use any free port
+     * @throws GeneralSecurityException
+     */
+    public GoogleStubServer(int port) throws GeneralSecurityException {
+
+        mPort = port;
+
+        final KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(2048);
+        mKeyPair = keyPairGenerator.generateKeyPair();
+
+        final RSAPublicKey publicKey = (RSAPublicKey) mKeyPair.getPublic();
+
+        mJwks = "{\"keys\":[{\"kty\":\"RSA\",\"alg\":\"RS256\",\"use\":\"sig\",\"kid\":\"" + KEY_ID + "\","
+                + "\"n\":\"" + base64Url(publicKey.getModulus()) + "\","
+                + "\"e\":\"" + base64Url(publicKey.getPublicExponent()) + "\"}]}";
+    }
+
+    /**
+     * Set latency added to each token and tokeninfo request
+     * 
+     * @param minMillis
+     * @param maxMillis
+     * @return
+     */
+    public GoogleStubServer setLatencyMillis(long minMillis, long maxMillis) {
+        mMinLatencyMillis = minMillis;
+        mMaxLatencyMillis = Math.max(minMillis, maxMillis);
+        return GoogleStubServer.this;
+    }
+
+    /**
+     * Set the rate of token requests which fail with the injected error
+     * 
+     * @param failureRate
+     *            0.0-1.0
+     * @return
+     */
+    public GoogleStubServer setFailureRate(double failureRate) {
+        mFailureRate = failureRate;
+        return GoogleStubServer.this;
+    }
+
+    /**
+     * Set the error returned by injected failures(400 "invalid_grant" by
+     * default)
+     * 
+     * @param status
+     *            like 400 or 503
+     * @param error
+     *            like "invalid_grant"
+     * @return
+     */
+    public GoogleStubServer setFailure(int status, String error) {
+        mFailureStatus = status;
+        mFailureError = error;
+        return GoogleStubServer.this;
+    }
+
+    public GoogleStubServer setAccessTokenLifetimeSeconds(long accessTokenLifetimeSeconds) {
+        mAccessTokenLifetimeSeconds = accessTokenLifetimeSeconds;
+        return GoogleStubServer.this;
+    }
+
+    /**
+     * Revoke the refresh token,so that refreshing by it fails with
+     * "invalid_grant"
+     * 
+     * @param refreshToken
+     */
+    public void revokeRefreshToken(String refreshToken) {
+        mRefreshTokens.remove(refreshToken);
+    }
+
+    public GoogleStubServer start() throws IOException {
+
+        mExecutor = Executors.newCachedThreadPool();
+
+        mServer = HttpServer.create(new InetSocketAddress("localhost", mPort), 1024);
+        mServer.setExecutor(mExecutor);
+
+        mServer.createContext("/o/oauth2/auth", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleAuthorization(exchange);
+            }
+        });
+        mServer.createContext("/o/oauth2/token", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleToken(exchange);
+            }
+        });
+        mServer.createContext("/oauth2/v1/certs", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleCerts(exchange);
+            }
+        });
+        mServer.createContext("/oauth2/v3/certs", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleCerts(exchange);
+            }
+        });
+        mServer.createContext("/oauth2/v2/tokeninfo", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleTokenInfo(exchange);
+            }
+        });
+
+        mServer.start();
+
+        return GoogleStubServer.this;
+    }
+
+    public void stop() {
+
+        if (mServer != null) {
+            mServer.stop(0);
+            mServer = null;
+        }
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+    }
+
+    /**
+     * Returns url like "http://localhost:18080"
+     * 
+     * @return
+     */
+    public String getBaseUrl() {
+        return "http://localhost:" + mServer.getAddress().getPort();
+    }
+
+    /**
+     * Returns endpoints to set by {@link OAuthUtil#setEndpoints}
+     * 
+     * @return
+     */
+    public OAuthEndpoints getEndpoints() {
+        return OAuthEndpoints.forBaseUrl(getBaseUrl());
+    }
+
+    public long getAuthorizationCount() {
+        return mAuthorizationCount.sum();
+    }
+
+    public long getTokenCount() {
+        return mTokenCount.sum();
+    }
+
+    public long getFailureCount() {
+        return mFailureCount.sum();
+    }
+
+    private void handleAuthorization(HttpExchange exchange) throws IOException {
+
+        mAuthorizationCount.increment();
+
+        final Map<String, String> params = parseForm(exchange.getRequestURI().getRawQuery());
+
+        final String clientId = params.get("client_id");
+        final String redirectUri = params.get("redirect_uri");
+
+        if (clientId == null || redirectUri == null || !"code".equals(params.get("response_type"))) {
+            sendError(exchange, 400, "invalid_request", "client_id,redirect_uri and response_type=code are required");
+            return;
+        }
+
+        // the user consents at once
+        final String loginHint = params.get("login_hint");
+        final String userId = loginHint != null ? loginHint : String.valueOf(100000000000000000L + mUserSequence.incrementAndGet());
+
+        final String code = "4/" + randomToken();
+
+        mCodes.put(code, new Grant(userId, clientId, redirectUri, params.get("scope")));
+
+        final StringBuilder location = new StringBuilder(redirectUri);
+        location.append(redirectUri.indexOf('?') < 0 ? '?' : '&');
+        location.append("code=").append(URLEncoder.encode(code, "UTF-8"));
+
+        if (params.get("state") != null) {
+            location.append("&state=").append(URLEncoder.encode(params.get("state"), "UTF-8"));
+        }
+
+        exchange.getResponseHeaders().set("Location", location.toString());
+        exchange.sendResponseHeaders(302, -1);
+        exchange.close();
+    }
+
+    private void handleToken(HttpExchange exchange) throws IOException {
+
+        mTokenCount.increment();
+
+        injectLatency();
+
+        if (mFailureRate > 0 && ThreadLocalRandom.current().nextDouble() < mFailureRate) {
+            mFailureCount.increment();
+            sendError(exchange, mFailureStatus, mFailureError, "Injected failure");
+            return;
+        }
+
+        final Map<String, String> params = parseForm(readBody(exchange));
+
+        final String grantType = params.get("grant_type");
+
+        final Grant grant;
+        final String refreshToken;
+
+        if ("authorization_code".equals(grantType)) {
+
+            // codes can be used only once
+            final String code = params.get("code");
+            grant = code != null ? mCodes.remove(code) : null;
+
+            if (grant == null || !grant.mRedirectUri.equals(params.get("redirect_uri"))
+                    || !grant.mClientId.equals(params.get("client_id"))) {
+                sendError(exchange, 400, "invalid_grant", "Malformed auth code.");
+                return;
+            }
+
+            refreshToken = "1/" + randomToken();
+            mRefreshTokens.put(refreshToken, grant);
+
+        } else if ("refresh_token".equals(grantType)) {
+
+            final String token = params.get("refresh_token");
+            grant = token != null ? mRefreshTokens.get(token) : null;
+
+            if (grant == null) {
+                sendError(exchange, 400, "invalid_grant", "Token has been expired or revoked.");
+                return;
+            }
+
+            refreshToken = null;
+
+        } else {
+            sendError(exchange, 400, "unsupported_grant_type", "Invalid grant_type: " + grantType);
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        final long lifetimeSeconds = mAccessTokenLifetimeSeconds;
+
+        final String accessToken = "ya29." + randomToken();
+
+        mAccessTokens.put(accessToken, new AccessGrant(grant, now + TimeUnit.SECONDS.toMillis(lifetimeSeconds)));
+
+        final Map<String, Object> json = new LinkedHashMap<String, Object>();
+        json.put("access_token", accessToken);
+        json.put("expires_in", lifetimeSeconds);
+        json.put("token_type", "Bearer");
+
+        if (refreshToken != null) {
+            json.put("refresh_token", refreshToken);
+        }
+
+        try {
+            json.put("id_token", signIdToken(grant, now / 1000, lifetimeSeconds));
+        } catch (GeneralSecurityException e) {
+            sendError(exchange, 500, "internal_failure", e.getMessage());
+            return;
+        }
+
+        sendJson(exchange, 200, OAuthUtil.JSON_FACTORY.toString(json));
+    }
+
+    private void handleCerts(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Cache-Control", "public, max-age=3600");
+        sendJson(exchange, 200, mJwks);
+    }
+
+    private void handleTokenInfo(HttpExchange exchange) throws IOException {
+
+        injectLatency();
+
+        final Map<String, String> params = new HashMap<String, String>(parseForm(exchange.getRequestURI().getRawQuery()));
+        params.putAll(parseForm(readBody(exchange)));
+
+        final String accessToken = params.get("access_token");
+        final AccessGrant accessGrant = accessToken != null ? mAccessTokens.get(accessToken) : null;
+
+        final long now = System.currentTimeMillis();
+
+        if (accessGrant == null || accessGrant.mExpiresAt <= now) {
+            sendError(exchange, 400, "invalid_token", "Invalid Value");
+            return;
+        }
+
+        final Grant grant = accessGrant.mGrant;
+
+        final Map<String, Object> json = new LinkedHashMap<String, Object>();
+        json.put("issued_to", grant.mClientId);
+        json.put("audience", grant.mClientId);
+        json.put("user_id", grant.mUserId);
+        json.put("scope", grant.mScope);
+        json.put("expires_in", TimeUnit.MILLISECONDS.toSeconds(accessGrant.mExpiresAt - now));
+        json.put("email", emailOf(grant.mUserId));
+
+        sendJson(exchange, 200, OAuthUtil.JSON_FACTORY.toString(json));
+    }
+
+    private String signIdToken(Grant grant, long nowSeconds, long lifetimeSeconds) throws GeneralSecurityException, IOException {
+
+        final JsonWebSignature.Header header = new JsonWebSignature.Header()
+                .setAlgorithm("RS256")
+                .setKeyId(KEY_ID);
+
+        final GoogleIdToken.Payload payload = new GoogleIdToken.Payload()
+                .setIssuer(ISSUER)
+                .setAudience(grant.mClientId)
+                .setSubject(grant.mUserId)
+                .setIssuedAtTimeSeconds(nowSeconds)
+                .setExpirationTimeSeconds(nowSeconds + lifetimeSeconds);
+        payload.setEmail(emailOf(grant.mUserId));
+        payload.setEmailVerified(Boolean.TRUE);
+
+        return JsonWebSignature.signUsingRsaSha256(mKeyPair.getPrivate(), OAuthUtil.JSON_FACTORY, header, payload);
+    }
+
+    private void injectLatency() {
+
+        final long min = mMinLatencyMillis;
+        final long max = mMaxLatencyMillis;
+
+        if (max <= 0) {
+            return;
+        }
+
+        try {
+            Thread.sleep(min == max ? min : ThreadLocalRandom.current().nextLong(min, max + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String randomToken() {
+
+        final byte[] bytes = new byte[24];
+        mRandom.nextBytes(bytes);
+
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    private static String emailOf(String userId) {
+        return userId + "@example.com";
+    }
+
+    private static String base64Url(BigInteger value) {
+
+        byte[] bytes = value.toByteArray();
+
+        // strip sign byte
+        if (bytes.length > 1 && bytes[0] == 0) {
+            final byte[] unsigned = new byte[bytes.length - 1];
+            System.arraycopy(bytes, 1, unsigned, 0, unsigned.length);
+            bytes = unsigned;
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+
+        final InputStream is = exchange.getRequestBody();
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+
+        final byte[] buf = new byte[4096];
+        int len;
+
+        while ((len = is.read(buf)) != -1) {
+            bos.write(buf, 0, len);
+        }
+        return new String(bos.toByteArray(), UTF_8);
+    }
+
+    private static Map<String, String> parseForm(String form) throws IOException {
+
+        if (form == null || form.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        final Map<String, String> params = new HashMap<String, String>();
+
+        for (String pair : form.split("&")) {
+
+            final int eq = pair.indexOf('=');
+
+            if (eq > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String error, String errorDescription) throws IOException {
+
+        final Map<String, Object> json = new LinkedHashMap<String, Object>();
+        json.put("error", error);
+        json.put("error_description", errorDescription);
+
+        sendJson(exchange, status, OAuthUtil.JSON_FACTORY.toString(json));
+    }
+
+    private static void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+
+        final byte[] body = json.getBytes(UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(status, body.length);
+
+        final OutputStream os = exchange.getResponseBody();
+        try {
+            os.write(body);
+        } finally {
+            os.close();
+        }
+    }
+
+    /**
+     * Who consented to which client
+     */
+    private static final class Grant {
+
+        final String mUserId;
+        final String mClientId;
+        final String mRedirectUri;
+        final String mScope;
+
+        Grant(String userId, String clientId, String redirectUri, String scope) {
+            mUserId = userId;
+            mClientId = clientId;
+            mRedirectUri = redirectUri;
+            mScope = scope;
+        }
+    }
+
+    private static final class AccessGrant {
+
+        final Grant mGrant;
+        final long mExpiresAt;
+
+        AccessGrant(Grant grant, long expiresAt) {
+            mGrant = grant;
+            mExpiresAt = expiresAt;
+        }
+    }
+}
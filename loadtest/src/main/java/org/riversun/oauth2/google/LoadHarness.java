@@ -0,0 +1,376 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
+
+/**
+ * End-to-end load harness of the whole login flow<br>
+ * <br>
+ * Runs an application on embedded jetty(callback servlet for "/callback",
+ * OAuthFilter for "/app/*") against {@link GoogleStubServer},and lets N
+ * virtual users log in repeatedly with fresh sessions.<br>
+ * Each login is
+ * <ol>
+ * <li>GET /app/main : redirected to the authorization endpoint by
+ * OAuthFilter</li>
+ * <li>GET authorization endpoint : redirected back to /callback with a
+ * code</li>
+ * <li>GET /callback : the code is exchanged and the idToken verified</li>
+ * <li>GET /app/main : passes OAuthFilter</li>
+ * </ol>
+ * and logins per second and latency percentiles are reported.
+ * 
+ * <pre>
+ * java -jar target/loadtest.jar users=32 duration=30 latency=20 failureRate=0.01 async=true maxCalls=16
+ * </pre>
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public class LoadHarness {
+
+    static final String CLIENT_ID = "0000000000-loadtest.apps.googleusercontent.com";
+
+    static boolean sAsyncCallback = false;
+
+    private final int mUsers;
+    private final long mDurationMillis;
+    private final long mLatencyMillis;
+    private final double mFailureRate;
+    private final int mAppPort;
+    private final int mStubPort;
+    private final int mMaxCalls;
+
+    private final LatencyHistogram mLoginLatency = new LatencyHistogram();
+    private final LongAdder mLogins = new LongAdder();
+    private final LongAdder mFailures = new LongAdder();
+
+    public static void main(String[] args) throws Exception {
+
+        final Map<String, String> options = new HashMap<String, String>();
+
+        for (String arg : args) {
+            final int eq = arg.indexOf('=');
+            if (eq > 0) {
+                options.put(arg.substring(0, eq), arg.substring(eq + 1));
+            }
+        }
+
+        sAsyncCallback = Boolean.parseBoolean(option(options, "async", "false"));
+
+        new LoadHarness(
+                Integer.parseInt(option(options, "users", "16")),
+                TimeUnit.SECONDS.toMillis(Long.parseLong(option(options, "duration", "30"))),
+                Long.parseLong(option(options, "latency", "0")),
+                Double.parseDouble(option(options, "failureRate", "0")),
+                Integer.parseInt(option(options, "port", "18081")),
+                Integer.parseInt(option(options, "stubPort", "18080")),
+                Integer.parseInt(option(options, "maxCalls", "64")))
+                        .run();
+    }
+
+    private static String option(Map<String, String> options, String name, String defaultValue) {
+        final String value = options.get(name);
+        return value != null ? value : defaultValue;
+    }
+
+    public LoadHarness(int users, long durationMillis, long latencyMillis, double failureRate, int appPort, int stubPort, int maxCalls) {
+        mUsers = users;
+        mDurationMillis = durationMillis;
+        mLatencyMillis = latencyMillis;
+        mFailureRate = failureRate;
+        mAppPort = appPort;
+        mStubPort = stubPort;
+        mMaxCalls = maxCalls;
+    }
+
+    public void run() throws Exception {
+
+        final GoogleStubServer stub = new GoogleStubServer(mStubPort)
+                .setLatencyMillis(mLatencyMillis, mLatencyMillis)
+                .setFailureRate(mFailureRate)
+                .start();
+
+        final GoogleClientSecrets.Details web = new GoogleClientSecrets.Details()
+                .setClientId(CLIENT_ID)
+                .setClientSecret("loadtest-secret");
+
+        OAuthSecrets.setClientSecrets(new GoogleClientSecrets().setWeb(web));
+        OAuthUtil.setEndpoints(stub.getEndpoints());
+
+        // bulkhead of calls to the stub
+        OAuthUtil.setCallGuard(new OAuthCallGuard.Builder()
+                .setMaxConcurrentCalls(mMaxCalls)
+                .build());
+
+        final Server jettyServer = new Server(mAppPort);
+
+        final ServletContextHandler ctx = new ServletContextHandler(ServletContextHandler.SESSIONS);
+
+        final ServletHolder callbackHolder = new ServletHolder(new HarnessCallbackServlet());
+        callbackHolder.setAsyncSupported(true);
+
+        ctx.addServlet(callbackHolder, "/callback");
+
+        ctx.addFilter(new FilterHolder(new HarnessFilter()), "/app/*",
+                EnumSet.of(DispatcherType.INCLUDE, DispatcherType.REQUEST));
+
+        ctx.addServlet(new ServletHolder(new HarnessAppServlet()), "/app/main");
+
+        jettyServer.setHandler(ctx);
+        jettyServer.start();
+
+        final String appUrl = "http://localhost:" + mAppPort + "/app/main";
+
+        System.out.println("users=" + mUsers + " duration=" + TimeUnit.MILLISECONDS.toSeconds(mDurationMillis) + "s latency="
+                + mLatencyMillis + "ms failureRate=" + mFailureRate + " async=" + sAsyncCallback + " maxCalls=" + mMaxCalls);
+
+        // warm up
+        runUsers(appUrl, Math.min(mDurationMillis / 5, TimeUnit.SECONDS.toMillis(5)));
+
+        mLoginLatency.reset();
+        mLogins.reset();
+        mFailures.reset();
+        OAuthMetrics.getInstance().reset();
+
+        final long startNanos = System.nanoTime();
+
+        runUsers(appUrl, mDurationMillis);
+
+        final double elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+
+        report(elapsedSeconds, stub);
+
+        jettyServer.stop();
+        stub.stop();
+    }
+
+    private void runUsers(final String appUrl, long durationMillis) throws InterruptedException {
+
+        final long deadline = System.currentTimeMillis() + durationMillis;
+
+        final ExecutorService executor = Executors.newFixedThreadPool(mUsers);
+
+        for (int i = 0; i < mUsers; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    while (System.currentTimeMillis() < deadline) {
+
+                        final long start = System.nanoTime();
+
+                        if (login(appUrl)) {
+                            mLoginLatency.recordSince(start);
+                            mLogins.increment();
+                        } else {
+                            mFailures.increment();
+                        }
+                    }
+                }
+            });
+        }
+
+        executor.shutdown();
+        executor.awaitTermination(durationMillis + TimeUnit.MINUTES.toMillis(1), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Log in with a fresh session
+     * 
+     * @param appUrl
+     * @return true if the application page is shown at last
+     */
+    private boolean login(String appUrl) {
+
+        try {
+            final Response app = get(appUrl, null);
+
+            if (app.mStatus != 302) {
+                return false;
+            }
+
+            final String cookie = app.mCookie;
+
+            final Response authorization = get(app.mLocation, null);
+
+            if (authorization.mStatus != 302) {
+                return false;
+            }
+
+            final Response callback = get(authorization.mLocation, cookie);
+
+            if (callback.mStatus != 302) {
+                return false;
+            }
+
+            return get(callback.mLocation, cookie).mStatus == 200;
+
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static Response get(String url, String cookie) throws IOException {
+
+        final HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setInstanceFollowRedirects(false);
+
+        if (cookie != null) {
+            conn.setRequestProperty("Cookie", cookie);
+        }
+
+        final int status = conn.getResponseCode();
+
+        // read to the end to reuse the connection
+        final InputStream is = status < 400 ? conn.getInputStream() : conn.getErrorStream();
+
+        if (is != null) {
+            final byte[] buf = new byte[4096];
+            while (is.read(buf) != -1) {
+            }
+            is.close();
+        }
+
+        String sessionCookie = null;
+
+        final List<String> setCookies = conn.getHeaderFields().get("Set-Cookie");
+
+        if (setCookies != null) {
+            for (String setCookie : setCookies) {
+                if (setCookie.startsWith("JSESSIONID=")) {
+                    final int semicolon = setCookie.indexOf(';');
+                    sessionCookie = semicolon < 0 ? setCookie : setCookie.substring(0, semicolon);
+                }
+            }
+        }
+
+        return new Response(status, conn.getHeaderField("Location"), sessionCookie);
+    }
+
+    private void report(double elapsedSeconds, GoogleStubServer stub) {
+
+        final LatencyHistogram tokenExchange = OAuthMetrics.getInstance().getHistogram(OAuthMetrics.Timer.TOKEN_EXCHANGE);
+
+        System.out.println(String.format("logins=%d failures=%d elapsed=%.1fs", mLogins.sum(), mFailures.sum(), elapsedSeconds));
+        System.out.println(String.format("logins/sec=%.1f", mLogins.sum() / elapsedSeconds));
+        System.out.println(String.format("login latency(ms) p50=%.2f p90=%.2f p99=%.2f max=%.2f",
+                millis(mLoginLatency.getPercentileNanos(50)),
+                millis(mLoginLatency.getPercentileNanos(90)),
+                millis(mLoginLatency.getPercentileNanos(99)),
+                millis(mLoginLatency.getMaxNanos())));
+        System.out.println(String.format("token exchange latency(ms) p50=%.2f p99=%.2f",
+                millis(tokenExchange.getPercentileNanos(50)),
+                millis(tokenExchange.getPercentileNanos(99))));
+        System.out.println("stub authorizations=" + stub.getAuthorizationCount() + " tokens=" + stub.getTokenCount()
+                + " injected failures=" + stub.getFailureCount());
+
+        final OAuthCallGuard callGuard = OAuthUtil.getCallGuard();
+
+        System.out.println("call guard retries=" + callGuard.getRetryCount() + " bulkhead rejections=" + callGuard.getBulkheadRejectionCount()
+                + " circuit open rejections=" + callGuard.getCircuitOpenRejectionCount() + " circuit=" + callGuard.getState());
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static final class Response {
+
+        final int mStatus;
+        final String mLocation;
+        final String mCookie;
+
+        Response(int status, String location, String cookie) {
+            mStatus = status;
+            mLocation = location;
+            mCookie = cookie;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    static final class HarnessCallbackServlet extends OAuthCallbackServlet {
+
+        @Override
+        protected String getAuthRedirectUrl() {
+            return "/callback";
+        }
+
+        @Override
+        protected boolean isAsyncCallback() {
+            return sAsyncCallback;
+        }
+    }
+
+    static final class HarnessFilter extends OAuthFilter {
+
+        @Override
+        protected String getAuthRedirectUrl() {
+            return "/callback";
+        }
+
+        @Override
+        protected List<String> getScopes() {
+            return Arrays.asList("email");
+        }
+
+        @Override
+        protected boolean isAuthenticateEverytime() {
+            return false;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    static final class HarnessAppServlet extends HttpServlet {
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+            resp.setContentType("text/plain; charset=UTF-8");
+            resp.getWriter().print(OAuthSession.getInstance().getUserId(req));
+        }
+    }
+}
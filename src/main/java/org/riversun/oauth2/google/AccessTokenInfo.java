@@ -0,0 +1,103 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+/**
+ * Result of access token introspection by tokeninfo endpoint<br>
+ * Immutable
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public final class AccessTokenInfo {
+
+    private final String mUserId;
+    private final String mEmail;
+    private final String mAudience;
+    private final String mScope;
+    private final long mExpiresAt;
+
+    /**
+     * @param userId
+     *            unique user id(subject)
+     * @param email
+     *            nullable
+     * @param audience
+     *            client id the token was issued to
+     * @param scope
+     *            space separated scopes
+     * @param expiresAt
+     *            epoch millis when the token expires
+     */
+    public AccessTokenInfo(String userId, String email, String audience, String scope, long expiresAt) {
+        mUserId = userId;
+        mEmail = email;
+        mAudience = audience;
+        mScope = scope;
+        mExpiresAt = expiresAt;
+    }
+
+    public String getUserId() {
+        return mUserId;
+    }
+
+    public String getEmail() {
+        return mEmail;
+    }
+
+    public String getAudience() {
+        return mAudience;
+    }
+
+    public String getScope() {
+        return mScope;
+    }
+
+    public long getExpiresAt() {
+        return mExpiresAt;
+    }
+
+    /**
+     * Returns true if the token has the scope
+     * 
+     * @param scope
+     * @return
+     */
+    public boolean hasScope(String scope) {
+
+        if (mScope == null) {
+            return false;
+        }
+
+        for (String granted : mScope.split(" ")) {
+            if (granted.equals(scope)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "AccessTokenInfo [userId=" + mUserId + ", email=" + mEmail + ", audience=" + mAudience + ", scope=" + mScope + ", expiresAt=" + mExpiresAt + "]";
+    }
+}
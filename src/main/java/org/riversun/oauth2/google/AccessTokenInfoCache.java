@@ -0,0 +1,289 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.UrlEncodedContent;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonObjectParser;
+
+/**
+ * Expiry-aware cache of access token introspection<br>
+ * <br>
+ * Access tokens are validated by the tokeninfo endpoint of
+ * {@link OAuthUtil#getEndpoints()} only on the first use.<br>
+ * Valid tokens are cached until they expire,and invalid tokens are cached for
+ * a short negative TTL so that a flood of bad tokens doesn't cost a network
+ * call each.<br>
+ * Only tokens issued to the client id of {@link OAuthSecrets} are accepted by
+ * default,otherwise any app which the user has authorized could call this app
+ * with its own token.<br>
+ * Tokens are keyed by their SHA-256 hash.When the cache is full,expired
+ * entries are swept and then arbitrary entries are evicted.<br>
+ * Thread-safe
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public final class AccessTokenInfoCache {
+
+    private static final Logger LOGGER = Logger.getLogger(AccessTokenInfoCache.class.getName());
+
+    private static final long DEFAULT_NEGATIVE_TTL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    // marker of invalid token
+    private static final AccessTokenInfo INVALID = new AccessTokenInfo(null, null, null, null, 0);
+
+    private final ExpiringTokenMap<Entry> mEntries;
+
+    private volatile long mNegativeTtlMillis = DEFAULT_NEGATIVE_TTL_MILLIS;
+
+    // null means client id of OAuthSecrets
+    private volatile Collection<String> mAudiences = null;
+
+    private volatile boolean mAnyAudienceAllowed = false;
+
+    private final LongAdder mHitCount = new LongAdder();
+    private final LongAdder mNegativeHitCount = new LongAdder();
+    private final LongAdder mMissCount = new LongAdder();
+
+    /**
+     * @param maxEntries
+     *            max number of tokens to cache
+     */
+    public AccessTokenInfoCache(int maxEntries) {
+        mEntries = new ExpiringTokenMap<Entry>(maxEntries);
+    }
+
+    /**
+     * Set how long invalid tokens are remembered
+     * 
+     * @param negativeTtlMillis
+     * @return
+     */
+    public AccessTokenInfoCache setNegativeTtlMillis(long negativeTtlMillis) {
+        mNegativeTtlMillis = negativeTtlMillis;
+        return AccessTokenInfoCache.this;
+    }
+
+    /**
+     * Set client ids which tokens must be issued to<br>
+     * Client id of {@link OAuthSecrets} is used by default.
+     * 
+     * @param audiences
+     * @return
+     */
+    public AccessTokenInfoCache setAudiences(Collection<String> audiences) {
+        mAudiences = audiences;
+        return AccessTokenInfoCache.this;
+    }
+
+    /**
+     * Set whether tokens issued to any client are accepted<br>
+     * Disabled by default.Enable it only if this app is a resource server
+     * which accepts tokens of other clients on purpose.
+     * 
+     * @param anyAudienceAllowed
+     * @return
+     */
+    public AccessTokenInfoCache setAnyAudienceAllowed(boolean anyAudienceAllowed) {
+        mAnyAudienceAllowed = anyAudienceAllowed;
+        return AccessTokenInfoCache.this;
+    }
+
+    /**
+     * Returns information of the access token
+     * 
+     * @param accessToken
+     * @return null if the token is invalid,expired or issued to other client
+     * @throws IOException
+     *             tokeninfo endpoint is not available
+     */
+    public AccessTokenInfo introspect(String accessToken) throws IOException {
+
+        final long now = System.currentTimeMillis();
+
+        final TokenKey key = TokenKey.of(accessToken);
+
+        final Entry entry = mEntries.get(key, now);
+
+        if (entry != null) {
+
+            if (entry.mInfo == INVALID) {
+                mNegativeHitCount.increment();
+                return null;
+            }
+
+            mHitCount.increment();
+            return entry.mInfo;
+        }
+
+        mMissCount.increment();
+
+        final AccessTokenInfo info = fetch(accessToken, now);
+
+        if (info == null || !isAllowedAudience(info.getAudience())) {
+            mEntries.put(key, new Entry(INVALID, now + mNegativeTtlMillis), now);
+            return null;
+        }
+
+        mEntries.put(key, new Entry(info, info.getExpiresAt()), now);
+
+        return info;
+    }
+
+    private boolean isAllowedAudience(String audience) throws IOException {
+
+        if (mAnyAudienceAllowed) {
+            return true;
+        }
+
+        if (audience == null) {
+            return false;
+        }
+
+        final Collection<String> audiences = mAudiences;
+
+        if (audiences != null) {
+            return audiences.contains(audience);
+        }
+
+        return audience.equals(OAuthSecrets.getClientSecrets().getDetails().getClientId());
+    }
+
+    /**
+     * Call tokeninfo endpoint
+     * 
+     * @param accessToken
+     * @param now
+     * @return null if the token is invalid
+     * @throws IOException
+     */
+    private AccessTokenInfo fetch(final String accessToken, long now) throws IOException {
+
+        final OAuthTransport transport = OAuthUtil.getTransport();
+
+        final OAuthCallGuard callGuard = OAuthUtil.getCallGuard();
+
+        // limit concurrency and fail fast while Google is unavailable
+        final GenericJson json = callGuard.execute(new Callable<GenericJson>() {
+            @Override
+            public GenericJson call() throws IOException {
+
+                // POST not to put the token in the url(and access logs)
+                final HttpRequest request = transport.getHttpTransport()
+                        .createRequestFactory(callGuard.getRequestInitializer(transport.getRequestInitializer()))
+                        .buildPostRequest(new GenericUrl(OAuthUtil.getEndpoints().getTokenInfoUrl()),
+                                new UrlEncodedContent(Collections.singletonMap("access_token", accessToken)))
+                        .setParser(new JsonObjectParser(OAuthUtil.JSON_FACTORY));
+
+                try {
+                    final HttpResponse response = request.execute();
+                    try {
+                        return response.parseAs(GenericJson.class);
+                    } finally {
+                        response.disconnect();
+                    }
+                } catch (HttpResponseException e) {
+
+                    // invalid token is a healthy response for the call guard
+                    if (e.getStatusCode() == 400 || e.getStatusCode() == 401) {
+                        LOGGER.fine("Invalid access token " + e.getStatusCode());
+                        return null;
+                    }
+                    throw e;
+                }
+            }
+        });
+
+        if (json == null) {
+            return null;
+        }
+
+        final Object expiresIn = json.get("expires_in");
+
+        if (!(expiresIn instanceof Number) && !(expiresIn instanceof String)) {
+            return null;
+        }
+
+        final long expiresInSeconds = new BigDecimal(expiresIn.toString()).longValue();
+
+        return new AccessTokenInfo(
+                asString(json.get("user_id")),
+                asString(json.get("email")),
+                asString(json.get("audience")),
+                asString(json.get("scope")),
+                now + TimeUnit.SECONDS.toMillis(expiresInSeconds));
+    }
+
+    private static String asString(Object value) {
+        return value != null ? value.toString() : null;
+    }
+
+    /**
+     * Remove all cached tokens
+     */
+    public void clear() {
+        mEntries.clear();
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    public long getHitCount() {
+        return mHitCount.sum();
+    }
+
+    public long getNegativeHitCount() {
+        return mNegativeHitCount.sum();
+    }
+
+    public long getMissCount() {
+        return mMissCount.sum();
+    }
+
+    /**
+     * Introspection result and until when it is valid
+     */
+    private static final class Entry extends ExpiringTokenMap.Entry {
+
+        final AccessTokenInfo mInfo;
+
+        Entry(AccessTokenInfo info, long expiresAt) {
+            super(expiresAt);
+            mInfo = info;
+        }
+    }
+}
@@ -0,0 +1,533 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
+import java.util.logging.Formatter;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+
+/**
+ * Asynchronous handler for util.logger<br>
+ * <br>
+ * Records are put into a bounded ring buffer without locking,and a single
+ * writer thread formats and writes them in batches(one write and flush per
+ * batch).When the buffer is full,records are dropped or the logging thread
+ * waits for space according to {@link OverflowPolicy}.<br>
+ * <br>
+ * "logging.properties" example as follows<br>
+ * 
+ * <pre>
+ * handlers= org.riversun.oauth2.google.AsyncLogHandler
+ * 
+ * org.riversun.oauth2.google.AsyncLogHandler.level = ALL
+ * org.riversun.oauth2.google.AsyncLogHandler.formatter = org.riversun.oauth2.google.LogFormatter
+ * org.riversun.oauth2.google.AsyncLogHandler.capacity = 8192
+ * org.riversun.oauth2.google.AsyncLogHandler.overflowPolicy = DROP
+ * </pre>
+ * 
+ * Records are written to System.err by default.<br>
+ * Thread-safe
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public class AsyncLogHandler extends Handler {
+
+    /**
+     * What to do when the buffer is full
+     */
+    public enum OverflowPolicy {
+
+        /**
+         * Drop the record and count it
+         */
+        DROP,
+
+        /**
+         * Wait until the writer thread makes space
+         */
+        BLOCK
+    }
+
+    private static final int DEFAULT_CAPACITY = 8192;
+
+    private static final int MAX_BATCH_SIZE = 256;
+
+    // batch buffers larger than this are not kept for reuse
+    private static final int MAX_REUSABLE_CAPACITY = 64 * 1024;
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final long CLOSE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    private final OverflowPolicy mOverflowPolicy;
+
+    private final Writer mWriter;
+    private final boolean mCloseStream;
+
+    // bounded multi-producer/single-consumer ring buffer.
+    // mSequences[i] tells which position the slot i is ready for.
+    private final int mMask;
+    private final AtomicReferenceArray<LogRecord> mRecords;
+    private final AtomicLongArray mSequences;
+    private final AtomicLong mTail = new AtomicLong();
+
+    // accessed only by the writer thread
+    private long mHead = 0;
+    private StringBuilder mBatch = new StringBuilder(4096);
+
+    private final LongAdder mDroppedCount = new LongAdder();
+
+    // threads in publish(),close() waits for them before the last drain
+    private final LongAdder mPublishingCount = new LongAdder();
+
+    private final Thread mWriterThread;
+    private volatile boolean mWriterParked = false;
+    private volatile boolean mClosed = false;
+
+    /**
+     * Create handler configured by LogManager properties<br>
+     * (level,formatter,encoding,capacity,overflowPolicy)
+     */
+    public AsyncLogHandler() {
+        this(System.err, false, getIntProperty("capacity", DEFAULT_CAPACITY),
+                getOverflowPolicyProperty("overflowPolicy", OverflowPolicy.DROP),
+                getProperty("encoding", null), getProperty("formatter", null), getLevelProperty("level", Level.ALL));
+    }
+
+    /**
+     * Create handler writing to the stream
+     * 
+     * @param out
+     *            closed when this handler is closed
+     * @param capacity
+     *            max number of records waiting to be written,rounded up to a
+     *            power of 2
+     * @param overflowPolicy
+     */
+    public AsyncLogHandler(OutputStream out, int capacity, OverflowPolicy overflowPolicy) {
+        this(out, true, capacity, overflowPolicy, null, null, Level.ALL);
+    }
+
+    /**
+     * @param formatterClassName
+     *            null to use {@link LogFormatter}
+     */
+    private AsyncLogHandler(OutputStream out, boolean closeStream, int capacity, OverflowPolicy overflowPolicy, String encoding,
+            String formatterClassName, Level level) {
+
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+
+        final int size = Integer.highestOneBit(Math.min(capacity, 1 << 30) * 2 - 1);
+
+        mMask = size - 1;
+        mRecords = new AtomicReferenceArray<LogRecord>(size);
+        mSequences = new AtomicLongArray(size);
+
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, i);
+        }
+
+        mOverflowPolicy = overflowPolicy;
+        mCloseStream = closeStream;
+        mWriter = newWriter(out, encoding);
+
+        setFormatter(newFormatter(formatterClassName));
+        setLevel(level);
+
+        mWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWriter();
+            }
+        }, "goauth-async-log");
+        mWriterThread.setDaemon(true);
+        mWriterThread.start();
+    }
+
+    private Writer newWriter(OutputStream out, String encoding) {
+
+        if (encoding != null) {
+            try {
+                setEncoding(encoding);
+                return new OutputStreamWriter(out, encoding);
+            } catch (UnsupportedEncodingException e) {
+                reportError(null, e, ErrorManager.OPEN_FAILURE);
+            }
+        }
+        return new OutputStreamWriter(out);
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+
+        if (!isLoggable(record)) {
+            return;
+        }
+
+        // source class and method are inferred from the stack of the caller,
+        // so it must be done before handing off the record
+        record.getSourceMethodName();
+
+        mPublishingCount.increment();
+
+        try {
+
+            if (mClosed) {
+                mDroppedCount.increment();
+                return;
+            }
+
+            if (offer(record)) {
+                wakeUpWriter();
+                return;
+            }
+
+            // never wait on the writer thread itself
+            if (mOverflowPolicy == OverflowPolicy.BLOCK && Thread.currentThread() != mWriterThread) {
+
+                while (!mClosed) {
+
+                    wakeUpWriter();
+                    LockSupport.parkNanos(BLOCK_PARK_NANOS);
+
+                    if (offer(record)) {
+                        wakeUpWriter();
+                        return;
+                    }
+                }
+            }
+
+            mDroppedCount.increment();
+
+        } finally {
+            mPublishingCount.decrement();
+        }
+    }
+
+    /**
+     * Put the record into the ring buffer
+     * 
+     * @param record
+     * @return false if the buffer is full
+     */
+    private boolean offer(LogRecord record) {
+
+        long position;
+        int index;
+
+        for (;;) {
+
+            position = mTail.get();
+            index = (int) position & mMask;
+
+            final long diff = mSequences.get(index) - position;
+
+            if (diff == 0) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (diff < 0) {
+                // the slot hasn't been consumed yet
+                return false;
+            }
+        }
+
+        mRecords.set(index, record);
+        mSequences.set(index, position + 1);
+
+        return true;
+    }
+
+    /**
+     * Take a record from the ring buffer(only by the writer thread)
+     * 
+     * @return null if empty
+     */
+    private LogRecord poll() {
+
+        final int index = (int) mHead & mMask;
+
+        if (mSequences.get(index) != mHead + 1) {
+            return null;
+        }
+
+        final LogRecord record = mRecords.get(index);
+
+        mRecords.set(index, null);
+        mSequences.set(index, mHead + mMask + 1);
+        mHead++;
+
+        return record;
+    }
+
+    private boolean isEmpty() {
+        return mSequences.get((int) mHead & mMask) != mHead + 1;
+    }
+
+    private void wakeUpWriter() {
+        if (mWriterParked) {
+            LockSupport.unpark(mWriterThread);
+        }
+    }
+
+    private void runWriter() {
+
+        write(getHead());
+
+        for (;;) {
+
+            if (writeBatch() > 0) {
+                continue;
+            }
+
+            if (mClosed) {
+                break;
+            }
+
+            mWriterParked = true;
+
+            // check again not to miss a record put before the flag was set
+            if (isEmpty() && !mClosed) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+
+            mWriterParked = false;
+        }
+    }
+
+    /**
+     * Format records in the buffer and write them at once
+     * 
+     * @return number of records taken
+     */
+    private int writeBatch() {
+
+        final Formatter formatter = getFormatter();
+
+        int count = 0;
+
+        LogRecord record;
+
+        while (count < MAX_BATCH_SIZE && (record = poll()) != null) {
+
+            count++;
+
+            try {
+                mBatch.append(formatter.format(record));
+            } catch (Exception e) {
+                reportError(null, e, ErrorManager.FORMAT_FAILURE);
+            }
+        }
+
+        if (mBatch.length() > 0) {
+
+            write(mBatch.toString());
+
+            if (mBatch.capacity() > MAX_REUSABLE_CAPACITY) {
+                mBatch = new StringBuilder(4096);
+            } else {
+                mBatch.setLength(0);
+            }
+        }
+
+        return count;
+    }
+
+    private void write(String text) {
+
+        if (text == null || text.isEmpty()) {
+            return;
+        }
+
+        try {
+            mWriter.write(text);
+            mWriter.flush();
+        } catch (IOException e) {
+            reportError(null, e, ErrorManager.WRITE_FAILURE);
+        }
+    }
+
+    private String getHead() {
+        final Formatter formatter = getFormatter();
+        return formatter != null ? formatter.getHead(AsyncLogHandler.this) : null;
+    }
+
+    /**
+     * Records are flushed by the writer thread after each batch,so this only
+     * wakes it up
+     */
+    @Override
+    public void flush() {
+        wakeUpWriter();
+    }
+
+    /**
+     * Write the records left in the buffer and stop the writer thread
+     */
+    @Override
+    public void close() throws SecurityException {
+
+        if (mClosed) {
+            return;
+        }
+
+        mClosed = true;
+
+        final long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_TIMEOUT_MILLIS);
+
+        // threads which passed the check of mClosed before it was set may
+        // still put records
+        while (mPublishingCount.sum() > 0 && System.nanoTime() < deadlineNanos) {
+            LockSupport.unpark(mWriterThread);
+            LockSupport.parkNanos(BLOCK_PARK_NANOS);
+        }
+
+        LockSupport.unpark(mWriterThread);
+
+        try {
+            mWriterThread.join(Math.max(TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()), 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (!mWriterThread.isAlive()) {
+            // the writer thread may have finished before the last records
+            // were put.Now this thread is the only consumer.
+            while (writeBatch() > 0) {
+                // until the buffer is empty
+            }
+        }
+
+        final Formatter formatter = getFormatter();
+
+        if (formatter != null) {
+            write(formatter.getTail(AsyncLogHandler.this));
+        }
+
+        try {
+            if (mCloseStream) {
+                mWriter.close();
+            } else {
+                mWriter.flush();
+            }
+        } catch (IOException e) {
+            reportError(null, e, ErrorManager.CLOSE_FAILURE);
+        }
+    }
+
+    /**
+     * Returns number of records dropped because the buffer was full or the
+     * handler was closed
+     * 
+     * @return
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.sum();
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return mOverflowPolicy;
+    }
+
+    private static String getProperty(String name, String defaultValue) {
+
+        final String value = LogManager.getLogManager().getProperty(AsyncLogHandler.class.getName() + "." + name);
+
+        return value != null ? value : defaultValue;
+    }
+
+    private static int getIntProperty(String name, int defaultValue) {
+        try {
+            return Integer.parseInt(getProperty(name, String.valueOf(defaultValue)).trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static OverflowPolicy getOverflowPolicyProperty(String name, OverflowPolicy defaultValue) {
+        try {
+            return OverflowPolicy.valueOf(getProperty(name, defaultValue.name()).trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return defaultValue;
+        }
+    }
+
+    private static Level getLevelProperty(String name, Level defaultValue) {
+        try {
+            return Level.parse(getProperty(name, defaultValue.getName()).trim());
+        } catch (IllegalArgumentException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Create formatter by the system class loader,or the context class loader
+     * like LogManager does(ex. the formatter is in the web application)
+     * 
+     * @param className
+     * @return {@link LogFormatter} if className is null or can't be created
+     */
+    private Formatter newFormatter(String className) {
+
+        if (className == null) {
+            return new LogFormatter();
+        }
+
+        final ClassLoader[] classLoaders = { ClassLoader.getSystemClassLoader(), Thread.currentThread().getContextClassLoader() };
+
+        Exception error = null;
+
+        for (ClassLoader classLoader : classLoaders) {
+
+            if (classLoader == null) {
+                continue;
+            }
+
+            try {
+                return (Formatter) classLoader.loadClass(className.trim()).newInstance();
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+
+        reportError("Failed to create formatter " + className + ",use LogFormatter instead", error, ErrorManager.GENERIC_FAILURE);
+
+        return new LogFormatter();
+    }
+}
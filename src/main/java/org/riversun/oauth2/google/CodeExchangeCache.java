@@ -0,0 +1,296 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleTokenResponse;
+
+/**
+ * Results of authorization code exchanges shared by duplicate callbacks<br>
+ * <br>
+ * When the user reloads the callback url or a proxy retries it,the same code
+ * reaches {@link OAuthCallbackServlet} again.Exchanging it again only fails
+ * with "invalid_grant: Code was already redeemed.",so the duplicate waits for
+ * the exchange in flight or reuses its result for a short time instead.<br>
+ * Entries are keyed by a hash of the code,the state and the browser(session
+ * or nonce cookie),so neither raw codes are kept nor a callback url leaked to
+ * another browser can be replayed.Failed exchanges are not kept.<br>
+ * Only a callback which verified the state starts an exchange.A duplicate
+ * callback skips the verification only if {@link #join(TokenKey)} returns the
+ * result of a verified exchange,including the url to return to.<br>
+ * Thread-safe
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public final class CodeExchangeCache {
+
+    private static final Logger LOGGER = Logger.getLogger(CodeExchangeCache.class.getName());
+
+    private static final long DEFAULT_TTL_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+    private static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    // after the defaults,which are not compile-time constants
+    private static final CodeExchangeCache instance = new CodeExchangeCache();
+
+    private final ConcurrentMap<TokenKey, Exchange> mExchanges = new ConcurrentHashMap<TokenKey, Exchange>();
+
+    private final LongAdder mExchangeCount = new LongAdder();
+    private final LongAdder mDeduplicatedCount = new LongAdder();
+
+    private volatile long mTtlMillis = DEFAULT_TTL_MILLIS;
+    private volatile int mMaxEntries = DEFAULT_MAX_ENTRIES;
+
+    /**
+     * Result of a successful exchange
+     */
+    static final class Result {
+
+        final GoogleTokenResponse tokenResponse;
+
+        // url to return after login verified by the first callback
+        final String returnUrl;
+
+        Result(GoogleTokenResponse tokenResponse, String returnUrl) {
+            this.tokenResponse = tokenResponse;
+            this.returnUrl = returnUrl;
+        }
+    }
+
+    /**
+     * An exchange in flight or completed successfully
+     */
+    private static final class Exchange {
+
+        // completed with null if failed
+        final CompletableFuture<Result> future = new CompletableFuture<Result>();
+
+        // System.nanoTime() when completed,0 while in flight
+        volatile long completedAtNanos = 0;
+
+        boolean isReusable(long nowNanos, long ttlMillis) {
+
+            if (!future.isDone()) {
+                return true;
+            }
+
+            return completedAtNanos != 0 && nowNanos - completedAtNanos < TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        }
+    }
+
+    private CodeExchangeCache() {
+    }
+
+    public static CodeExchangeCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Set time during which the result is reused by duplicate callbacks
+     * 
+     * @param ttlMillis
+     */
+    public void setTtlMillis(long ttlMillis) {
+        mTtlMillis = ttlMillis;
+    }
+
+    /**
+     * Set max number of results kept
+     * 
+     * @param maxEntries
+     */
+    public void setMaxEntries(int maxEntries) {
+        mMaxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the result of the exchange of the key,waiting for it if in
+     * flight<br>
+     * Returns null if there is no such exchange or it failed.Then the caller
+     * must verify the state as the first callback does.
+     * 
+     * @param key
+     * @return
+     */
+    Result join(TokenKey key) {
+
+        final Exchange exchange = mExchanges.get(key);
+
+        if (exchange == null || !exchange.isReusable(System.nanoTime(), mTtlMillis)) {
+            return null;
+        }
+
+        final Result result = await(exchange.future);
+
+        if (result != null) {
+            mDeduplicatedCount.increment();
+            LOGGER.fine("reuse the result of code exchange");
+        }
+        return result;
+    }
+
+    /**
+     * Exchange the code,or wait for the exchange already in flight<br>
+     * Call only after the state has been verified.
+     * 
+     * @param key
+     * @param returnUrl
+     *            url to return after login,shared with duplicate callbacks
+     * @param exchanger
+     *            exchanges the code,returns null if failed
+     * @return null if the exchange failed
+     * @throws OAuthCallRejectedException
+     *             the exchanger was rejected by {@link OAuthCallGuard}
+     */
+    Result exchange(TokenKey key, String returnUrl, Callable<GoogleTokenResponse> exchanger) throws OAuthCallRejectedException {
+
+        final long ttlMillis = mTtlMillis;
+
+        while (true) {
+
+            final Exchange current = mExchanges.get(key);
+
+            if (current != null && current.isReusable(System.nanoTime(), ttlMillis)) {
+
+                final Result result = await(current.future);
+
+                if (result == null) {
+
+                    if (Thread.currentThread().isInterrupted()) {
+                        return null;
+                    }
+
+                    // failed,exchange again since this caller has verified
+                    // the state
+                    continue;
+                }
+
+                mDeduplicatedCount.increment();
+                LOGGER.fine("reuse the result of code exchange");
+                return result;
+            }
+
+            final Exchange exchange = new Exchange();
+
+            final boolean won = current == null ? mExchanges.putIfAbsent(key, exchange) == null : mExchanges.replace(key, current, exchange);
+
+            if (!won) {
+                // another thread started the exchange,join it
+                continue;
+            }
+
+            sweepIfNeeded();
+
+            mExchangeCount.increment();
+
+            Result result = null;
+
+            try {
+
+                final GoogleTokenResponse tokenResponse = exchanger.call();
+
+                if (tokenResponse != null) {
+                    result = new Result(tokenResponse, returnUrl);
+                }
+            } catch (OAuthCallRejectedException e) {
+                // waiters exchange again by themselves
+                throw e;
+            } catch (Exception e) {
+                LOGGER.warning("Failed to exchange code " + e);
+            } finally {
+
+                if (result != null) {
+                    exchange.completedAtNanos = System.nanoTime();
+                } else {
+                    // don't share failures with later callbacks
+                    mExchanges.remove(key, exchange);
+                }
+                exchange.future.complete(result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Returns number of exchanges actually executed
+     * 
+     * @return
+     */
+    public long getExchangeCount() {
+        return mExchangeCount.sum();
+    }
+
+    /**
+     * Returns number of duplicate callbacks which reused another's result
+     * 
+     * @return
+     */
+    public long getDeduplicatedCount() {
+        return mDeduplicatedCount.sum();
+    }
+
+    private void sweepIfNeeded() {
+
+        final int maxEntries = mMaxEntries;
+
+        if (mExchanges.size() <= maxEntries) {
+            return;
+        }
+
+        final long now = System.nanoTime();
+        final long ttlMillis = mTtlMillis;
+
+        for (Iterator<Exchange> it = mExchanges.values().iterator(); it.hasNext();) {
+            if (!it.next().isReusable(now, ttlMillis)) {
+                it.remove();
+            }
+        }
+
+        // still full of fresh results,drop completed ones
+        for (Iterator<Exchange> it = mExchanges.values().iterator(); it.hasNext() && mExchanges.size() > maxEntries;) {
+            if (it.next().future.isDone()) {
+                it.remove();
+            }
+        }
+    }
+
+    private static Result await(CompletableFuture<Result> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,401 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Stores {@link OAuthAuthState} in an encrypted cookie instead of HttpSession
+ * <br>
+ * <br>
+ * The state is encrypted and authenticated with AES-GCM,so that it can
+ * neither be read nor modified by the client.<br>
+ * Each cookie records the id of the key used,so keys can be rotated:add the
+ * new key as current one and keep old keys for decryption until cookies
+ * encrypted with them expire.<br>
+ * The cookie can't be invalidated on the server.{@link #clearState} only
+ * overwrites the cookie of the client,and the cookie replayed by the client is
+ * accepted until max age.Keep max age short,or use re-authentication window
+ * of {@link OAuthFilter}.<br>
+ * <br>
+ * Return it from {@link OAuthFilter#getCookieSessionCodec()} to authenticate
+ * requests without server-side session lookups.<br>
+ * Thread-safe
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public final class CookieSessionCodec {
+
+    private static final Logger LOGGER = Logger.getLogger(CookieSessionCodec.class.getName());
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static final String DEFAULT_COOKIE_NAME = "goauth";
+
+    private static final byte VERSION = 1;
+
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+
+    // version + keyId + iv
+    private static final int HEADER_LENGTH = 2 + IV_LENGTH;
+
+    private static final String REQUEST_KEY_AUTH_STATE = "org.riversun.goauth.request_key_auth_state";
+
+    // marks that the request has no valid state cookie
+    private static final Object NO_STATE = new Object();
+
+    private final Map<Integer, SecretKeySpec> mKeys = new ConcurrentHashMap<Integer, SecretKeySpec>();
+
+    private volatile int mCurrentKeyId;
+
+    private volatile String mCookieName = DEFAULT_COOKIE_NAME;
+    private volatile String mPath = "/";
+    private volatile int mMaxAgeSeconds = (int) TimeUnit.DAYS.toSeconds(1);
+    private volatile boolean mSecure = true;
+    private volatile String mSameSite = "Lax";
+
+    private final ThreadLocal<Cipher> mCipher = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance("AES/GCM/NoPadding");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private final SecureRandom mRandom = new SecureRandom();
+
+    /**
+     * @param currentKeyId
+     *            id of key(0-255)
+     * @param currentKey
+     *            AES key(16,24 or 32 bytes)
+     */
+    public CookieSessionCodec(int currentKeyId, byte[] currentKey) {
+        addKey(currentKeyId, currentKey);
+        mCurrentKeyId = currentKeyId;
+    }
+
+    /**
+     * Add key used for decryption(ex. old key before rotation)
+     * 
+     * @param keyId
+     *            0-255
+     * @param key
+     *            AES key(16,24 or 32 bytes)
+     * @return
+     */
+    public CookieSessionCodec addKey(int keyId, byte[] key) {
+
+        if (keyId < 0 || keyId > 255) {
+            throw new IllegalArgumentException("keyId must be 0-255. keyId=" + keyId);
+        }
+        if (key.length != 16 && key.length != 24 && key.length != 32) {
+            throw new IllegalArgumentException("key must be 16,24 or 32 bytes. length=" + key.length);
+        }
+
+        mKeys.put(keyId, new SecretKeySpec(key.clone(), "AES"));
+        return CookieSessionCodec.this;
+    }
+
+    /**
+     * Set key used for encryption.The key must be added before.
+     * 
+     * @param keyId
+     * @return
+     */
+    public CookieSessionCodec setCurrentKeyId(int keyId) {
+
+        if (!mKeys.containsKey(keyId)) {
+            throw new IllegalArgumentException("key not found. keyId=" + keyId);
+        }
+
+        mCurrentKeyId = keyId;
+        return CookieSessionCodec.this;
+    }
+
+    /**
+     * Remove key(ex. retired key after rotation)
+     * 
+     * @param keyId
+     * @return
+     */
+    public CookieSessionCodec removeKey(int keyId) {
+
+        if (keyId == mCurrentKeyId) {
+            throw new IllegalArgumentException("current key can not be removed. keyId=" + keyId);
+        }
+
+        mKeys.remove(keyId);
+        return CookieSessionCodec.this;
+    }
+
+    public CookieSessionCodec setCookieName(String cookieName) {
+        mCookieName = cookieName;
+        return CookieSessionCodec.this;
+    }
+
+    public CookieSessionCodec setPath(String path) {
+        mPath = path;
+        return CookieSessionCodec.this;
+    }
+
+    /**
+     * Set lifetime of cookie.Cookies older than this are rejected even if the
+     * client keeps them.
+     * 
+     * @param maxAgeSeconds
+     * @return
+     */
+    public CookieSessionCodec setMaxAgeSeconds(int maxAgeSeconds) {
+        mMaxAgeSeconds = maxAgeSeconds;
+        return CookieSessionCodec.this;
+    }
+
+    public CookieSessionCodec setSecure(boolean secure) {
+        mSecure = secure;
+        return CookieSessionCodec.this;
+    }
+
+    /**
+     * Set SameSite attribute("Lax","Strict","None" or null)
+     * 
+     * @param sameSite
+     * @return
+     */
+    public CookieSessionCodec setSameSite(String sameSite) {
+        mSameSite = sameSite;
+        return CookieSessionCodec.this;
+    }
+
+    /**
+     * Returns state stored in the cookie of the request or null<br>
+     * The result is cached in the request.
+     * 
+     * @param req
+     * @return
+     */
+    public OAuthAuthState readState(HttpServletRequest req) {
+
+        final Object cached = req.getAttribute(REQUEST_KEY_AUTH_STATE);
+
+        if (cached != null) {
+            return cached == NO_STATE ? null : (OAuthAuthState) cached;
+        }
+
+        OAuthAuthState state = null;
+
+        final Cookie[] cookies = req.getCookies();
+
+        if (cookies != null) {
+            for (Cookie cookie : cookies) {
+                if (mCookieName.equals(cookie.getName())) {
+                    state = decode(cookie.getValue());
+                    break;
+                }
+            }
+        }
+
+        req.setAttribute(REQUEST_KEY_AUTH_STATE, state == null ? NO_STATE : state);
+
+        return state;
+    }
+
+    /**
+     * Store state in the cookie
+     * 
+     * @param req
+     * @param resp
+     * @param state
+     */
+    public void writeState(HttpServletRequest req, HttpServletResponse resp, OAuthAuthState state) {
+
+        req.setAttribute(REQUEST_KEY_AUTH_STATE, state);
+
+        addCookieHeader(resp, encode(state), mMaxAgeSeconds);
+    }
+
+    /**
+     * Remove the cookie
+     * 
+     * @param req
+     * @param resp
+     */
+    public void clearState(HttpServletRequest req, HttpServletResponse resp) {
+
+        req.setAttribute(REQUEST_KEY_AUTH_STATE, NO_STATE);
+
+        addCookieHeader(resp, "", 0);
+    }
+
+    /**
+     * Encrypt state into cookie value
+     * 
+     * @param state
+     * @return
+     */
+    public String encode(OAuthAuthState state) {
+        return encode(state, System.currentTimeMillis());
+    }
+
+    /**
+     * Encrypt state into cookie value issued at the time
+     * 
+     * @param state
+     * @param issuedAt
+     * @return
+     */
+    String encode(OAuthAuthState state, long issuedAt) {
+
+        try {
+
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream(256);
+            final DataOutputStream out = new DataOutputStream(baos);
+
+            out.writeLong(issuedAt);
+            state.writeTo(out);
+            out.flush();
+
+            final byte[] plain = baos.toByteArray();
+
+            final int keyId = mCurrentKeyId;
+
+            final byte[] iv = new byte[IV_LENGTH];
+            mRandom.nextBytes(iv);
+
+            final Cipher cipher = mCipher.get();
+            cipher.init(Cipher.ENCRYPT_MODE, mKeys.get(keyId), new GCMParameterSpec(TAG_BITS, iv));
+            cipher.updateAAD(mCookieName.getBytes(UTF_8));
+
+            final ByteBuffer blob = ByteBuffer.allocate(HEADER_LENGTH + cipher.getOutputSize(plain.length));
+            blob.put(VERSION);
+            blob.put((byte) keyId);
+            blob.put(iv);
+            cipher.doFinal(ByteBuffer.wrap(plain), blob);
+
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(blob.array());
+
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Decrypt cookie value into state.<br>
+     * Returns null if it is broken,modified,encrypted with unknown key or too
+     * old.
+     * 
+     * @param value
+     * @return
+     */
+    public OAuthAuthState decode(String value) {
+
+        try {
+
+            final byte[] blob = Base64.getUrlDecoder().decode(value);
+
+            if (blob.length <= HEADER_LENGTH || blob[0] != VERSION) {
+                return null;
+            }
+
+            final SecretKeySpec key = mKeys.get(blob[1] & 0xff);
+
+            if (key == null) {
+                LOGGER.fine("unknown keyId=" + (blob[1] & 0xff));
+                return null;
+            }
+
+            final Cipher cipher = mCipher.get();
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, blob, 2, IV_LENGTH));
+            cipher.updateAAD(mCookieName.getBytes(UTF_8));
+
+            final byte[] plain = cipher.doFinal(blob, HEADER_LENGTH, blob.length - HEADER_LENGTH);
+
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(plain));
+
+            final long issuedAt = in.readLong();
+
+            if (issuedAt + TimeUnit.SECONDS.toMillis(mMaxAgeSeconds) < System.currentTimeMillis()) {
+                LOGGER.fine("cookie expired issuedAt=" + issuedAt);
+                return null;
+            }
+
+            return OAuthAuthState.readFrom(in);
+
+        } catch (IllegalArgumentException e) {
+            // not base64
+            return null;
+        } catch (GeneralSecurityException e) {
+            // modified or broken
+            LOGGER.fine("invalid cookie " + e);
+            return null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void addCookieHeader(HttpServletResponse resp, String value, int maxAgeSeconds) {
+
+        final StringBuilder sb = new StringBuilder(value.length() + 96);
+
+        sb.append(mCookieName).append('=').append(value);
+        sb.append("; Path=").append(mPath);
+        sb.append("; Max-Age=").append(maxAgeSeconds);
+        sb.append("; HttpOnly");
+
+        if (mSecure) {
+            sb.append("; Secure");
+        }
+
+        if (mSameSite != null) {
+            sb.append("; SameSite=").append(mSameSite);
+        }
+
+        resp.addHeader("Set-Cookie", sb.toString());
+    }
+}
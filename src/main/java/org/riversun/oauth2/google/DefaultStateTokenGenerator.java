@@ -0,0 +1,115 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Default {@link StateTokenGenerator}<br>
+ * <br>
+ * Each thread has its own DRBG seeded only once, so generating a token does
+ * not contend with other threads or block on seeding.<br>
+ * 144 random bits are encoded in Base64url(24 chars) without BigInteger.<br>
+ * Thread-safe
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public final class DefaultStateTokenGenerator implements StateTokenGenerator {
+
+    private static final DefaultStateTokenGenerator instance = new DefaultStateTokenGenerator();
+
+    // 144bits is a multiple of 6 and 8,so encoded without padding
+    private static final int TOKEN_BYTES = 18;
+    private static final int TOKEN_CHARS = TOKEN_BYTES / 3 * 4;
+
+    private static final String[] RANDOM_ALGORITHMS = { "DRBG", "SHA1PRNG" };
+
+    private static final char[] BASE64URL = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+    private final ThreadLocal<Buffer> mBuffer = new ThreadLocal<Buffer>() {
+        @Override
+        protected Buffer initialValue() {
+            return new Buffer();
+        }
+    };
+
+    /**
+     * Per-thread random and work buffers
+     */
+    private static final class Buffer {
+        final SecureRandom random = createRandom();
+        final byte[] bytes = new byte[TOKEN_BYTES];
+        final char[] chars = new char[TOKEN_CHARS];
+    }
+
+    private DefaultStateTokenGenerator() {
+    }
+
+    /**
+     * Returns DRBG("DRBG" on Java9+,"SHA1PRNG" on Java8)<br>
+     * Unlike "NativePRNG",they don't share a global lock between instances.
+     * 
+     * @return
+     */
+    private static SecureRandom createRandom() {
+
+        for (String algorithm : RANDOM_ALGORITHMS) {
+            try {
+                return SecureRandom.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                // try next
+            }
+        }
+        return new SecureRandom();
+    }
+
+    public static DefaultStateTokenGenerator getInstance() {
+        return instance;
+    }
+
+    @Override
+    public String generate() {
+
+        final Buffer buffer = mBuffer.get();
+
+        final byte[] bytes = buffer.bytes;
+        final char[] chars = buffer.chars;
+
+        buffer.random.nextBytes(bytes);
+
+        int j = 0;
+
+        for (int i = 0; i < TOKEN_BYTES; i += 3) {
+
+            final int bits = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | (bytes[i + 2] & 0xff);
+
+            chars[j++] = BASE64URL[(bits >>> 18) & 0x3f];
+            chars[j++] = BASE64URL[(bits >>> 12) & 0x3f];
+            chars[j++] = BASE64URL[(bits >>> 6) & 0x3f];
+            chars[j++] = BASE64URL[bits & 0x3f];
+        }
+
+        return new String(chars);
+    }
+}
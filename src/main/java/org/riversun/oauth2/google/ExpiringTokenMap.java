@@ -0,0 +1,153 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bounded map of entries keyed by {@link TokenKey} which expire<br>
+ * Shared by the token caches.When the map is full,expired entries are swept
+ * and then arbitrary entries are evicted.<br>
+ * Thread-safe
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+final class ExpiringTokenMap<E extends ExpiringTokenMap.Entry> {
+
+    private final int mMaxEntries;
+
+    private final ConcurrentHashMap<TokenKey, E> mEntries;
+
+    // only one thread sweeps at a time
+    private final AtomicBoolean mEvicting = new AtomicBoolean(false);
+
+    /**
+     * Entry valid until mExpiresAt
+     */
+    static class Entry {
+
+        final long mExpiresAt;
+
+        Entry(long expiresAt) {
+            mExpiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * @param maxEntries
+     *            max number of entries
+     */
+    ExpiringTokenMap(int maxEntries) {
+
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+
+        mMaxEntries = maxEntries;
+        mEntries = new ConcurrentHashMap<TokenKey, E>(Math.min(maxEntries, 1 << 16));
+    }
+
+    /**
+     * Returns the entry unless expired
+     * 
+     * @param key
+     * @param now
+     * @return null if absent or expired
+     */
+    E get(TokenKey key, long now) {
+
+        final E entry = mEntries.get(key);
+
+        if (entry == null) {
+            return null;
+        }
+
+        if (now < entry.mExpiresAt) {
+            return entry;
+        }
+
+        mEntries.remove(key, entry);
+        return null;
+    }
+
+    /**
+     * Put the entry unless already expired,evicting others if full
+     * 
+     * @param key
+     * @param entry
+     * @param now
+     */
+    void put(TokenKey key, E entry, long now) {
+
+        if (entry.mExpiresAt <= now) {
+            return;
+        }
+
+        if (mEntries.size() >= mMaxEntries && mEvicting.compareAndSet(false, true)) {
+            try {
+                evict(now);
+            } finally {
+                mEvicting.set(false);
+            }
+        }
+
+        mEntries.put(key, entry);
+    }
+
+    /**
+     * Remove expired entries,and arbitrary entries if still full
+     * 
+     * @param now
+     */
+    private void evict(long now) {
+
+        final Iterator<Map.Entry<TokenKey, E>> it = mEntries.entrySet().iterator();
+
+        while (it.hasNext()) {
+            if (it.next().getValue().mExpiresAt <= now) {
+                it.remove();
+            }
+        }
+
+        // make room for a while not to sweep on every put
+        final int target = mMaxEntries - Math.max(1, mMaxEntries / 8);
+
+        final Iterator<TokenKey> keys = mEntries.keySet().iterator();
+
+        while (mEntries.size() > target && keys.hasNext()) {
+            keys.next();
+            keys.remove();
+        }
+    }
+
+    void clear() {
+        mEntries.clear();
+    }
+
+    int size() {
+        return mEntries.size();
+    }
+}
@@ -0,0 +1,490 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Durable {@link RefreshTokenStore} backed by an append-only log file<br>
+ * <br>
+ * Every save/remove is appended to a memory-mapped log, and all tokens are
+ * also kept on-memory,so load does not touch the disk.<br>
+ * On open,the log is replayed up to the last complete record.<br>
+ * <br>
+ * A background thread periodically flushes the log to the disk and compacts
+ * it (rewrites only live tokens) when it has grown to more than twice the
+ * size of live tokens.<br>
+ * Call {@link FileRefreshTokenStore#close()} on shutdown.<br>
+ * Thread-safe
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public class FileRefreshTokenStore implements RefreshTokenStore, Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(FileRefreshTokenStore.class.getName());
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // "RTK1"
+    private static final int MAGIC = 0x52544B31;
+    private static final int FILE_HEADER_SIZE = 4;
+
+    // int length + int crc
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final byte OP_SAVE = 1;
+    private static final byte OP_REMOVE = 2;
+
+    private static final int INITIAL_CAPACITY = 1024 * 1024;
+
+    // don't compact small logs
+    private static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+
+    private static final long DEFAULT_SYNC_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    private final File mFile;
+
+    private final Map<String, String> mTokens = new HashMap<String, String>();
+
+    private final ScheduledExecutorService mScheduler;
+
+    private RandomAccessFile mRandomAccessFile;
+    private FileChannel mChannel;
+    private MappedByteBuffer mBuffer;
+
+    // position where the next record is written
+    private int mWritePosition;
+
+    // size of records if only live tokens were written
+    private long mLiveBytes;
+
+    private boolean mClosed = false;
+
+    /**
+     * Open store with default sync interval
+     * 
+     * @param file
+     * @throws IOException
+     */
+    public FileRefreshTokenStore(File file) throws IOException {
+        this(file, DEFAULT_SYNC_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Open store
+     * 
+     * @param file
+     *            log file.Created if not exists.
+     * @param syncIntervalMillis
+     *            interval of flushing to the disk and checking compaction
+     * @throws IOException
+     */
+    public FileRefreshTokenStore(File file, long syncIntervalMillis) throws IOException {
+
+        mFile = file;
+
+        open();
+
+        mScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "oauth2-refresh-token-store");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        mScheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sync();
+                } catch (Exception e) {
+                    LOGGER.warning("Failed to sync refresh token store " + mFile + " " + e);
+                }
+            }
+        }, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized String load(String userId) {
+        return mTokens.get(userId);
+    }
+
+    @Override
+    public synchronized Map<String, String> loadAll(Collection<String> userIds) {
+
+        final Map<String, String> result = new HashMap<String, String>();
+
+        for (String userId : userIds) {
+            final String refreshToken = mTokens.get(userId);
+            if (refreshToken != null) {
+                result.put(userId, refreshToken);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void save(String userId, String refreshToken) throws IOException {
+        ensureOpen();
+        append(OP_SAVE, userId, refreshToken);
+        apply(OP_SAVE, userId, refreshToken);
+    }
+
+    @Override
+    public synchronized void saveAll(Map<String, String> refreshTokens) throws IOException {
+        ensureOpen();
+        for (Entry<String, String> entry : refreshTokens.entrySet()) {
+            append(OP_SAVE, entry.getKey(), entry.getValue());
+            apply(OP_SAVE, entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public synchronized void remove(String userId) throws IOException {
+        ensureOpen();
+        if (mTokens.containsKey(userId)) {
+            append(OP_REMOVE, userId, null);
+            apply(OP_REMOVE, userId, null);
+        }
+    }
+
+    /**
+     * Returns number of stored tokens
+     * 
+     * @return
+     */
+    public synchronized int size() {
+        return mTokens.size();
+    }
+
+    /**
+     * Flush log to the disk and compact it if needed
+     * 
+     * @throws IOException
+     */
+    public synchronized void sync() throws IOException {
+
+        if (mClosed) {
+            return;
+        }
+
+        mBuffer.force();
+
+        if (mWritePosition > MIN_COMPACTION_SIZE && mWritePosition > (FILE_HEADER_SIZE + mLiveBytes) * 2) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrite log with live tokens only
+     * 
+     * @throws IOException
+     */
+    public synchronized void compact() throws IOException {
+
+        ensureOpen();
+
+        LOGGER.fine("compact " + mFile + " size=" + mWritePosition + " liveBytes=" + mLiveBytes);
+
+        final File tmpFile = new File(mFile.getPath() + ".compact");
+
+        final RandomAccessFile tmp = new RandomAccessFile(tmpFile, "rw");
+
+        boolean written = false;
+
+        try {
+            tmp.setLength(0);
+
+            final FileChannel tmpChannel = tmp.getChannel();
+
+            final ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.flip();
+            writeFully(tmpChannel, header);
+
+            for (Entry<String, String> entry : mTokens.entrySet()) {
+                writeFully(tmpChannel, encode(OP_SAVE, entry.getKey(), entry.getValue()));
+            }
+
+            tmpChannel.force(true);
+            written = true;
+        } finally {
+            tmp.close();
+
+            if (!written) {
+                Files.deleteIfExists(tmpFile.toPath());
+            }
+        }
+
+        closeFile();
+
+        try {
+            Files.move(tmpFile.toPath(), mFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // ex. on Windows,a file can't be replaced while the old mapping
+            // is not yet released by GC.The log is left as it is.
+            Files.deleteIfExists(tmpFile.toPath());
+            throw e;
+        } finally {
+            // remap the compacted log,or the original one if not moved
+            reopen();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+
+        if (mClosed) {
+            return;
+        }
+
+        mScheduler.shutdownNow();
+
+        mBuffer.force();
+        closeFile();
+
+        mClosed = true;
+    }
+
+    /**
+     * Open the file again after it was closed for compaction<br>
+     * If failed,the store is closed so that later calls fail with
+     * IOException.
+     * 
+     * @throws IOException
+     */
+    private void reopen() throws IOException {
+
+        try {
+            open();
+        } catch (IOException e) {
+            mClosed = true;
+            mScheduler.shutdownNow();
+            try {
+                closeFile();
+            } catch (IOException closeError) {
+                e.addSuppressed(closeError);
+            }
+            throw e;
+        }
+    }
+
+    private void open() throws IOException {
+
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        mChannel = mRandomAccessFile.getChannel();
+
+        final boolean isNew = mChannel.size() == 0;
+
+        map(Math.max((int) mChannel.size(), INITIAL_CAPACITY));
+
+        if (isNew) {
+            mBuffer.putInt(0, MAGIC);
+            mWritePosition = FILE_HEADER_SIZE;
+            return;
+        }
+
+        if (mBuffer.getInt(0) != MAGIC) {
+            closeFile();
+            throw new IOException("Not a refresh token store file " + mFile);
+        }
+
+        replay();
+    }
+
+    private void map(int capacity) throws IOException {
+        // the file is extended to the capacity filled with 0
+        mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private void closeFile() throws IOException {
+        // mapped buffer itself is released by GC
+        mBuffer = null;
+        mChannel = null;
+        mRandomAccessFile.close();
+    }
+
+    /**
+     * Read records from the head and rebuild tokens.<br>
+     * Stops at the first empty or broken record(ex. torn write on crash).
+     */
+    private void replay() {
+
+        mTokens.clear();
+        mLiveBytes = 0;
+
+        final int limit = mBuffer.capacity();
+
+        int position = FILE_HEADER_SIZE;
+
+        while (position + RECORD_HEADER_SIZE <= limit) {
+
+            final int length = mBuffer.getInt(position);
+
+            if (length <= 0 || position + RECORD_HEADER_SIZE + length > limit) {
+                break;
+            }
+
+            final int crc = mBuffer.getInt(position + 4);
+
+            final byte[] payload = new byte[length];
+            final ByteBuffer view = mBuffer.duplicate();
+            view.position(position + RECORD_HEADER_SIZE);
+            view.get(payload);
+
+            if (crc != crc32(payload)) {
+                LOGGER.warning("Broken record found at " + position + " in " + mFile + ". Following records are ignored.");
+                break;
+            }
+
+            final ByteBuffer record = ByteBuffer.wrap(payload);
+            final byte op = record.get();
+            final String userId = readString(record);
+            final String refreshToken = readString(record);
+
+            apply(op, userId, refreshToken);
+
+            position += RECORD_HEADER_SIZE + length;
+        }
+
+        mWritePosition = position;
+
+        LOGGER.fine("replayed " + mTokens.size() + " tokens from " + mFile);
+    }
+
+    private void append(byte op, String userId, String refreshToken) throws IOException {
+
+        final ByteBuffer record = encode(op, userId, refreshToken);
+        final int size = record.remaining();
+
+        if (mWritePosition + size > mBuffer.capacity()) {
+            map(Math.max(mBuffer.capacity() * 2, mWritePosition + size));
+        }
+
+        final ByteBuffer view = mBuffer.duplicate();
+        view.position(mWritePosition);
+        view.put(record);
+
+        mWritePosition += size;
+    }
+
+    private void apply(byte op, String userId, String refreshToken) {
+
+        final String previous;
+
+        if (op == OP_SAVE) {
+            previous = mTokens.put(userId, refreshToken);
+            mLiveBytes += recordSize(userId, refreshToken);
+        } else {
+            previous = mTokens.remove(userId);
+        }
+
+        if (previous != null) {
+            mLiveBytes -= recordSize(userId, previous);
+        }
+    }
+
+    private static ByteBuffer encode(byte op, String userId, String refreshToken) {
+
+        final byte[] key = userId.getBytes(UTF_8);
+        final byte[] value = refreshToken == null ? new byte[0] : refreshToken.getBytes(UTF_8);
+
+        if (key.length > Character.MAX_VALUE || value.length > Character.MAX_VALUE) {
+            throw new IllegalArgumentException("userId or refreshToken is too long");
+        }
+
+        final byte[] payload = new byte[1 + 2 + key.length + 2 + value.length];
+
+        final ByteBuffer payloadBuffer = ByteBuffer.wrap(payload);
+        payloadBuffer.put(op);
+        payloadBuffer.putChar((char) key.length);
+        payloadBuffer.put(key);
+        payloadBuffer.putChar((char) value.length);
+        payloadBuffer.put(value);
+
+        final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+        record.putInt(payload.length);
+        record.putInt(crc32(payload));
+        record.put(payload);
+        record.flip();
+
+        return record;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+
+        final int length = buffer.getChar();
+
+        if (length == 0) {
+            return null;
+        }
+
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static long recordSize(String userId, String refreshToken) {
+        // approximation for ASCII,which is enough to decide compaction
+        return RECORD_HEADER_SIZE + 1 + 2 + userId.length() + 2 + refreshToken.length();
+    }
+
+    private static int crc32(byte[] bytes) {
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (mClosed) {
+            throw new IOException("Refresh token store is already closed " + mFile);
+        }
+    }
+}
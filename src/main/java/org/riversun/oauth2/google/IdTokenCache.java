@@ -0,0 +1,175 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleIdToken;
+
+/**
+ * Bounded cache of verified idTokens used for "Authorization: Bearer"
+ * requests<br>
+ * <br>
+ * An idToken is verified(issuer,expiration,audience and signature with the
+ * keys of {@link OAuthKeyStore}) only on the first use,and after that it is
+ * served from the cache until its "exp".<br>
+ * Tokens are keyed by their SHA-256 hash,so raw tokens are not kept as keys.
+ * <br>
+ * When the cache is full,expired entries are swept and then arbitrary entries
+ * are evicted.<br>
+ * Thread-safe
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public final class IdTokenCache {
+
+    private static final Logger LOGGER = Logger.getLogger(IdTokenCache.class.getName());
+
+    private final ExpiringTokenMap<Entry> mEntries;
+
+    // null means client id of OAuthSecrets
+    private volatile Collection<String> mAudiences = null;
+
+    private final LongAdder mHitCount = new LongAdder();
+    private final LongAdder mMissCount = new LongAdder();
+
+    /**
+     * @param maxEntries
+     *            max number of verified tokens to cache
+     */
+    public IdTokenCache(int maxEntries) {
+        mEntries = new ExpiringTokenMap<Entry>(maxEntries);
+    }
+
+    /**
+     * Set allowed audiences("aud" claim) of idToken<br>
+     * Client id of {@link OAuthSecrets} is used by default.
+     * 
+     * @param audiences
+     * @return
+     */
+    public IdTokenCache setAudiences(Collection<String> audiences) {
+        mAudiences = audiences;
+        return IdTokenCache.this;
+    }
+
+    /**
+     * Returns verified idToken
+     * 
+     * @param idTokenString
+     *            raw idToken(JWT)
+     * @return null if the token is malformed or invalid
+     * @throws IOException
+     *             public keys can't be loaded
+     * @throws GeneralSecurityException
+     */
+    public GoogleIdToken verify(String idTokenString) throws IOException, GeneralSecurityException {
+
+        final long now = System.currentTimeMillis();
+
+        final TokenKey key = TokenKey.of(idTokenString);
+
+        final Entry entry = mEntries.get(key, now);
+
+        if (entry != null) {
+            mHitCount.increment();
+            return entry.mIdToken;
+        }
+
+        mMissCount.increment();
+
+        final GoogleIdToken idToken;
+
+        try {
+            idToken = GoogleIdToken.parse(OAuthUtil.JSON_FACTORY, idTokenString);
+        } catch (IOException e) {
+            LOGGER.fine("Malformed idToken " + e);
+            return null;
+        } catch (IllegalArgumentException e) {
+            LOGGER.fine("Malformed idToken " + e);
+            return null;
+        }
+
+        final Long expirationTimeSeconds = idToken.getPayload().getExpirationTimeSeconds();
+
+        if (expirationTimeSeconds == null || !idToken.verifyAudience(getAudiences())) {
+            return null;
+        }
+
+        if (!OAuthHandler.verifyIdToken(idToken)) {
+            return null;
+        }
+
+        mEntries.put(key, new Entry(idToken, expirationTimeSeconds * 1000), now);
+
+        return idToken;
+    }
+
+    private Collection<String> getAudiences() throws IOException {
+
+        final Collection<String> audiences = mAudiences;
+
+        if (audiences != null) {
+            return audiences;
+        }
+
+        return Collections.singletonList(OAuthSecrets.getClientSecrets().getDetails().getClientId());
+    }
+
+    /**
+     * Remove all cached tokens
+     */
+    public void clear() {
+        mEntries.clear();
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    public long getHitCount() {
+        return mHitCount.sum();
+    }
+
+    public long getMissCount() {
+        return mMissCount.sum();
+    }
+
+    /**
+     * Verified idToken and when it expires
+     */
+    private static final class Entry extends ExpiringTokenMap.Entry {
+
+        final GoogleIdToken mIdToken;
+
+        Entry(GoogleIdToken idToken, long expiresAt) {
+            super(expiresAt);
+            mIdToken = idToken;
+        }
+    }
+}
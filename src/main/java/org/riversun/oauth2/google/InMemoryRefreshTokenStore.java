@@ -0,0 +1,108 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Bounded on-memory {@link RefreshTokenStore}<br>
+ * <br>
+ * When the number of tokens exceeds maxEntries, the least recently used one
+ * is evicted.Tokens are lost on restart.<br>
+ * Thread-safe
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public class InMemoryRefreshTokenStore implements RefreshTokenStore {
+
+    private final Map<String, String> mTokens;
+
+    /**
+     * @param maxEntries
+     *            max number of refresh tokens kept
+     */
+    public InMemoryRefreshTokenStore(final int maxEntries) {
+
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive. maxEntries=" + maxEntries);
+        }
+
+        // access-ordered for LRU eviction
+        mTokens = new LinkedHashMap<String, String>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Entry<String, String> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    @Override
+    public synchronized String load(String userId) {
+        return mTokens.get(userId);
+    }
+
+    @Override
+    public synchronized Map<String, String> loadAll(Collection<String> userIds) {
+
+        final Map<String, String> result = new HashMap<String, String>();
+
+        for (String userId : userIds) {
+            final String refreshToken = mTokens.get(userId);
+            if (refreshToken != null) {
+                result.put(userId, refreshToken);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void save(String userId, String refreshToken) {
+        mTokens.put(userId, refreshToken);
+    }
+
+    @Override
+    public synchronized void saveAll(Map<String, String> refreshTokens) {
+        mTokens.putAll(refreshTokens);
+    }
+
+    @Override
+    public synchronized void remove(String userId) {
+        mTokens.remove(userId);
+    }
+
+    /**
+     * Returns number of stored tokens
+     * 
+     * @return
+     */
+    public synchronized int size() {
+        return mTokens.size();
+    }
+}
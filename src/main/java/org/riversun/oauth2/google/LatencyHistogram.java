@@ -0,0 +1,202 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of latencies in nanos<br>
+ * <br>
+ * Values are counted in log-linear buckets like HdrHistogram(4 sub buckets
+ * per power of 2,so the relative error of percentiles is within 25%).<br>
+ * Recording doesn't allocate and doesn't lock.<br>
+ * Thread-safe
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // values up to 2^40 nanos(about 18 minutes) are distinguished
+    private static final int MAX_EXPONENT = 40;
+
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+
+    private final LongAdder mCount = new LongAdder();
+    private final LongAdder mSum = new LongAdder();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * Record latency
+     * 
+     * @param nanos
+     */
+    public void record(long nanos) {
+
+        final long value = nanos < 0 ? 0 : nanos;
+
+        mBuckets.incrementAndGet(indexOf(value));
+        mCount.increment();
+        mSum.add(value);
+
+        long max = mMax.get();
+
+        while (value > max) {
+            if (mMax.compareAndSet(max, value)) {
+                break;
+            }
+            max = mMax.get();
+        }
+    }
+
+    /**
+     * Record latency since the start time
+     * 
+     * @param startNanos
+     *            value of System.nanoTime() at the start
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    static int indexOf(long value) {
+
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the smallest value counted in the bucket
+     * 
+     * @param index
+     * @return
+     */
+    static long lowerBoundOf(int index) {
+
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+
+        final int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final int subBucket = index % SUB_BUCKETS;
+
+        return (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    public long getCount() {
+        return mCount.sum();
+    }
+
+    public long getSumNanos() {
+        return mSum.sum();
+    }
+
+    public long getMaxNanos() {
+        return mMax.get();
+    }
+
+    public double getMeanNanos() {
+
+        final long count = mCount.sum();
+
+        return count == 0 ? 0 : (double) mSum.sum() / count;
+    }
+
+    /**
+     * Returns approximate value at the percentile
+     * 
+     * @param percentile
+     *            0.0-100.0
+     * @return
+     */
+    public long getPercentileNanos(double percentile) {
+
+        long total = 0;
+
+        final long[] counts = new long[BUCKETS];
+
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = mBuckets.get(i);
+            total += counts[i];
+        }
+
+        if (total == 0) {
+            return 0;
+        }
+
+        final long rank = Math.max(1, (long) Math.ceil(total * Math.min(100.0, Math.max(0.0, percentile)) / 100.0));
+
+        long cumulative = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+
+            cumulative += counts[i];
+
+            if (cumulative >= rank) {
+
+                if (i == BUCKETS - 1) {
+                    return mMax.get();
+                }
+
+                // middle of the bucket
+                final long lower = lowerBoundOf(i);
+                final long upper = lowerBoundOf(i + 1);
+
+                return Math.min(lower + (upper - lower) / 2, mMax.get());
+            }
+        }
+
+        return mMax.get();
+    }
+
+    /**
+     * Reset all values
+     */
+    public void reset() {
+
+        for (int i = 0; i < BUCKETS; i++) {
+            mBuckets.set(i, 0);
+        }
+
+        mCount.reset();
+        mSum.reset();
+        mMax.set(0);
+    }
+}
@@ -22,7 +22,12 @@
  */
 package org.riversun.oauth2.google;
 
-import java.util.Calendar;
+import java.text.MessageFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.MissingResourceException;
+import java.util.ResourceBundle;
 import java.util.logging.Formatter;
 import java.util.logging.LogRecord;
 
@@ -47,22 +52,61 @@ import java.util.logging.LogRecord;
  * java.util.logging.ConsoleHandler.formatter =org.riversun.google.oauth2.LogFormatter
  * </pre>
  * 
+ * Formatting doesn't lock,so this formatter can be shared by threads.To
+ * format records off the request threads,use {@link AsyncLogHandler}.
+ * 
  * @author Tom Misawa (riversun.org@gmail.com)
  * 
  */
 public class LogFormatter extends Formatter {
 
-	private Calendar mCalendar = Calendar.getInstance();
+	private static final int LEVEL_WIDTH = 6;
+
+	// builders larger than this are not kept for reuse
+	private static final int MAX_REUSABLE_CAPACITY = 8192;
+
+	private static final ThreadLocal<StringBuilder> sBuilder = new ThreadLocal<StringBuilder>() {
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder(256);
+		}
+	};
 
-	public synchronized String format(LogRecord record) {
+	private final DateTimeFormatter mTimestampFormatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS")
+			.withZone(ZoneId.systemDefault());
+
+	@Override
+	public String format(LogRecord record) {
 
 		final String sourceClassName = record.getSourceClassName();
 		final String sourceMethodName = record.getSourceMethodName();
 
-		mCalendar.setTimeInMillis(record.getMillis());
+		// parameters' toString() may log on this thread through this
+		// formatter,so call them before the shared builder is filled
+		final String message = formatMessage(record);
+
+		final Throwable thrown = record.getThrown();
+		final String thrownText = thrown != null ? thrown.toString() : null;
+
+		StringBuilder sb = sBuilder.get();
 
-		final StringBuilder sb = new StringBuilder();
-		sb.append(String.format("%1$tF %1$tT.%1$tL [%2$6s] ", mCalendar, record.getLevel().toString()));
+		if (sb.capacity() > MAX_REUSABLE_CAPACITY) {
+			sb = new StringBuilder(256);
+			sBuilder.set(sb);
+		}
+
+		sb.setLength(0);
+
+		mTimestampFormatter.formatTo(Instant.ofEpochMilli(record.getMillis()), sb);
+
+		final String levelName = record.getLevel().toString();
+
+		sb.append(" [");
+		for (int i = levelName.length(); i < LEVEL_WIDTH; i++) {
+			sb.append(' ');
+		}
+		sb.append(levelName);
+		sb.append("] ");
 
 		if (sourceClassName != null) {
 			sb.append(sourceClassName);
@@ -73,18 +117,53 @@ public class LogFormatter extends Formatter {
 		sb.append(" ");
 
 		if (sourceMethodName != null) {
-			sb.append(String.format("#%s", sourceMethodName));
+			sb.append('#').append(sourceMethodName);
 		}
 		sb.append(" ");
-		sb.append(formatMessage(record));
+		sb.append(message);
 		sb.append("\n");
 
-		Throwable thrown = record.getThrown();
-
-		if (thrown != null) {
-			sb.append(record.getThrown());
+		if (thrownText != null) {
+			sb.append(thrownText);
 		}
 
 		return sb.toString();
 	}
+
+	/**
+	 * Localize and format the message like {@link Formatter#formatMessage}
+	 * without locking the formatter
+	 */
+	@Override
+	public String formatMessage(LogRecord record) {
+
+		String message = record.getMessage();
+
+		final ResourceBundle bundle = record.getResourceBundle();
+
+		if (bundle != null && message != null) {
+			try {
+				message = bundle.getString(message);
+			} catch (MissingResourceException e) {
+				// use the message as it is
+			}
+		}
+
+		final Object[] parameters = record.getParameters();
+
+		if (message == null || parameters == null || parameters.length == 0) {
+			return message;
+		}
+
+		if (message.indexOf("{0") < 0 && message.indexOf("{1") < 0 && message.indexOf("{2") < 0
+				&& message.indexOf("{3") < 0) {
+			return message;
+		}
+
+		try {
+			return MessageFormat.format(message, parameters);
+		} catch (Exception e) {
+			return message;
+		}
+	}
 }
\ No newline at end of file
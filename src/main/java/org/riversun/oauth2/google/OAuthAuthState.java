@@ -0,0 +1,253 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Authentication state of a user after OAuth2 flow<br>
+ * <br>
+ * Stored as a single session attribute(or in the encrypted cookie),so a login
+ * marks the session dirty only once and session replication sends one
+ * compact record instead of several attributes.<br>
+ * Immutable.Use "with" methods to get a modified copy.
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public final class OAuthAuthState implements Externalizable {
+
+    private static final long serialVersionUID = 1L;
+
+    // version of externalized form
+    private static final int VERSION = 1;
+
+    private static final int FLAG_DONE = 1;
+    private static final int FLAG_USER_ID = 1 << 1;
+    private static final int FLAG_ACCESS_TOKEN = 1 << 2;
+    private static final int FLAG_REFRESH_TOKEN = 1 << 3;
+    private static final int FLAG_EXPIRES_AT = 1 << 4;
+    private static final int FLAG_AUTHENTICATED_AT = 1 << 5;
+    private static final int FLAG_ID_TOKEN_EXPIRES_AT = 1 << 6;
+
+    // not final only for Externalizable
+    private String mUserId;
+    private String mAccessToken;
+    private String mRefreshToken;
+    private Long mAccessTokenExpiresAt;
+    private boolean mOAuth2Done;
+    private Long mAuthenticatedAt;
+    private Long mIdTokenExpiresAt;
+
+    /**
+     * For deserialization only
+     */
+    public OAuthAuthState() {
+    }
+
+    /**
+     * @param userId
+     *            unique user id(subject)
+     * @param accessToken
+     * @param refreshToken
+     *            nullable
+     * @param accessTokenExpiresAt
+     *            epoch millis(nullable)
+     * @param oauth2Done
+     *            true if OAuth2 flow has been passed
+     */
+    public OAuthAuthState(String userId, String accessToken, String refreshToken, Long accessTokenExpiresAt, boolean oauth2Done) {
+        this(userId, accessToken, refreshToken, accessTokenExpiresAt, oauth2Done, null, null);
+    }
+
+    /**
+     * @param userId
+     *            unique user id(subject)
+     * @param accessToken
+     * @param refreshToken
+     *            nullable
+     * @param accessTokenExpiresAt
+     *            epoch millis(nullable)
+     * @param oauth2Done
+     *            true if OAuth2 flow has been passed
+     * @param authenticatedAt
+     *            epoch millis when the user was authenticated by Google
+     *            (nullable)
+     * @param idTokenExpiresAt
+     *            epoch millis of "exp" claim of idToken(nullable)
+     */
+    public OAuthAuthState(String userId, String accessToken, String refreshToken, Long accessTokenExpiresAt, boolean oauth2Done, Long authenticatedAt,
+            Long idTokenExpiresAt) {
+        mUserId = userId;
+        mAccessToken = accessToken;
+        mRefreshToken = refreshToken;
+        mAccessTokenExpiresAt = accessTokenExpiresAt;
+        mOAuth2Done = oauth2Done;
+        mAuthenticatedAt = authenticatedAt;
+        mIdTokenExpiresAt = idTokenExpiresAt;
+    }
+
+    public String getUserId() {
+        return mUserId;
+    }
+
+    public String getAccessToken() {
+        return mAccessToken;
+    }
+
+    public String getRefreshToken() {
+        return mRefreshToken;
+    }
+
+    public Long getAccessTokenExpiresAt() {
+        return mAccessTokenExpiresAt;
+    }
+
+    public boolean isOAuth2Done() {
+        return mOAuth2Done;
+    }
+
+    public Long getAuthenticatedAt() {
+        return mAuthenticatedAt;
+    }
+
+    public Long getIdTokenExpiresAt() {
+        return mIdTokenExpiresAt;
+    }
+
+    public OAuthAuthState withOAuth2Done(boolean oauth2Done) {
+        return new OAuthAuthState(mUserId, mAccessToken, mRefreshToken, mAccessTokenExpiresAt, oauth2Done, mAuthenticatedAt, mIdTokenExpiresAt);
+    }
+
+    public OAuthAuthState withAccessToken(String accessToken, Long accessTokenExpiresAt) {
+        return new OAuthAuthState(mUserId, accessToken, mRefreshToken, accessTokenExpiresAt, mOAuth2Done, mAuthenticatedAt, mIdTokenExpiresAt);
+    }
+
+    /**
+     * Write compact binary form
+     * 
+     * @param out
+     * @throws IOException
+     */
+    void writeTo(DataOutput out) throws IOException {
+
+        int flags = 0;
+
+        if (mOAuth2Done) {
+            flags |= FLAG_DONE;
+        }
+        if (mUserId != null) {
+            flags |= FLAG_USER_ID;
+        }
+        if (mAccessToken != null) {
+            flags |= FLAG_ACCESS_TOKEN;
+        }
+        if (mRefreshToken != null) {
+            flags |= FLAG_REFRESH_TOKEN;
+        }
+        if (mAccessTokenExpiresAt != null) {
+            flags |= FLAG_EXPIRES_AT;
+        }
+        if (mAuthenticatedAt != null) {
+            flags |= FLAG_AUTHENTICATED_AT;
+        }
+        if (mIdTokenExpiresAt != null) {
+            flags |= FLAG_ID_TOKEN_EXPIRES_AT;
+        }
+
+        out.writeByte(flags);
+
+        if (mUserId != null) {
+            out.writeUTF(mUserId);
+        }
+        if (mAccessToken != null) {
+            out.writeUTF(mAccessToken);
+        }
+        if (mRefreshToken != null) {
+            out.writeUTF(mRefreshToken);
+        }
+        if (mAccessTokenExpiresAt != null) {
+            out.writeLong(mAccessTokenExpiresAt);
+        }
+        if (mAuthenticatedAt != null) {
+            out.writeLong(mAuthenticatedAt);
+        }
+        if (mIdTokenExpiresAt != null) {
+            out.writeLong(mIdTokenExpiresAt);
+        }
+    }
+
+    /**
+     * Read compact binary form written by {@link #writeTo(DataOutput)}
+     * 
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    static OAuthAuthState readFrom(DataInput in) throws IOException {
+        final OAuthAuthState state = new OAuthAuthState();
+        state.readFields(in);
+        return state;
+    }
+
+    private void readFields(DataInput in) throws IOException {
+
+        final int flags = in.readUnsignedByte();
+
+        mOAuth2Done = (flags & FLAG_DONE) != 0;
+        mUserId = (flags & FLAG_USER_ID) != 0 ? in.readUTF() : null;
+        mAccessToken = (flags & FLAG_ACCESS_TOKEN) != 0 ? in.readUTF() : null;
+        mRefreshToken = (flags & FLAG_REFRESH_TOKEN) != 0 ? in.readUTF() : null;
+        mAccessTokenExpiresAt = (flags & FLAG_EXPIRES_AT) != 0 ? in.readLong() : null;
+        mAuthenticatedAt = (flags & FLAG_AUTHENTICATED_AT) != 0 ? in.readLong() : null;
+        mIdTokenExpiresAt = (flags & FLAG_ID_TOKEN_EXPIRES_AT) != 0 ? in.readLong() : null;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeByte(VERSION);
+        writeTo(out);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+
+        final int version = in.readUnsignedByte();
+
+        if (version != VERSION) {
+            throw new IOException("Unsupported version " + version);
+        }
+
+        readFields(in);
+    }
+
+    @Override
+    public String toString() {
+        return "OAuthAuthState [userId=" + mUserId + ", accessTokenExpiresAt=" + mAccessTokenExpiresAt + ", oauth2Done=" + mOAuth2Done + ", authenticatedAt=" + mAuthenticatedAt
+                + ", idTokenExpiresAt=" + mIdTokenExpiresAt + "]";
+    }
+}
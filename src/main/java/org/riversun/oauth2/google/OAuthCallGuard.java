@@ -0,0 +1,566 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponseException;
+
+/**
+ * Bulkhead,circuit breaker and retry around calls to Google's endpoints<br>
+ * <br>
+ * When Google's endpoints slow down,request threads must not pile up behind
+ * them.
+ * <ol>
+ * <li>Bulkhead:at most maxConcurrentCalls calls are in flight,and at most
+ * maxWaitingCalls callers wait up to maxWaitMillis for a slot.Others are
+ * rejected immediately.</li>
+ * <li>Circuit breaker:after failureThreshold consecutive failures,calls are
+ * rejected without accessing Google for openMillis.Then one probe call is let
+ * through(half-open),and the circuit is closed if it succeeds.</li>
+ * <li>Retry:calls failed before reaching Google(connection refused,unknown
+ * host) or with 429/503 are retried up to maxRetries times with exponential
+ * backoff and full jitter.Timeouts and 502/504 are not retried,because the
+ * request may have reached Google and the authorization code may have been
+ * redeemed.</li>
+ * </ol>
+ * Rejected calls throw {@link OAuthCallRejectedException}.<br>
+ * Errors returned by Google like "invalid_grant",and non-I/O exceptions thrown
+ * by the call(ex. GeneralSecurityException while parsing the response) are
+ * neither retried nor counted as failures.<br>
+ * Set it by {@link OAuthUtil#setCallGuard(OAuthCallGuard)} before OAuth2-flow
+ * starts.
+ * 
+ * <pre>
+ * OAuthUtil.setCallGuard(new OAuthCallGuard.Builder()
+ *         .setMaxConcurrentCalls(32)
+ *         .setFailureThreshold(5)
+ *         .setOpenMillis(10000)
+ *         .build());
+ * </pre>
+ * 
+ * Thread-safe
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public final class OAuthCallGuard {
+
+    private static final Logger LOGGER = Logger.getLogger(OAuthCallGuard.class.getName());
+
+    /**
+     * State of circuit breaker
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int mMaxConcurrentCalls;
+    private final int mMaxWaitingCalls;
+    private final long mMaxWaitMillis;
+    private final int mFailureThreshold;
+    private final long mOpenMillis;
+    private final int mMaxRetries;
+    private final long mInitialBackoffMillis;
+    private final long mMaxBackoffMillis;
+    private final int mTimeoutMillis;
+
+    private final Semaphore mPermits;
+    private final AtomicInteger mWaitingCalls = new AtomicInteger();
+
+    // guarded by this
+    private State mState = State.CLOSED;
+    private int mConsecutiveFailures = 0;
+    private long mOpenedAtNanos = 0;
+    private boolean mProbeInFlight = false;
+
+    private final LongAdder mBulkheadRejections = new LongAdder();
+    private final LongAdder mCircuitOpenRejections = new LongAdder();
+    private final LongAdder mRetries = new LongAdder();
+    private final LongAdder mFailures = new LongAdder();
+
+    private OAuthCallGuard(Builder builder) {
+        mMaxConcurrentCalls = builder.mMaxConcurrentCalls;
+        mMaxWaitingCalls = builder.mMaxWaitingCalls;
+        mMaxWaitMillis = builder.mMaxWaitMillis;
+        mFailureThreshold = builder.mFailureThreshold;
+        mOpenMillis = builder.mOpenMillis;
+        mMaxRetries = builder.mMaxRetries;
+        mInitialBackoffMillis = builder.mInitialBackoffMillis;
+        mMaxBackoffMillis = builder.mMaxBackoffMillis;
+        mTimeoutMillis = builder.mTimeoutMillis;
+        mPermits = new Semaphore(mMaxConcurrentCalls, true);
+    }
+
+    /**
+     * Execute the call to Google's endpoint through bulkhead,circuit breaker
+     * and retry
+     * 
+     * @param call
+     * @return result of the call
+     * @throws OAuthCallRejectedException
+     *             rejected by bulkhead or circuit breaker
+     * @throws IOException
+     *             the call failed
+     */
+    public <T> T execute(Callable<T> call) throws IOException {
+
+        final boolean probe = acquireCircuit();
+
+        // null while Google is not called
+        Boolean succeeded = null;
+
+        try {
+
+            acquirePermit();
+
+            try {
+                final T result = executeWithRetry(call);
+                succeeded = Boolean.TRUE;
+                return result;
+            } catch (IOException e) {
+                // Google answered with an error like "invalid_grant",the
+                // endpoint itself is healthy
+                succeeded = !isFailure(e);
+                throw e;
+            } catch (RuntimeException e) {
+                succeeded = Boolean.TRUE;
+                throw e;
+            } finally {
+                mPermits.release();
+            }
+
+        } finally {
+            onComplete(probe, succeeded);
+        }
+    }
+
+    private <T> T executeWithRetry(Callable<T> call) throws IOException {
+
+        for (int attempt = 0;; attempt++) {
+
+            try {
+                return call.call();
+            } catch (IOException e) {
+
+                if (attempt >= mMaxRetries || !isRetryable(e)) {
+                    throw e;
+                }
+
+                final long backoffMillis = getBackoffMillis(attempt);
+
+                LOGGER.fine("retry after " + backoffMillis + "ms attempt=" + (attempt + 1) + " " + e);
+
+                mRetries.increment();
+
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for retry");
+                }
+
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new CallException(e);
+            }
+        }
+    }
+
+    /**
+     * Non-I/O exception thrown by the call<br>
+     * Google answered,so it is not a failure of the endpoint.
+     */
+    private static final class CallException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        CallException(Exception cause) {
+            super(cause);
+        }
+    }
+
+    /**
+     * Returns backoff before the retry,random between 0 and
+     * min(maxBackoff,initialBackoff*2^attempt)(full jitter)
+     * 
+     * @param attempt
+     * @return
+     */
+    long getBackoffMillis(int attempt) {
+
+        final long ceil = Math.min(mMaxBackoffMillis, mInitialBackoffMillis << Math.min(attempt, 20));
+
+        return ceil <= 0 ? 0 : ThreadLocalRandom.current().nextLong(ceil + 1);
+    }
+
+    /**
+     * Returns true if the request surely didn't reach Google or Google asked
+     * to retry<br>
+     * 502/504 are answered by a proxy or load balancer which may have already
+     * forwarded the request,so they are not retried.
+     * 
+     * @param e
+     * @return
+     */
+    static boolean isRetryable(IOException e) {
+
+        if (e instanceof HttpResponseException) {
+            final int status = ((HttpResponseException) e).getStatusCode();
+            return status == 429 || status == 503;
+        }
+
+        return e instanceof ConnectException || e instanceof NoRouteToHostException || e instanceof UnknownHostException;
+    }
+
+    /**
+     * Returns true if the error means Google's endpoint is unhealthy
+     * 
+     * @param e
+     * @return
+     */
+    static boolean isFailure(IOException e) {
+
+        if (e instanceof HttpResponseException) {
+            final int status = ((HttpResponseException) e).getStatusCode();
+            return status == 429 || status >= 500;
+        }
+
+        if (e instanceof CallException) {
+            // ex. GeneralSecurityException while parsing the response
+            return false;
+        }
+
+        // timeouts are failures,interruptions of the caller are not
+        return !(e instanceof InterruptedIOException) || e instanceof SocketTimeoutException;
+    }
+
+    /**
+     * Check state of circuit breaker before the call
+     * 
+     * @return true if the call is the probe of half-open state
+     * @throws OAuthCallRejectedException
+     */
+    private synchronized boolean acquireCircuit() throws OAuthCallRejectedException {
+
+        long retryAfterMillis = 0;
+
+        switch (mState) {
+
+        case CLOSED:
+            return false;
+
+        case OPEN:
+            final long openedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mOpenedAtNanos);
+
+            if (openedMillis < mOpenMillis) {
+                retryAfterMillis = mOpenMillis - openedMillis;
+                break;
+            }
+            LOGGER.info("circuit half-open,probing");
+            mState = State.HALF_OPEN;
+            mProbeInFlight = true;
+            return true;
+
+        case HALF_OPEN:
+            if (!mProbeInFlight) {
+                mProbeInFlight = true;
+                return true;
+            }
+            break;
+        }
+
+        mCircuitOpenRejections.increment();
+        throw new OAuthCallRejectedException("Circuit is open", retryAfterMillis);
+    }
+
+    /**
+     * Update state of circuit breaker after the call
+     * 
+     * @param probe
+     * @param succeeded
+     *            null if Google was not called(rejected by bulkhead)
+     */
+    private synchronized void onComplete(boolean probe, Boolean succeeded) {
+
+        if (probe) {
+            mProbeInFlight = false;
+        }
+
+        if (succeeded == null) {
+            return;
+        }
+
+        if (succeeded) {
+
+            mConsecutiveFailures = 0;
+
+            if (probe && mState == State.HALF_OPEN) {
+                LOGGER.info("circuit closed");
+                mState = State.CLOSED;
+            }
+            return;
+        }
+
+        mFailures.increment();
+        mConsecutiveFailures++;
+
+        if (probe || (mState == State.CLOSED && mConsecutiveFailures >= mFailureThreshold)) {
+            LOGGER.warning("circuit opened for " + mOpenMillis + "ms after " + mConsecutiveFailures + " consecutive failures");
+            mState = State.OPEN;
+            mOpenedAtNanos = System.nanoTime();
+        }
+    }
+
+    private void acquirePermit() throws IOException {
+
+        if (mPermits.tryAcquire()) {
+            return;
+        }
+
+        if (mWaitingCalls.incrementAndGet() > mMaxWaitingCalls) {
+            mWaitingCalls.decrementAndGet();
+            mBulkheadRejections.increment();
+            throw new OAuthCallRejectedException("Too many calls in flight", mMaxWaitMillis);
+        }
+
+        try {
+            if (!mPermits.tryAcquire(mMaxWaitMillis, TimeUnit.MILLISECONDS)) {
+                mBulkheadRejections.increment();
+                throw new OAuthCallRejectedException("Timed out waiting for a slot after " + mMaxWaitMillis + "ms", mMaxWaitMillis);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a slot");
+        } finally {
+            mWaitingCalls.decrementAndGet();
+        }
+    }
+
+    /**
+     * Returns initializer which applies the timeout of this guard after the
+     * initializer of the transport<br>
+     * The shorter one is used if the transport has its own timeouts.
+     * 
+     * @param delegate
+     *            initializer of the transport(nullable)
+     * @return
+     */
+    public HttpRequestInitializer getRequestInitializer(final HttpRequestInitializer delegate) {
+
+        final int timeoutMillis = mTimeoutMillis;
+
+        if (timeoutMillis <= 0) {
+            return delegate;
+        }
+
+        return new HttpRequestInitializer() {
+            @Override
+            public void initialize(HttpRequest request) throws IOException {
+
+                if (delegate != null) {
+                    delegate.initialize(request);
+                }
+
+                if (request.getConnectTimeout() <= 0 || request.getConnectTimeout() > timeoutMillis) {
+                    request.setConnectTimeout(timeoutMillis);
+                }
+
+                if (request.getReadTimeout() <= 0 || request.getReadTimeout() > timeoutMillis) {
+                    request.setReadTimeout(timeoutMillis);
+                }
+            }
+        };
+    }
+
+    public synchronized State getState() {
+        return mState;
+    }
+
+    public int getMaxConcurrentCalls() {
+        return mMaxConcurrentCalls;
+    }
+
+    /**
+     * Returns number of calls in flight
+     * 
+     * @return
+     */
+    public int getInFlightCalls() {
+        return mMaxConcurrentCalls - mPermits.availablePermits();
+    }
+
+    public int getWaitingCalls() {
+        return mWaitingCalls.get();
+    }
+
+    public long getBulkheadRejectionCount() {
+        return mBulkheadRejections.sum();
+    }
+
+    public long getCircuitOpenRejectionCount() {
+        return mCircuitOpenRejections.sum();
+    }
+
+    public long getRetryCount() {
+        return mRetries.sum();
+    }
+
+    public long getFailureCount() {
+        return mFailures.sum();
+    }
+
+    /**
+     * Builder of {@link OAuthCallGuard}
+     */
+    public static final class Builder {
+
+        private int mMaxConcurrentCalls = 64;
+        private int mMaxWaitingCalls = 256;
+        private long mMaxWaitMillis = TimeUnit.SECONDS.toMillis(5);
+
+        private int mFailureThreshold = 5;
+        private long mOpenMillis = TimeUnit.SECONDS.toMillis(10);
+
+        private int mMaxRetries = 2;
+        private long mInitialBackoffMillis = 100;
+        private long mMaxBackoffMillis = TimeUnit.SECONDS.toMillis(2);
+
+        private int mTimeoutMillis = (int) TimeUnit.SECONDS.toMillis(10);
+
+        /**
+         * Set max number of calls in flight
+         * 
+         * @param maxConcurrentCalls
+         * @return
+         */
+        public Builder setMaxConcurrentCalls(int maxConcurrentCalls) {
+            mMaxConcurrentCalls = maxConcurrentCalls;
+            return Builder.this;
+        }
+
+        /**
+         * Set max number of callers waiting for a slot.Callers over it are
+         * rejected immediately.
+         * 
+         * @param maxWaitingCalls
+         * @return
+         */
+        public Builder setMaxWaitingCalls(int maxWaitingCalls) {
+            mMaxWaitingCalls = maxWaitingCalls;
+            return Builder.this;
+        }
+
+        /**
+         * Set max time to wait for a slot
+         * 
+         * @param maxWaitMillis
+         * @return
+         */
+        public Builder setMaxWaitMillis(long maxWaitMillis) {
+            mMaxWaitMillis = maxWaitMillis;
+            return Builder.this;
+        }
+
+        /**
+         * Set number of consecutive failures which opens the circuit
+         * 
+         * @param failureThreshold
+         * @return
+         */
+        public Builder setFailureThreshold(int failureThreshold) {
+            mFailureThreshold = failureThreshold;
+            return Builder.this;
+        }
+
+        /**
+         * Set time during which calls are rejected after the circuit opened
+         * 
+         * @param openMillis
+         * @return
+         */
+        public Builder setOpenMillis(long openMillis) {
+            mOpenMillis = openMillis;
+            return Builder.this;
+        }
+
+        /**
+         * Set max number of retries(0:no retry)
+         * 
+         * @param maxRetries
+         * @return
+         */
+        public Builder setMaxRetries(int maxRetries) {
+            mMaxRetries = maxRetries;
+            return Builder.this;
+        }
+
+        /**
+         * Set backoff before the first retry.It doubles for each retry up to
+         * max backoff,and is randomized between 0 and it.
+         * 
+         * @param initialBackoffMillis
+         * @param maxBackoffMillis
+         * @return
+         */
+        public Builder setBackoffMillis(long initialBackoffMillis, long maxBackoffMillis) {
+            mInitialBackoffMillis = initialBackoffMillis;
+            mMaxBackoffMillis = maxBackoffMillis;
+            return Builder.this;
+        }
+
+        /**
+         * Set connect/read timeout of each call(-1:timeouts of the transport)
+         * 
+         * @param timeoutMillis
+         * @return
+         */
+        public Builder setTimeoutMillis(int timeoutMillis) {
+            mTimeoutMillis = timeoutMillis;
+            return Builder.this;
+        }
+
+        public OAuthCallGuard build() {
+
+            if (mMaxConcurrentCalls <= 0) {
+                throw new IllegalArgumentException("maxConcurrentCalls must be positive. maxConcurrentCalls=" + mMaxConcurrentCalls);
+            }
+
+            return new OAuthCallGuard(Builder.this);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a call to Google's endpoint is rejected without accessing it by
+ * {@link OAuthCallGuard},because too many calls are in flight or the circuit
+ * is open
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+@SuppressWarnings("serial")
+public class OAuthCallRejectedException extends IOException {
+
+    private final long mRetryAfterMillis;
+
+    public OAuthCallRejectedException(String message) {
+        this(message, 0);
+    }
+
+    /**
+     * @param message
+     * @param retryAfterMillis
+     *            estimated time until a call may be accepted again
+     */
+    public OAuthCallRejectedException(String message, long retryAfterMillis) {
+        super(message);
+        mRetryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * Returns estimated time until a call may be accepted again,0 if unknown
+     * 
+     * @return
+     */
+    public long getRetryAfterMillis() {
+        return mRetryAfterMillis;
+    }
+}
@@ -23,10 +23,20 @@
 package org.riversun.oauth2.google;
 
 import java.io.IOException;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -51,7 +61,14 @@ public abstract class OAuthCallbackServlet extends OAuthBaseServlet {
 
     static final String DUMMY_REFRESH_TOKEN = "org.riversun.dummy_refresh_token";
 
-    private final Map<String, String> mTempRefreshTokenMap = new ConcurrentHashMap<String, String>();
+    private static final long DEFAULT_ASYNC_TIMEOUT_MILLIS = 30000;
+
+    private static final int DEFAULT_MAX_REFRESH_TOKENS = 100000;
+
+    // answered with 503 when OAuthCallGuard rejected the token exchange
+    private static final String REJECTED_MESSAGE = "OAuth2 token exchange is temporarily unavailable";
+
+    private final RefreshTokenStore mRefreshTokenStore = new InMemoryRefreshTokenStore(DEFAULT_MAX_REFRESH_TOKENS);
 
     /**
      * Returns redirect url
@@ -60,10 +77,110 @@ public abstract class OAuthCallbackServlet extends OAuthBaseServlet {
      */
     protected abstract String getAuthRedirectUrl();
 
+    /**
+     * Returns true if you want to exchange the authorization code and verify
+     * idToken without blocking the container thread.<br>
+     * <br>
+     * The servlet must be registered with asyncSupported=true, otherwise the
+     * callback is handled synchronously.
+     * 
+     * @return
+     */
+    protected boolean isAsyncCallback() {
+        return false;
+    }
+
+    /**
+     * Returns timeout of async callback
+     * 
+     * @return
+     */
+    protected long getAsyncTimeoutMillis() {
+        return DEFAULT_ASYNC_TIMEOUT_MILLIS;
+    }
+
+    /**
+     * Returns executor on which token exchange and idToken verification run
+     * in async callback mode.<br>
+     * Default executor is shared and bounded,and runs on virtual threads on
+     * Java 21+.When it is full, the callback is answered with 503.
+     * 
+     * @return
+     */
+    protected Executor getCallbackExecutor() {
+        return DefaultCallbackExecutorHolder.EXECUTOR;
+    }
+
+    /**
+     * Lazy holder of default executor for async callback
+     */
+    private static final class DefaultCallbackExecutorHolder {
+        static final Executor EXECUTOR = OAuthExecutors.newBoundedExecutor("oauth2-callback", 64, 1024);
+    }
+
+    /**
+     * Returns store of refresh tokens<br>
+     * <br>
+     * Default store is on-memory,bounded and not shared between servlet
+     * instances.<br>
+     * RefreshToken is recommended to be persistent rather than on-memory.
+     * Override and return a shared store like {@link FileRefreshTokenStore}.
+     * 
+     * @return
+     */
+    protected RefreshTokenStore getRefreshTokenStore() {
+        return mRefreshTokenStore;
+    }
+
+    /**
+     * Returns codec of encrypted cookie which stores the result of OAuth2
+     * flow instead of HttpSession.<br>
+     * Returns the codec of {@link OAuthFilter#getCookieSessionCodec()} by
+     * default.
+     * 
+     * @return
+     */
+    protected CookieSessionCodec getCookieSessionCodec() {
+        return OAuthSession.getInstance().getCookieSessionCodec();
+    }
+
+    /**
+     * Returns codec of signed state which carries the url to return after
+     * OAuth2 flow instead of HttpSession.<br>
+     * Returns the codec of {@link OAuthFilter#getSignedStateCodec()} by
+     * default.
+     * 
+     * @return
+     */
+    protected SignedStateCodec getSignedStateCodec() {
+        return OAuthSession.getInstance().getSignedStateCodec();
+    }
+
+    /**
+     * Returns scheduler which refreshes access tokens of logged in users in
+     * the background before they expire.<br>
+     * Returns null(disabled) by default.<br>
+     * <br>
+     * Override and return a shared instance like this.
+     * 
+     * <pre>
+     * new TokenRefreshScheduler(new TokenRefreshScheduler.RefreshTokenLoader() {
+     *     public String load(String userId) {
+     *         return loadRefreshTokenFor(userId);
+     *     }
+     * });
+     * </pre>
+     * 
+     * @return
+     */
+    protected TokenRefreshScheduler getTokenRefreshScheduler() {
+        return null;
+    }
+
     /**
      * Save refreshToken of user.<br>
      * <br>
-     * RefreshToken is recommended to be persistent rather than on - memory. Override and implement this method and describe the saving process of refreshToken.
+     * Saved to {@link #getRefreshTokenStore()} by default.
      * <br>
      * 
      * @param userId
@@ -71,14 +188,17 @@ public abstract class OAuthCallbackServlet extends OAuthBaseServlet {
      */
     protected void saveRefreshTokenFor(String userId, String refreshToken) {
         LOGGER.fine("userId=" + userId + " refreshToken=" + refreshToken);
-        mTempRefreshTokenMap.put(userId, refreshToken);
+        try {
+            getRefreshTokenStore().save(userId, refreshToken);
+        } catch (IOException e) {
+            LOGGER.warning("Failed to save refresh token userId=" + userId + " " + e);
+        }
     }
 
     /**
      * Load stored refreshToken of user.<br>
      * <br>
-     * <br>
-     * RefreshToken is recommended to be persistent rather than on - memory. Override and implement this method and read refreshToken from the persisted area.
+     * Loaded from {@link #getRefreshTokenStore()} by default.
      * <br>
      * 
      * @param userId
@@ -86,7 +206,13 @@ public abstract class OAuthCallbackServlet extends OAuthBaseServlet {
      */
     protected String loadRefreshTokenFor(String userId) {
 
-        final String storedRefreshToken = mTempRefreshTokenMap.get(userId);
+        String storedRefreshToken = null;
+
+        try {
+            storedRefreshToken = getRefreshTokenStore().load(userId);
+        } catch (IOException e) {
+            LOGGER.warning("Failed to load refresh token userId=" + userId + " " + e);
+        }
 
         final String refreshToken;
         if (storedRefreshToken == null) {
@@ -103,30 +229,91 @@ public abstract class OAuthCallbackServlet extends OAuthBaseServlet {
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
         LOGGER.fine("");
 
+        final OAuthMetrics metrics = OAuthMetrics.getInstance();
+        metrics.increment(OAuthMetrics.Counter.CALLBACKS);
+
+        final long startNanos = System.nanoTime();
+
         final String code = asString(req, "code");
         final String stateToken = asString(req, "state");
 
+        final String error = asString(req, "error");
+
+        final SignedStateCodec signedStateCodec = getSignedStateCodec();
+
+        if (code == null && stateToken != null && isInteractionRequiredError(error)) {
+            // - re-authentication with "prompt=none" failed
+            handleInteractionRequired(req, resp, stateToken, error);
+            return;
+        }
+
+        // url to return after OAuth2 flow
+        String returnUrl = null;
+
+        // identifies the exchange of this code by this browser
+        TokenKey exchangeKey = null;
+
+        // result of the first callback reused by a duplicate callback
+        CodeExchangeCache.Result duplicateResult = null;
+
         if (code != null && stateToken != null) {
             // - required parameters( 'code' and 'state) are exist.
 
             LOGGER.fine("code=" + code);
 
-            final String storedStateToken = (String) sessionScope(req, OAuthConst.SESSION_KEY_OAUTH2_STATE_TOKEN);
+            exchangeKey = getExchangeKey(req, code, stateToken, signedStateCodec);
+
+            if (exchangeKey != null) {
+                // waits only while the first callback is exchanging the code
+                duplicateResult = CodeExchangeCache.getInstance().join(exchangeKey);
+            }
+
+            if (duplicateResult != null) {
+                // - reload or retry of the callback whose state has already
+                // been verified,reuse the result of the first exchange
+
+                LOGGER.fine("duplicate callback");
+
+                returnUrl = duplicateResult.returnUrl;
+
+            } else if (signedStateCodec != null) {
+                // - stateless,verify signature,age and nonce cookie of state
+
+                returnUrl = signedStateCodec.verify(req, resp, stateToken);
 
-            if (storedStateToken != null && stateToken.equals(storedStateToken)) {
-                // - stateToken matched
+                if (returnUrl == null) {
 
-                LOGGER.fine("stateToken matched state=" + stateToken);
+                    LOGGER.warning("signed state is invalid!");
+
+                    metrics.increment(OAuthMetrics.Counter.STATE_MISMATCHES);
+
+                    resp.sendError(HttpServletResponse.SC_FORBIDDEN, "OAuth2 state token is invalid. stateToken=" + stateToken);
+                    return;
+                }
+
+                LOGGER.fine("signed state verified returnUrl=" + returnUrl);
 
-                // remove state token
-                sessionScope(req, OAuthConst.SESSION_KEY_OAUTH2_STATE_TOKEN, null);
             } else {
-                // - stateToken not matched
 
-                LOGGER.warning("stateToken not matched!");
+                if (consumePendingStateToken(req, stateToken)) {
+                    // - stateToken matched one of the pending tokens
 
-                resp.sendError(HttpServletResponse.SC_FORBIDDEN, "OAuth2 state token is invalid. stateToken=" + stateToken + " storedStateToken=" + storedStateToken);
-                return;
+                    LOGGER.fine("stateToken matched state=" + stateToken);
+
+                    returnUrl = (String) sessionScope(req, OAuthConst.SESSION_KEY_REDIRECT_URL_AFTER_OAUTH);
+
+                    sessionScope(req, OAuthConst.SESSION_KEY_REDIRECT_URL_AFTER_OAUTH, null);
+
+                } else {
+                    // - stateToken not matched
+
+                    LOGGER.warning("stateToken not matched!");
+
+                    metrics.increment(OAuthMetrics.Counter.STATE_MISMATCHES);
+
+                    resp.sendError(HttpServletResponse.SC_FORBIDDEN, "OAuth2 state token is invalid. stateToken=" + stateToken);
+                    return;
+                }
             }
 
         } else {
@@ -140,8 +327,33 @@ public abstract class OAuthCallbackServlet extends OAuthBaseServlet {
 
         final OAuthHandler oh = new OAuthHandler(getAuthRedirectUrl());
 
+        if (duplicateResult == null && isAsyncCallback() && req.isAsyncSupported()) {
+            doAsyncCallback(req, resp, oh, code, exchangeKey, returnUrl, startNanos);
+            return;
+        }
+
         // Retrieve token response from "code"
-        final GoogleTokenResponse tokenResponse = oh.getTokenResponseFromCode(code);
+        final GoogleTokenResponse tokenResponse;
+
+        try {
+            tokenResponse = duplicateResult != null ? duplicateResult.tokenResponse : exchangeCode(oh, code, exchangeKey, returnUrl);
+        } catch (OAuthCallRejectedException e) {
+
+            sendRejected(resp, e);
+
+            metrics.recordSince(OAuthMetrics.Timer.CALLBACK, startNanos);
+            return;
+        }
+
+        if (tokenResponse == null) {
+
+            LOGGER.warning("Failed to exchange code for tokens");
+
+            resp.sendError(HttpServletResponse.SC_FORBIDDEN, "OAuth2 token exchange failed");
+
+            metrics.recordSince(OAuthMetrics.Timer.CALLBACK, startNanos);
+            return;
+        }
 
         LOGGER.fine("Received tokenResponse=" + tokenResponse);
         LOGGER.fine("Received refresh_token=" + tokenResponse.getRefreshToken());
@@ -153,6 +365,330 @@ public abstract class OAuthCallbackServlet extends OAuthBaseServlet {
             throw new ServletException(new Exception("IdToken verification error"));
         }
 
+        completeLogin(req, resp, tokenResponse, idToken, returnUrl);
+
+        metrics.recordSince(OAuthMetrics.Timer.CALLBACK, startNanos);
+    }
+
+    /**
+     * Returns true if the error is returned because the request with
+     * "prompt=none" needs user interaction
+     * 
+     * @param error
+     * @return
+     */
+    private static boolean isInteractionRequiredError(String error) {
+        return "login_required".equals(error)
+                || "interaction_required".equals(error)
+                || "consent_required".equals(error)
+                || "account_selection_required".equals(error);
+    }
+
+    /**
+     * Returns key of the code exchange bound to the browser<br>
+     * The browser is identified by the session id or the nonce cookie of
+     * signed state,so that the result is never shared with another browser.
+     * 
+     * @param req
+     * @param code
+     * @param stateToken
+     * @param signedStateCodec
+     * @return null if the browser can't be identified
+     */
+    private static TokenKey getExchangeKey(HttpServletRequest req, String code, String stateToken, SignedStateCodec signedStateCodec) {
+
+        final String sessionId = req.isRequestedSessionIdValid() ? req.getRequestedSessionId() : null;
+        final String nonce = signedStateCodec != null ? signedStateCodec.getNonceCookieValue(req, stateToken) : null;
+
+        if (sessionId == null && nonce == null) {
+            return null;
+        }
+
+        return TokenKey.of(code + '\n' + stateToken + '\n' + sessionId + '\n' + nonce);
+    }
+
+    /**
+     * Exchange code for tokens,sharing the result with duplicate callbacks of
+     * the same browser<br>
+     * Call only after the state has been verified.
+     * 
+     * @param oh
+     * @param code
+     * @param exchangeKey
+     *            null if not shared
+     * @param returnUrl
+     *            verified url to return,shared with duplicate callbacks
+     * @return null if the exchange failed
+     * @throws OAuthCallRejectedException
+     *             rejected by {@link OAuthCallGuard} without accessing Google
+     */
+    private static GoogleTokenResponse exchangeCode(final OAuthHandler oh, final String code, TokenKey exchangeKey, String returnUrl)
+            throws OAuthCallRejectedException {
+
+        if (exchangeKey == null) {
+            return oh.requestTokenResponse(code);
+        }
+
+        final CodeExchangeCache.Result result = CodeExchangeCache.getInstance().exchange(exchangeKey, returnUrl, new Callable<GoogleTokenResponse>() {
+            @Override
+            public GoogleTokenResponse call() throws OAuthCallRejectedException {
+                return oh.requestTokenResponse(code);
+            }
+        });
+
+        return result != null ? result.tokenResponse : null;
+    }
+
+    /**
+     * Check if the state token is one of the tokens pending in the session
+     * 
+     * @param req
+     * @param stateToken
+     * @return
+     */
+    private static boolean consumePendingStateToken(HttpServletRequest req, String stateToken) {
+
+        final PendingStateTokens pendingStateTokens = PendingStateTokens.get(req);
+
+        if (pendingStateTokens == null) {
+            return false;
+        }
+
+        final boolean consumed = pendingStateTokens.consume(stateToken, System.currentTimeMillis());
+
+        pendingStateTokens.save(req);
+
+        return consumed;
+    }
+
+    /**
+     * Start OAuth2 flow again without "prompt=none" so that the user can sign
+     * in or select the account.
+     * 
+     * @param req
+     * @param resp
+     * @param stateToken
+     * @param error
+     * @throws ServletException
+     * @throws IOException
+     */
+    private void handleInteractionRequired(HttpServletRequest req, HttpServletResponse resp, String stateToken, String error) throws ServletException, IOException {
+
+        final SignedStateCodec signedStateCodec = getSignedStateCodec();
+
+        final OAuthHandler oh = new OAuthHandler(getAuthRedirectUrl());
+
+        if (signedStateCodec != null) {
+
+            final String returnUrl = signedStateCodec.verify(req, resp, stateToken);
+
+            if (returnUrl == null) {
+
+                LOGGER.warning("signed state is invalid!");
+
+                OAuthMetrics.getInstance().increment(OAuthMetrics.Counter.STATE_MISMATCHES);
+
+                resp.sendError(HttpServletResponse.SC_FORBIDDEN, "OAuth2 state token is invalid. stateToken=" + stateToken);
+                return;
+            }
+
+            // return to the url carried by the state,not to this callback
+            oh.setReturnUrl(returnUrl);
+
+        } else {
+
+            if (!consumePendingStateToken(req, stateToken)) {
+
+                LOGGER.warning("stateToken not matched!");
+
+                OAuthMetrics.getInstance().increment(OAuthMetrics.Counter.STATE_MISMATCHES);
+
+                resp.sendError(HttpServletResponse.SC_FORBIDDEN, "OAuth2 state token is invalid. stateToken=" + stateToken);
+                return;
+            }
+        }
+
+        LOGGER.fine("Silent re-authentication failed error=" + error + ".Start OAuth2 flow with user interaction.");
+
+        // redirect url after OAuth2 stored in the session is kept
+        final boolean forceApprovalPrompt = "consent_required".equals(error);
+        oh.doOAuth2Flow(req, resp, forceApprovalPrompt);
+    }
+
+    /**
+     * Exchange code and verify idToken on {@link #getCallbackExecutor()}
+     * without blocking the container thread,and complete login after that.
+     * 
+     * @param req
+     * @param resp
+     * @param oh
+     * @param code
+     * @param exchangeKey
+     *            key to share the result with duplicate callbacks or null
+     * @param returnUrl
+     *            url to return or null
+     * @param startNanos
+     */
+    private void doAsyncCallback(final HttpServletRequest req, final HttpServletResponse resp, final OAuthHandler oh, final String code,
+            final TokenKey exchangeKey, final String returnUrl, final long startNanos) {
+
+        final AsyncContext asyncContext = req.startAsync();
+        asyncContext.setTimeout(getAsyncTimeoutMillis());
+
+        // either completion or timeout writes the response
+        final AtomicBoolean finished = new AtomicBoolean(false);
+
+        asyncContext.addListener(new AsyncListener() {
+
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                if (finished.compareAndSet(false, true)) {
+                    LOGGER.warning("OAuth2 callback timed out");
+                    resp.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT, "OAuth2 token exchange timed out");
+                    asyncContext.complete();
+                }
+            }
+
+            @Override
+            public void onError(AsyncEvent event) throws IOException {
+                finished.set(true);
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) throws IOException {
+                OAuthMetrics.getInstance().recordSince(OAuthMetrics.Timer.CALLBACK, startNanos);
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) throws IOException {
+            }
+        });
+
+        final Executor executor = getCallbackExecutor();
+
+        final CompletableFuture<GoogleTokenResponse> tokenResponseFuture;
+
+        try {
+            tokenResponseFuture = CompletableFuture.supplyAsync(new Supplier<GoogleTokenResponse>() {
+                @Override
+                public GoogleTokenResponse get() {
+                    try {
+                        return exchangeCode(oh, code, exchangeKey, returnUrl);
+                    } catch (OAuthCallRejectedException e) {
+                        throw new CompletionException(e);
+                    }
+                }
+            }, executor);
+        } catch (RejectedExecutionException e) {
+            LOGGER.warning("OAuth2 callback rejected.Too many token exchanges in progress.");
+            finished.set(true);
+            sendErrorAndComplete(asyncContext, resp, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many OAuth2 callbacks in progress");
+            return;
+        }
+
+        tokenResponseFuture.thenApply(new Function<GoogleTokenResponse, GoogleIdToken>() {
+            @Override
+            public GoogleIdToken apply(GoogleTokenResponse tokenResponse) {
+
+                if (tokenResponse == null) {
+
+                    if (finished.compareAndSet(false, true)) {
+                        LOGGER.warning("Failed to exchange code for tokens");
+                        sendErrorAndComplete(asyncContext, resp, HttpServletResponse.SC_FORBIDDEN, "OAuth2 token exchange failed");
+                    }
+                    return null;
+                }
+
+                LOGGER.fine("Received tokenResponse=" + tokenResponse);
+
+                // runs on the thread which completed the token exchange
+                final GoogleIdToken idToken = oh.getIdToken(tokenResponse);
+
+                if (idToken == null || !finished.compareAndSet(false, true)) {
+                    return idToken;
+                }
+
+                try {
+                    completeLogin(req, resp, tokenResponse, idToken, returnUrl);
+                    asyncContext.complete();
+                } catch (Exception e) {
+                    LOGGER.warning("Failed to complete OAuth2 callback " + e);
+                    sendErrorAndComplete(asyncContext, resp, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "OAuth2 callback error");
+                }
+                return idToken;
+            }
+        }).whenComplete(new BiConsumer<GoogleIdToken, Throwable>() {
+            @Override
+            public void accept(GoogleIdToken idToken, Throwable t) {
+
+                if ((idToken == null || t != null) && finished.compareAndSet(false, true)) {
+
+                    final Throwable cause = t instanceof CompletionException ? t.getCause() : t;
+
+                    if (cause instanceof OAuthCallRejectedException) {
+                        setRetryAfter(resp, (OAuthCallRejectedException) cause);
+                        sendErrorAndComplete(asyncContext, resp, HttpServletResponse.SC_SERVICE_UNAVAILABLE, REJECTED_MESSAGE);
+                        return;
+                    }
+
+                    LOGGER.warning("IdToken verification error " + (t != null ? t : ""));
+                    sendErrorAndComplete(asyncContext, resp, HttpServletResponse.SC_FORBIDDEN, "IdToken verification error");
+                }
+            }
+        });
+    }
+
+    /**
+     * Answer 503 with Retry-After,so that the rejection is not taken for an
+     * authentication error
+     * 
+     * @param resp
+     * @param e
+     * @throws IOException
+     */
+    private static void sendRejected(HttpServletResponse resp, OAuthCallRejectedException e) throws IOException {
+
+        setRetryAfter(resp, e);
+
+        resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, REJECTED_MESSAGE);
+    }
+
+    private static void setRetryAfter(HttpServletResponse resp, OAuthCallRejectedException e) {
+
+        LOGGER.warning("OAuth2 token exchange rejected " + e.getMessage());
+
+        // at least 1 second
+        final long retryAfterSeconds = Math.max(1, (e.getRetryAfterMillis() + 999) / 1000);
+
+        resp.setHeader("Retry-After", String.valueOf(retryAfterSeconds));
+    }
+
+    private void sendErrorAndComplete(AsyncContext asyncContext, HttpServletResponse resp, int sc, String msg) {
+        try {
+            resp.sendError(sc, msg);
+        } catch (IOException e) {
+            LOGGER.warning("Failed to send error " + e);
+        } finally {
+            asyncContext.complete();
+        }
+    }
+
+    /**
+     * Store the result of OAuth2 flow in the session and redirect to the url
+     * requested before OAuth2 flow
+     * 
+     * @param req
+     * @param resp
+     * @param tokenResponse
+     * @param idToken
+     * @param returnUrl
+     *            url verified with the state,or null to return to the
+     *            context root
+     * @throws IOException
+     */
+    private void completeLogin(HttpServletRequest req, HttpServletResponse resp, GoogleTokenResponse tokenResponse, GoogleIdToken idToken, String returnUrl)
+            throws IOException {
+
         // idToken contains header,payload,signature.
         // Each value is stored in the format specified by RFC 7515 (JWS -JSON
         // Web Signature)
@@ -166,8 +702,6 @@ public abstract class OAuthCallbackServlet extends OAuthBaseServlet {
         // never reused.
         final String userId = payload.getSubject();
 
-        sessionScope(req, OAuthConst.SESSION_KEY_UNIQUE_USER_ID, userId);
-
         LOGGER.fine("TOKEN_INFO subject(unique userId)=" + userId);
 
         // Get refresh_token from tokenResponse.
@@ -181,35 +715,62 @@ public abstract class OAuthCallbackServlet extends OAuthBaseServlet {
             saveRefreshTokenFor(userId, _refreshToken);
         }
 
-        final String refreshToken = loadRefreshTokenFor(userId);
+        final String storedRefreshToken = loadRefreshTokenFor(userId);
 
         LOGGER.fine("use refresh token refreshToken=" + _refreshToken);
 
+        final String refreshToken;
+
+        if (storedRefreshToken == null || OAuthCallbackServlet.DUMMY_REFRESH_TOKEN.equals(storedRefreshToken)) {
+            refreshToken = null;
+        } else {
+            refreshToken = storedRefreshToken;
+        }
+
         final String accessToken = tokenResponse.getAccessToken();
 
-        LOGGER.fine("Since it is necessary to create a new credential, delete the existing credential in the session");
+        // Store when access token expires so that the credential refreshes it
+        // only after expiration
+        final Long expiresInSeconds = tokenResponse.getExpiresInSeconds();
+        final Long expiresAt = expiresInSeconds != null ? System.currentTimeMillis() + expiresInSeconds * 1000 : null;
+
+        // used by the re-authentication window of OAuthFilter
+        final Long idTokenExpirationTimeSeconds = idToken.getPayload().getExpirationTimeSeconds();
+        final Long idTokenExpiresAt = idTokenExpirationTimeSeconds != null ? idTokenExpirationTimeSeconds * 1000 : null;
 
-        /**
-         * Since it is necessary to create a new credential, clear the existing credential in the session <br>
-         * {@link OAuthSession#getCredential}
-         */
-        sessionScope(req, OAuthConst.SESSION_KEY_CREDENTIAL, null);
+        final OAuthAuthState authState = new OAuthAuthState(userId, accessToken, refreshToken, expiresAt, true, System.currentTimeMillis(), idTokenExpiresAt);
 
-        // Store access token in the session
-        sessionScope(req, OAuthConst.SESSION_KEY_ACCESS_TOKEN, accessToken);
+        final CookieSessionCodec cookieSessionCodec = getCookieSessionCodec();
 
-        if (refreshToken == null || OAuthCallbackServlet.DUMMY_REFRESH_TOKEN.equals(refreshToken)) {
-            sessionScope(req, OAuthConst.SESSION_KEY_REFRESH_TOKEN, null);
+        if (cookieSessionCodec != null) {
+            // stateless mode:store the result in the encrypted cookie
+            cookieSessionCodec.writeState(req, resp, authState);
         } else {
-            // Store refresh token in the session
-            sessionScope(req, OAuthConst.SESSION_KEY_REFRESH_TOKEN, refreshToken);
+
+            if (sessionScope(req, OAuthConst.SESSION_KEY_CREDENTIAL) != null) {
+
+                LOGGER.fine("Since it is necessary to create a new credential, delete the existing credential in the session");
+
+                /**
+                 * Since it is necessary to create a new credential, clear the existing credential in the session <br>
+                 * {@link OAuthSession#getCredential}
+                 */
+                sessionScope(req, OAuthConst.SESSION_KEY_CREDENTIAL, null);
+            }
+
+            // Store the result in the session as one attribute
+            sessionScope(req, OAuthConst.SESSION_KEY_AUTH_STATE, authState);
         }
 
-        sessionScope(req, OAuthConst.SESSION_KEY_OAUTH2_DONE, Boolean.TRUE);
+        final TokenRefreshScheduler tokenRefreshScheduler = getTokenRefreshScheduler();
 
-        String redirectPath = (String) sessionScope(req, OAuthConst.SESSION_KEY_REDIRECT_URL_AFTER_OAUTH);
+        if (tokenRefreshScheduler != null && refreshToken != null && expiresAt != null) {
+            // refresh access token in the background before it expires
+            OAuthSession.getInstance().setTokenRefreshScheduler(tokenRefreshScheduler);
+            tokenRefreshScheduler.schedule(userId, expiresAt);
+        }
 
-        sessionScope(req, OAuthConst.SESSION_KEY_REDIRECT_URL_AFTER_OAUTH, null);
+        String redirectPath = returnUrl;
 
         if (redirectPath == null || redirectPath.isEmpty()) {
             redirectPath = req.getContextPath() + "/";
@@ -217,6 +778,8 @@ public abstract class OAuthCallbackServlet extends OAuthBaseServlet {
 
         LOGGER.fine("redirectPath=" + redirectPath);
 
+        OAuthMetrics.getInstance().increment(OAuthMetrics.Counter.LOGINS);
+
         resp.sendRedirect(redirectPath);
 
     }
@@ -32,14 +32,15 @@ public final class OAuthConst {
 
     static final String SESSION_KEY_CREDENTIAL = "org.riversun.goauth.session_key_credential";
 
-    static final String SESSION_KEY_ACCESS_TOKEN = "org.riversun.goauth.session_key_access_token";
-    static final String SESSION_KEY_REFRESH_TOKEN = "org.riversun.goauth.session_key_refresh_token";
-
-    static final String SESSION_KEY_UNIQUE_USER_ID = "org.riversun.goauth.session_key_payload_sub";
+    // user id,access_token,refresh_token and OAuth2 done flag as one
+    // OAuthAuthState
+    static final String SESSION_KEY_AUTH_STATE = "org.riversun.goauth.session_key_auth_state";
 
     static final String SESSION_KEY_OAUTH2_STATE_TOKEN = "org.riversun.goauth.session_key_oauth2_state_token";
 
-    static final String SESSION_KEY_OAUTH2_DONE = "org.riversun.goauth.session_key_oauth2_done";
     static final String SESSION_KEY_REDIRECT_URL_AFTER_OAUTH = "org.riversun.goauth.session_key_redirect_url_after_oauth";
 
+    // verified idToken of "Authorization: Bearer" request
+    static final String REQUEST_KEY_BEARER_ID_TOKEN = "org.riversun.goauth.request_key_bearer_id_token";
+
 }
@@ -0,0 +1,104 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleOAuthConstants;
+
+/**
+ * Urls of Google's OAuth2 endpoints<br>
+ * <br>
+ * To load-test offline,point them at a local stub server by
+ * {@link OAuthUtil#setEndpoints(OAuthEndpoints)}.
+ * 
+ * <pre>
+ * OAuthUtil.setEndpoints(OAuthEndpoints.forBaseUrl("http://localhost:18080"));
+ * </pre>
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public final class OAuthEndpoints {
+
+    public static final String DEFAULT_TOKEN_INFO_URL = "https://www.googleapis.com/oauth2/v2/tokeninfo";
+
+    public static final OAuthEndpoints GOOGLE = new OAuthEndpoints(
+            GoogleOAuthConstants.AUTHORIZATION_SERVER_URL,
+            GoogleOAuthConstants.TOKEN_SERVER_URL,
+            OAuthKeyStore.DEFAULT_CERTS_URL,
+            DEFAULT_TOKEN_INFO_URL);
+
+    private final String mAuthorizationServerUrl;
+    private final String mTokenServerUrl;
+    private final String mCertsUrl;
+    private final String mTokenInfoUrl;
+
+    public OAuthEndpoints(String authorizationServerUrl, String tokenServerUrl, String certsUrl) {
+        this(authorizationServerUrl, tokenServerUrl, certsUrl, DEFAULT_TOKEN_INFO_URL);
+    }
+
+    public OAuthEndpoints(String authorizationServerUrl, String tokenServerUrl, String certsUrl, String tokenInfoUrl) {
+        mAuthorizationServerUrl = authorizationServerUrl;
+        mTokenServerUrl = tokenServerUrl;
+        mCertsUrl = certsUrl;
+        mTokenInfoUrl = tokenInfoUrl;
+    }
+
+    /**
+     * Returns endpoints with the same paths as Google on the base url<br>
+     * "/o/oauth2/auth","/o/oauth2/token","/oauth2/v1/certs","/oauth2/v2/tokeninfo"
+     * 
+     * @param baseUrl
+     *            like "http://localhost:18080"
+     * @return
+     */
+    public static OAuthEndpoints forBaseUrl(String baseUrl) {
+
+        final String base = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+
+        return new OAuthEndpoints(
+                base + "/o/oauth2/auth",
+                base + "/o/oauth2/token",
+                base + "/oauth2/v1/certs",
+                base + "/oauth2/v2/tokeninfo");
+    }
+
+    public String getAuthorizationServerUrl() {
+        return mAuthorizationServerUrl;
+    }
+
+    public String getTokenServerUrl() {
+        return mTokenServerUrl;
+    }
+
+    public String getCertsUrl() {
+        return mCertsUrl;
+    }
+
+    public String getTokenInfoUrl() {
+        return mTokenInfoUrl;
+    }
+
+    @Override
+    public String toString() {
+        return "OAuthEndpoints [authorizationServerUrl=" + mAuthorizationServerUrl + ", tokenServerUrl=" + mTokenServerUrl + ", certsUrl=" + mCertsUrl + ", tokenInfoUrl=" + mTokenInfoUrl + "]";
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Executors used to call Google's endpoints off the container threads
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+final class OAuthExecutors {
+
+    private OAuthExecutors() {
+    }
+
+    /**
+     * Returns executor which runs at most maxThreads tasks at the same time
+     * and queues at most queueSize tasks.<br>
+     * Further tasks are rejected with RejectedExecutionException.<br>
+     * On Java 21+ each task runs on its own virtual thread,since virtual
+     * threads are cheap and must not be pooled.Tasks beyond maxThreads wait
+     * on a semaphore instead of a queue.Calls to Google in them are bounded by
+     * {@link OAuthCallGuard} as well.<br>
+     * Otherwise tasks run on a bounded pool of platform threads.
+     * 
+     * @param name
+     * @param maxThreads
+     * @param queueSize
+     * @return
+     */
+    static ExecutorService newBoundedExecutor(String name, int maxThreads, int queueSize) {
+
+        final ThreadFactory virtualThreadFactory = newVirtualThreadFactory(name);
+
+        if (virtualThreadFactory != null) {
+            return new ThreadPerTaskExecutor(virtualThreadFactory, maxThreads, queueSize);
+        }
+
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                maxThreads, maxThreads,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                newPlatformThreadFactory(name));
+
+        executor.allowCoreThreadTimeOut(true);
+
+        return executor;
+    }
+
+    /**
+     * Returns virtual thread factory on Java 21+,otherwise daemon thread
+     * factory
+     * 
+     * @param name
+     * @return
+     */
+    static ThreadFactory newThreadFactory(final String name) {
+
+        final ThreadFactory virtualThreadFactory = newVirtualThreadFactory(name);
+
+        if (virtualThreadFactory != null) {
+            return virtualThreadFactory;
+        }
+
+        return newPlatformThreadFactory(name);
+    }
+
+    private static ThreadFactory newPlatformThreadFactory(final String name) {
+
+        final AtomicInteger count = new AtomicInteger();
+
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Returns Thread.ofVirtual().name(name,0).factory() or null if virtual
+     * threads are not available.<br>
+     * Looked up by reflection since this library is compiled for Java 8.
+     * 
+     * @param name
+     * @return
+     */
+    private static ThreadFactory newVirtualThreadFactory(String name) {
+        try {
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+
+            final Method nameMethod = builderClass.getMethod("name", String.class, long.class);
+            builder = nameMethod.invoke(builder, name + "-", 0L);
+
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Executor which starts a new thread for each task<br>
+     * At most maxThreads tasks run at the same time,and at most
+     * maxThreads+queueSize tasks are accepted at the same time.
+     */
+    private static final class ThreadPerTaskExecutor extends AbstractExecutorService {
+
+        private final ThreadFactory mThreadFactory;
+        private final int mMaxTasks;
+
+        private final Semaphore mRunPermits;
+        private final AtomicInteger mTaskCount = new AtomicInteger();
+        private final Set<Thread> mThreads = ConcurrentHashMap.newKeySet();
+
+        private final ReentrantLock mLock = new ReentrantLock();
+        private final Condition mTerminated = mLock.newCondition();
+
+        private volatile boolean mShutdown = false;
+
+        ThreadPerTaskExecutor(ThreadFactory threadFactory, int maxThreads, int queueSize) {
+            mThreadFactory = threadFactory;
+            mMaxTasks = maxThreads + queueSize;
+            mRunPermits = new Semaphore(maxThreads, true);
+        }
+
+        @Override
+        public void execute(final Runnable command) {
+
+            if (mShutdown) {
+                throw new RejectedExecutionException("Executor has been shut down");
+            }
+
+            if (mTaskCount.incrementAndGet() > mMaxTasks) {
+                onTaskDone();
+                throw new RejectedExecutionException("Too many tasks");
+            }
+
+            final Thread thread;
+
+            try {
+                thread = mThreadFactory.newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            mRunPermits.acquire();
+                            try {
+                                command.run();
+                            } finally {
+                                mRunPermits.release();
+                            }
+                        } catch (InterruptedException e) {
+                            // shut down while waiting
+                        } finally {
+                            mThreads.remove(Thread.currentThread());
+                            onTaskDone();
+                        }
+                    }
+                });
+            } catch (RuntimeException e) {
+                onTaskDone();
+                throw new RejectedExecutionException(e);
+            }
+
+            mThreads.add(thread);
+            thread.start();
+        }
+
+        private void onTaskDone() {
+
+            if (mTaskCount.decrementAndGet() == 0 && mShutdown) {
+                signalTerminated();
+            }
+        }
+
+        private void signalTerminated() {
+            mLock.lock();
+            try {
+                mTerminated.signalAll();
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        @Override
+        public void shutdown() {
+
+            mShutdown = true;
+
+            if (mTaskCount.get() == 0) {
+                signalTerminated();
+            }
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+
+            shutdown();
+
+            for (Thread thread : mThreads) {
+                thread.interrupt();
+            }
+
+            // tasks are not queued
+            return new ArrayList<Runnable>();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return mShutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return mShutdown && mTaskCount.get() == 0;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+
+            long nanos = unit.toNanos(timeout);
+
+            mLock.lock();
+            try {
+                while (!isTerminated()) {
+
+                    if (nanos <= 0) {
+                        return false;
+                    }
+                    nanos = mTerminated.awaitNanos(nanos);
+                }
+                return true;
+            } finally {
+                mLock.unlock();
+            }
+        }
+    }
+}
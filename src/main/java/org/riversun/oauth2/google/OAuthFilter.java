@@ -23,7 +23,12 @@
 package org.riversun.oauth2.google;
 
 import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
 import javax.servlet.Filter;
@@ -33,8 +38,9 @@ import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpServletResponse;
 
+import com.google.api.client.googleapis.auth.oauth2.GoogleIdToken;
 import com.google.api.client.http.HttpResponseException;
 
 /**
@@ -48,6 +54,17 @@ public abstract class OAuthFilter implements Filter {
 	private static final Logger LOGGER = Logger.getLogger(OAuthFilter.class.getName());
 	private static final String OAUTH2_SCOPE_OPENID = "openid";
 
+	private static final String BEARER_PREFIX = "Bearer ";
+
+	private static final int DEFAULT_MAX_ID_TOKENS = 100000;
+
+	private static final long DEFAULT_STATE_TOKEN_REUSE_MILLIS = 5000;
+
+	// null if not specified
+	private OAuthPathMatcher mIncludePathMatcher;
+	private OAuthPathMatcher mExcludePathMatcher;
+	private OAuthPathMatcher mApiPathMatcher;
+
 	@Override
 	public final void init(FilterConfig config) throws ServletException {
 		// - Filter#Init is called when the filter is instantiated for the first
@@ -55,9 +72,35 @@ public abstract class OAuthFilter implements Filter {
 		LOGGER.fine("");
 
         // initialize scope for OAuth2
-        OAuthUtil.SCOPES.clear();
-        OAuthUtil.SCOPES.add(OAUTH2_SCOPE_OPENID);
-        OAuthUtil.SCOPES.addAll(getScopes());
+        final List<String> scopes = new ArrayList<String>();
+        scopes.add(OAUTH2_SCOPE_OPENID);
+        scopes.addAll(getScopes());
+        OAuthUtil.setScopes(scopes);
+
+        // null unless stateless mode is enabled
+        final CookieSessionCodec cookieSessionCodec = getCookieSessionCodec();
+
+        if (cookieSessionCodec != null && isAuthenticateEverytime() && getReauthenticationWindowMillis() <= 0 && !isReauthenticateOnIdTokenExpiry()) {
+            // the cookie can't be invalidated on the server,so a client
+            // replaying the previous cookie would stay authenticated until
+            // its max age
+            throw new ServletException("Cookie session requires re-authentication window when isAuthenticateEverytime() is true."
+                    + "Override getReauthenticationWindowMillis() or isReauthenticateOnIdTokenExpiry().");
+        }
+
+        OAuthSession.getInstance().setCookieSessionCodec(cookieSessionCodec);
+
+        // null unless stateless state is enabled
+        OAuthSession.getInstance().setSignedStateCodec(getSignedStateCodec());
+
+        if (isMetricsMBeanEnabled()) {
+            OAuthMetrics.getInstance().registerMBean();
+        }
+
+        // compile url patterns once
+        mIncludePathMatcher = OAuthPathMatcher.compile(getIncludePaths());
+        mExcludePathMatcher = OAuthPathMatcher.compile(getExcludePaths());
+        mApiPathMatcher = OAuthPathMatcher.compile(getApiPaths());
     }
 
 	/**
@@ -108,29 +151,342 @@ public abstract class OAuthFilter implements Filter {
 		return true;
 	}
 
+	/**
+	 * Returns time in millis during which an authenticated user is not
+	 * authenticated again when {@link #isAuthenticateEverytime()} is true.<br>
+	 * Within the window,requests are passed without redirecting to Google.
+	 * <br>
+	 * Returns 0(authenticate every request) by default.
+	 * 
+	 * @return
+	 */
+	protected long getReauthenticationWindowMillis() {
+		return 0;
+	}
+
+	/**
+	 * Returns true if you want to use the expiration("exp" claim) of idToken
+	 * as the end of re-authentication window instead of
+	 * {@link #getReauthenticationWindowMillis()}.<br>
+	 * Returns false by default.
+	 * 
+	 * @return
+	 */
+	protected boolean isReauthenticateOnIdTokenExpiry() {
+		return false;
+	}
+
+	/**
+	 * Returns true if you want to re-authenticate the user with
+	 * "prompt=none".<br>
+	 * If the user is still signed in to Google,the user is redirected back
+	 * without any page shown.Otherwise the flow falls back to the normal one.
+	 * <br>
+	 * Returns false by default.
+	 * 
+	 * @return
+	 */
+	protected boolean isSilentReauthentication() {
+		return false;
+	}
+
 	protected boolean isForceHttps() {
 		return false;
 	}
 
+	/**
+	 * Returns url patterns to be protected by this filter<br>
+	 * Patterns are the same as servlet url-pattern like "/app/*","*.jsp" or
+	 * "/index.html",relative to the context path.<br>
+	 * Returns empty list(all paths under the filter mapping are protected) by
+	 * default.
+	 * 
+	 * @return
+	 */
+	protected List<String> getIncludePaths() {
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Returns url patterns to be passed without OAuth2 flow like static assets
+	 * or health checks<br>
+	 * Requests to these paths neither create session nor check it.Exclude
+	 * patterns have priority over include patterns.<br>
+	 * Returns empty list by default.
+	 * 
+	 * @return
+	 */
+	protected List<String> getExcludePaths() {
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Returns true if requests are authenticated by "Authorization: Bearer
+	 * &lt;idToken&gt;" instead of OAuth2 redirect flow.<br>
+	 * For JSON APIs called from SPA or mobile clients.The idToken is verified
+	 * locally and the request is answered with 401 and JSON body if it is
+	 * missing or invalid.<br>
+	 * Verified idToken can be retrieved by
+	 * {@link OAuthSession#getBearerIdToken(HttpServletRequest)}.<br>
+	 * Returns false by default.
+	 * 
+	 * @return
+	 */
+	protected boolean isBearerTokenAuthentication() {
+		return false;
+	}
+
+	/**
+	 * Returns cache of verified idTokens used in bearer token mode<br>
+	 * Default cache is shared and holds up to 100000 tokens.
+	 * 
+	 * @return
+	 */
+	protected IdTokenCache getIdTokenCache() {
+		return DefaultIdTokenCacheHolder.CACHE;
+	}
+
+	/**
+	 * Lazy holder of default idToken cache
+	 */
+	private static final class DefaultIdTokenCacheHolder {
+		static final IdTokenCache CACHE = new IdTokenCache(DEFAULT_MAX_ID_TOKENS);
+	}
+
+	/**
+	 * Returns true if you want to register {@link OAuthMetrics} as an MBean
+	 * to the platform MBean server<br>
+	 * Returns false by default.
+	 * 
+	 * @return
+	 */
+	protected boolean isMetricsMBeanEnabled() {
+		return false;
+	}
+
+	/**
+	 * Returns codec of encrypted cookie to store the result of OAuth2 flow
+	 * instead of HttpSession.<br>
+	 * If not null,authenticated requests are passed without server-side
+	 * session lookups, so no sticky sessions or session replication are
+	 * needed.<br>
+	 * Since logout only overwrites the cookie of the client,a client replaying
+	 * the previous cookie stays authenticated until the re-authentication
+	 * window ends(or the cookie expires if {@link #isAuthenticateEverytime()}
+	 * is false).So {@link #getReauthenticationWindowMillis()} or
+	 * {@link #isReauthenticateOnIdTokenExpiry()} is required when
+	 * {@link #isAuthenticateEverytime()} is true,otherwise init fails.<br>
+	 * Returns null(use HttpSession) by default.
+	 * 
+	 * @return
+	 */
+	protected CookieSessionCodec getCookieSessionCodec() {
+		return null;
+	}
+
+	/**
+	 * Returns codec of HMAC-signed state which carries the url to return after
+	 * OAuth2 flow instead of HttpSession.<br>
+	 * If not null,redirects to the authorization server create no session,so
+	 * anonymous requests(and crawlers) don't consume session memory.The
+	 * session is created only after login succeeds.<br>
+	 * Returns null(use HttpSession) by default.
+	 * 
+	 * @return
+	 */
+	protected SignedStateCodec getSignedStateCodec() {
+		return null;
+	}
+
+	/**
+	 * Returns time in millis during which the state token pending in the
+	 * session is reused for redirects.<br>
+	 * When a page is loaded before login,requests following the page are
+	 * redirected with the same state token instead of overwriting it,so the
+	 * callback of any of them succeeds.<br>
+	 * Returns 5000 by default.Return 0 to generate a token for each redirect.
+	 * 
+	 * @return
+	 */
+	protected long getStateTokenReuseMillis() {
+		return DEFAULT_STATE_TOKEN_REUSE_MILLIS;
+	}
+
+	/**
+	 * Returns url patterns of JSON APIs<br>
+	 * Unauthenticated requests to these paths are answered with 401 and JSON
+	 * body instead of redirecting to the authorization server,regardless of
+	 * request headers.<br>
+	 * Returns empty list by default.
+	 * 
+	 * @return
+	 */
+	protected List<String> getApiPaths() {
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Returns how the unauthenticated request is answered<br>
+	 * <br>
+	 * {@link OAuthRequestType#NAVIGATION} is redirected to the authorization
+	 * server.<br>
+	 * {@link OAuthRequestType#API}(XHR/fetch or "Accept: application/json") is
+	 * answered with 401 and JSON body containing the url to log in,because
+	 * the browser can't follow the redirect to the authorization server
+	 * cross-origin.<br>
+	 * {@link OAuthRequestType#SUBRESOURCE}(image,script,stylesheet and so on)
+	 * is answered with 401,because the page itself is redirected.<br>
+	 * <br>
+	 * By default,paths of {@link #getApiPaths()} are API,and others are
+	 * classified by "Sec-Fetch-Mode"/"Sec-Fetch-Dest" headers if the browser
+	 * sends them,otherwise by "X-Requested-With" and "Accept" headers.
+	 * 
+	 * @param req
+	 * @return
+	 */
+	protected OAuthRequestType getRequestType(HttpServletRequest req) {
+
+		final OAuthPathMatcher apiPathMatcher = mApiPathMatcher;
+
+		if (apiPathMatcher != null && apiPathMatcher.matches(req)) {
+			return OAuthRequestType.API;
+		}
+
+		final String fetchMode = req.getHeader("Sec-Fetch-Mode");
+
+		if (fetchMode != null) {
+
+			if ("navigate".equals(fetchMode) || "nested-navigate".equals(fetchMode)) {
+				return OAuthRequestType.NAVIGATION;
+			}
+
+			final String fetchDest = req.getHeader("Sec-Fetch-Dest");
+
+			if (fetchDest == null || "empty".equals(fetchDest)) {
+				// - XHR/fetch
+				return OAuthRequestType.API;
+			}
+
+			if ("document".equals(fetchDest) || "iframe".equals(fetchDest) || "frame".equals(fetchDest)
+					|| "embed".equals(fetchDest) || "object".equals(fetchDest)) {
+				return OAuthRequestType.NAVIGATION;
+			}
+
+			return OAuthRequestType.SUBRESOURCE;
+		}
+
+		if ("XMLHttpRequest".equals(req.getHeader("X-Requested-With"))) {
+			return OAuthRequestType.API;
+		}
+
+		final String accept = req.getHeader("Accept");
+
+		if (accept == null) {
+			return OAuthRequestType.NAVIGATION;
+		}
+
+		if (accept.regionMatches(true, 0, "image/", 0, 6) || accept.regionMatches(true, 0, "text/css", 0, 8)) {
+			return OAuthRequestType.SUBRESOURCE;
+		}
+
+		// browsers always accept "text/html" for navigation
+		if (accept.indexOf("application/json") >= 0 && accept.indexOf("text/html") < 0) {
+			return OAuthRequestType.API;
+		}
+
+		return OAuthRequestType.NAVIGATION;
+	}
+
+	/**
+	 * Returns url to log in which is returned to API requests<br>
+	 * Navigating the browser to it starts OAuth2 flow and returns to it after
+	 * login.<br>
+	 * Returns "Referer"(the page which sent the request) if it is the same
+	 * origin,otherwise the requested url by default.
+	 * 
+	 * @param req
+	 * @return
+	 */
+	protected String getLoginUrl(HttpServletRequest req) {
+
+		final String currentUrl = OAuthHandler.getCurrentUrl(req, isForceHttps());
+		final String referer = req.getHeader("Referer");
+
+		if (referer != null) {
+
+			// "scheme://host:port" part of the current url
+			final int originEnd = currentUrl.indexOf('/', currentUrl.indexOf("://") + 3);
+			final int originLength = originEnd < 0 ? currentUrl.length() : originEnd;
+
+			if (referer.length() > originLength && referer.charAt(originLength) == '/'
+					&& referer.regionMatches(0, currentUrl, 0, originLength)) {
+				return referer;
+			}
+		}
+
+		return currentUrl;
+	}
+
+	/**
+	 * Returns generator of OAuth2 state token<br>
+	 * Override and return a shared instance like
+	 * {@link PooledStateTokenGenerator} if you want to change it.
+	 * 
+	 * @return
+	 */
+	protected StateTokenGenerator getStateTokenGenerator() {
+		return DefaultStateTokenGenerator.getInstance();
+	}
+
 	@Override
 	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
 			throws ServletException, IOException {
 
+		final OAuthMetrics metrics = OAuthMetrics.getInstance();
+
+		if (!isProtectedPath(request)) {
+			// - excluded path,pass through without touching the session
+			metrics.increment(OAuthMetrics.Counter.FILTER_EXCLUDED);
+			chain.doFilter(request, response);
+			return;
+		}
+
+		metrics.increment(OAuthMetrics.Counter.FILTER_REQUESTS);
+
+		final long startNanos = System.nanoTime();
+
+		if (isBearerTokenAuthentication()) {
+			doBearerTokenFilter((HttpServletRequest) request, (HttpServletResponse) response, chain, startNanos);
+			return;
+		}
+
 		LOGGER.fine("");
 
 		final OAuthHandler oh = new OAuthHandler(getAuthRedirectUrl())
-				.setForceUseHttps(isForceHttps());
+				.setForceUseHttps(isForceHttps())
+				.setStateTokenGenerator(getStateTokenGenerator())
+				.setStateTokenReuseMillis(getStateTokenReuseMillis());
 
-		if (isOAuth2Done(request, response)) {
+		// the result of OAuth2 flow in the HTTP session(or the encrypted
+		// cookie)
+		final OAuthAuthState state = OAuthSession.getInstance().getAuthState((HttpServletRequest) request);
+
+		if (isOAuth2Done(request, response, state)) {
 			// - If OAuth2 flow has already been passed
 
 			LOGGER.fine("OAuth2 already passed");
 
+			metrics.increment(OAuthMetrics.Counter.FILTER_AUTHENTICATED);
+			metrics.recordSince(OAuthMetrics.Timer.FILTER, startNanos);
+
             try {
                 chain.doFilter(request, response);
             } catch (HttpResponseException e) {
                 if (oh.isRevocationRelatedException(e)) {
                     LOGGER.warning("Refresh token not found or revoked.Force show authorization page.");
+                    metrics.increment(OAuthMetrics.Counter.REVOCATIONS);
+                    // the refresh token is no longer usable in the background
+                    OAuthSession.getInstance().cancelTokenRefresh(state.getUserId());
                     //e.printStackTrace();
                     final boolean forceApprovalPrompt = true;
                     oh.doOAuth2Flow(request, response, forceApprovalPrompt);
@@ -140,12 +496,173 @@ public abstract class OAuthFilter implements Filter {
 
 		} else {
 			// - If OAuth2 flow has not been passed yet
+
+			final OAuthRequestType requestType = getRequestType((HttpServletRequest) request);
+
+			if (requestType != OAuthRequestType.NAVIGATION) {
+				// - the browser can't show login page for it,so answer 401
+				// without creating session
+				LOGGER.fine(requestType + " request is not redirected");
+
+				final HttpServletResponse resp = (HttpServletResponse) response;
+
+				if (requestType == OAuthRequestType.API) {
+					metrics.increment(OAuthMetrics.Counter.API_REJECTIONS);
+					sendJsonError(resp, HttpServletResponse.SC_UNAUTHORIZED, null, "login_required", "Login is required",
+							getLoginUrl((HttpServletRequest) request));
+				} else {
+					metrics.increment(OAuthMetrics.Counter.SUBRESOURCE_REJECTIONS);
+					resp.setHeader("Cache-Control", "no-store");
+					resp.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+				}
+
+				metrics.recordSince(OAuthMetrics.Timer.FILTER, startNanos);
+				return;
+			}
+
 			final boolean forceApprovalPrompt = false;
 
+			if (state != null && state.getUserId() != null && isSilentReauthentication()) {
+				// - re-authentication of the user who has logged in before
+				oh.setPromptNone(true).setLoginHint(state.getUserId());
+			}
+
 			// do oauth2 flow
 			oh.doOAuth2Flow(request, response, forceApprovalPrompt);
+
+			metrics.recordSince(OAuthMetrics.Timer.FILTER, startNanos);
+		}
+
+	}
+
+	/**
+	 * Authenticate the request by "Authorization: Bearer &lt;idToken&gt;"
+	 * 
+	 * @param req
+	 * @param resp
+	 * @param chain
+	 * @param startNanos
+	 * @throws IOException
+	 * @throws ServletException
+	 */
+	private void doBearerTokenFilter(HttpServletRequest req, HttpServletResponse resp, FilterChain chain, long startNanos) throws IOException, ServletException {
+
+		final OAuthMetrics metrics = OAuthMetrics.getInstance();
+
+		final String authorization = req.getHeader("Authorization");
+
+		if (authorization == null || !authorization.regionMatches(true, 0, BEARER_PREFIX, 0, BEARER_PREFIX.length())) {
+			metrics.increment(OAuthMetrics.Counter.BEARER_REJECTIONS);
+			sendJsonError(resp, HttpServletResponse.SC_UNAUTHORIZED, "Bearer", "unauthorized", "Bearer token is required");
+			return;
 		}
 
+		final String idTokenString = authorization.substring(BEARER_PREFIX.length()).trim();
+
+		final GoogleIdToken idToken;
+
+		try {
+			idToken = getIdTokenCache().verify(idTokenString);
+		} catch (IOException e) {
+			LOGGER.warning("Failed to verify idToken " + e);
+			metrics.increment(OAuthMetrics.Counter.BEARER_REJECTIONS);
+			sendJsonError(resp, HttpServletResponse.SC_SERVICE_UNAVAILABLE, null, "temporarily_unavailable", "Public keys are not available");
+			return;
+		} catch (GeneralSecurityException e) {
+			LOGGER.warning("Failed to verify idToken " + e);
+			metrics.increment(OAuthMetrics.Counter.BEARER_REJECTIONS);
+			sendJsonError(resp, HttpServletResponse.SC_SERVICE_UNAVAILABLE, null, "temporarily_unavailable", "Public keys are not available");
+			return;
+		}
+
+		if (idToken == null) {
+			metrics.increment(OAuthMetrics.Counter.BEARER_REJECTIONS);
+			sendJsonError(resp, HttpServletResponse.SC_UNAUTHORIZED, "Bearer error=\"invalid_token\"", "invalid_token", "idToken is invalid or expired");
+			return;
+		}
+
+		req.setAttribute(OAuthConst.REQUEST_KEY_BEARER_ID_TOKEN, idToken);
+
+		metrics.increment(OAuthMetrics.Counter.FILTER_AUTHENTICATED);
+		metrics.recordSince(OAuthMetrics.Timer.FILTER, startNanos);
+
+		chain.doFilter(req, resp);
+	}
+
+	/**
+	 * Send error with JSON body like
+	 * {"error":"invalid_token","error_description":"..."}
+	 * 
+	 * @param resp
+	 * @param status
+	 * @param wwwAuthenticate
+	 *            value of "WWW-Authenticate" header(nullable)
+	 * @param error
+	 * @param errorDescription
+	 * @throws IOException
+	 */
+	private static void sendJsonError(HttpServletResponse resp, int status, String wwwAuthenticate, String error, String errorDescription) throws IOException {
+		sendJsonError(resp, status, wwwAuthenticate, error, errorDescription, null);
+	}
+
+	/**
+	 * Send error with JSON body like
+	 * {"error":"login_required","error_description":"...","login_url":"..."}
+	 * 
+	 * @param resp
+	 * @param status
+	 * @param wwwAuthenticate
+	 *            value of "WWW-Authenticate" header(nullable)
+	 * @param error
+	 * @param errorDescription
+	 * @param loginUrl
+	 *            url to log in(nullable)
+	 * @throws IOException
+	 */
+	private static void sendJsonError(HttpServletResponse resp, int status, String wwwAuthenticate, String error, String errorDescription, String loginUrl) throws IOException {
+
+		final Map<String, Object> body = new LinkedHashMap<String, Object>();
+		body.put("error", error);
+		body.put("error_description", errorDescription);
+
+		if (loginUrl != null) {
+			body.put("login_url", loginUrl);
+		}
+
+		resp.setStatus(status);
+
+		if (wwwAuthenticate != null) {
+			resp.setHeader("WWW-Authenticate", wwwAuthenticate);
+		}
+
+		resp.setHeader("Cache-Control", "no-store");
+		resp.setContentType("application/json;charset=UTF-8");
+		resp.getWriter().write(OAuthUtil.JSON_FACTORY.toString(body));
+	}
+
+	/**
+	 * Check if the request path is protected by include/exclude patterns
+	 * 
+	 * @param request
+	 * @return
+	 */
+	private boolean isProtectedPath(ServletRequest request) {
+
+		final OAuthPathMatcher includePathMatcher = mIncludePathMatcher;
+		final OAuthPathMatcher excludePathMatcher = mExcludePathMatcher;
+
+		if (includePathMatcher == null && excludePathMatcher == null) {
+			return true;
+		}
+
+		// decoded and normalized path,not the raw request uri
+		final String path = OAuthPathMatcher.getPathInContext((HttpServletRequest) request);
+
+		if (excludePathMatcher != null && excludePathMatcher.matches(path)) {
+			return false;
+		}
+
+		return includePathMatcher == null || includePathMatcher.matches(path);
 	}
 
 	/**
@@ -153,18 +670,14 @@ public abstract class OAuthFilter implements Filter {
 	 * 
 	 * @param request
 	 * @param response
+	 * @param state
 	 * @return
 	 * @throws IOException
 	 * @throws ServletException
 	 */
-	private boolean isOAuth2Done(ServletRequest request, ServletResponse response) throws IOException, ServletException {
-
-		final HttpServletRequest req = (HttpServletRequest) request;
+	private boolean isOAuth2Done(ServletRequest request, ServletResponse response, OAuthAuthState state) throws IOException, ServletException {
 
-		// check if ACCESS_TOKEN exists in the HTTP session
-		final HttpSession session = req.getSession();
-
-		final boolean isOAuth2Done = session.getAttribute(OAuthConst.SESSION_KEY_OAUTH2_DONE) != null;
+		final boolean isOAuth2Done = state != null && state.isOAuth2Done();
 
 		LOGGER.fine("isOAuth2Done=" + isOAuth2Done);
 
@@ -173,7 +686,17 @@ public abstract class OAuthFilter implements Filter {
 			// - If already authenticated
 
 			if (isAuthenticateEverytime()) {
-				session.setAttribute(OAuthConst.SESSION_KEY_OAUTH2_DONE, null);
+
+				final Long reauthenticateAt = getReauthenticateAt(state);
+
+				if (reauthenticateAt == null) {
+					// - re-authenticate on the next request
+					OAuthSession.getInstance().setAuthState((HttpServletRequest) request, (HttpServletResponse) response, state.withOAuth2Done(false));
+				} else if (System.currentTimeMillis() >= reauthenticateAt) {
+					// - re-authentication window expired
+					LOGGER.fine("Re-authentication window expired at " + reauthenticateAt);
+					return false;
+				}
 			}
 
 			return true;
@@ -185,6 +708,27 @@ public abstract class OAuthFilter implements Filter {
 		}
 	}
 
+	/**
+	 * Returns epoch millis when the user must be authenticated again
+	 * 
+	 * @param state
+	 * @return null if re-authentication window is not enabled
+	 */
+	private Long getReauthenticateAt(OAuthAuthState state) {
+
+		if (isReauthenticateOnIdTokenExpiry() && state.getIdTokenExpiresAt() != null) {
+			return state.getIdTokenExpiresAt();
+		}
+
+		final long reauthenticationWindowMillis = getReauthenticationWindowMillis();
+
+		if (reauthenticationWindowMillis > 0 && state.getAuthenticatedAt() != null) {
+			return state.getAuthenticatedAt() + reauthenticationWindowMillis;
+		}
+
+		return null;
+	}
+
 	@Override
 	public void destroy() {
 	}
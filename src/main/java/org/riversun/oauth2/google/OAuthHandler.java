@@ -23,8 +23,13 @@
 package org.riversun.oauth2.google;
 
 import java.io.IOException;
-import java.math.BigInteger;
-import java.security.SecureRandom;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
@@ -34,10 +39,9 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import com.google.api.client.auth.oauth2.TokenResponseException;
+import com.google.api.client.auth.openidconnect.IdTokenVerifier;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
-import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeRequestUrl;
 import com.google.api.client.googleapis.auth.oauth2.GoogleIdToken;
-import com.google.api.client.googleapis.auth.oauth2.GoogleIdTokenVerifier;
 import com.google.api.client.googleapis.auth.oauth2.GoogleTokenResponse;
 import com.google.api.client.http.HttpResponseException;
 
@@ -51,8 +55,20 @@ public final class OAuthHandler {
 
     private static final Logger LOGGER = Logger.getLogger(OAuthHandler.class.getName());
 
+    // Thread-safe.Verifies issuer and expiration of idToken(not signature)
+    private static final IdTokenVerifier ID_TOKEN_VERIFIER = new IdTokenVerifier.Builder()
+            .setIssuers(Arrays.asList("accounts.google.com", "https://accounts.google.com"))
+            .build();
+
     private final String mRedirectUrl;
     private boolean mForceUseHttps = false;
+    private StateTokenGenerator mStateTokenGenerator = DefaultStateTokenGenerator.getInstance();
+    private boolean mPromptNone = false;
+    private String mLoginHint = null;
+    private AccessTokenInfoCache mAccessTokenInfoCache = null;
+    private SignedStateCodec mSignedStateCodec = OAuthSession.getInstance().getSignedStateCodec();
+    private String mReturnUrl = null;
+    private long mStateTokenReuseMillis = 0;
 
     public OAuthHandler(String redirectUrl) {
         mRedirectUrl = redirectUrl;
@@ -70,6 +86,104 @@ public final class OAuthHandler {
         return OAuthHandler.this;
     }
 
+    /**
+     * Set generator of state token
+     * 
+     * @param stateTokenGenerator
+     * @return
+     */
+    public OAuthHandler setStateTokenGenerator(StateTokenGenerator stateTokenGenerator) {
+        mStateTokenGenerator = stateTokenGenerator;
+        return OAuthHandler.this;
+    }
+
+    /**
+     * Set time in millis during which the pending state token in the session
+     * is reused for redirects instead of generating a new one<br>
+     * Requests of a page loaded before login are redirected with the same
+     * state token.Returns 0(always generate) by default.
+     * 
+     * @param stateTokenReuseMillis
+     * @return
+     */
+    public OAuthHandler setStateTokenReuseMillis(long stateTokenReuseMillis) {
+        mStateTokenReuseMillis = stateTokenReuseMillis;
+        return OAuthHandler.this;
+    }
+
+    /**
+     * Set codec of signed state<br>
+     * If not null,the state token and the url to return after OAuth2 flow are
+     * carried by "state" parameter and no session is created.<br>
+     * {@link OAuthSession#getSignedStateCodec()} is used by default.
+     * 
+     * @param signedStateCodec
+     * @return
+     */
+    public OAuthHandler setSignedStateCodec(SignedStateCodec signedStateCodec) {
+        mSignedStateCodec = signedStateCodec;
+        return OAuthHandler.this;
+    }
+
+    /**
+     * Set url to return after OAuth2 flow<br>
+     * The currently requested url is used by default.
+     * 
+     * @param returnUrl
+     * @return
+     */
+    public OAuthHandler setReturnUrl(String returnUrl) {
+        mReturnUrl = returnUrl;
+        return OAuthHandler.this;
+    }
+
+    /**
+     * Set cache used by {@link #introspectAccessToken(String)}<br>
+     * Shared cache of up to 100000 tokens is used by default.
+     * 
+     * @param accessTokenInfoCache
+     * @return
+     */
+    public OAuthHandler setAccessTokenInfoCache(AccessTokenInfoCache accessTokenInfoCache) {
+        mAccessTokenInfoCache = accessTokenInfoCache;
+        return OAuthHandler.this;
+    }
+
+    /**
+     * Lazy holder of default access token info cache
+     */
+    private static final class DefaultAccessTokenInfoCacheHolder {
+        static final AccessTokenInfoCache CACHE = new AccessTokenInfoCache(100000);
+    }
+
+    /**
+     * Set whether to re-authenticate with "prompt=none"<br>
+     * If the user is still signed in to Google,the code is returned without
+     * showing any page.If not,{@link OAuthCallbackServlet} receives an error
+     * like "login_required" and starts the flow again without "prompt=none".
+     * <br>
+     * Ignored when approval prompt is forced.
+     * 
+     * @param enabled
+     * @return
+     */
+    public OAuthHandler setPromptNone(boolean enabled) {
+        mPromptNone = enabled;
+        return OAuthHandler.this;
+    }
+
+    /**
+     * Set "login_hint" used with "prompt=none"
+     * 
+     * @param loginHint
+     *            email address or user id(sub) of the user
+     * @return
+     */
+    public OAuthHandler setLoginHint(String loginHint) {
+        mLoginHint = loginHint;
+        return OAuthHandler.this;
+    }
+
     /**
      * Start OAuth2 flow<br>
      * <br>
@@ -110,48 +224,83 @@ public final class OAuthHandler {
 
         LOGGER.fine("");
 
+        final long startNanos = System.nanoTime();
+
         final HttpServletRequest req = (HttpServletRequest) request;
         final HttpServletResponse resp = (HttpServletResponse) response;
 
-        // generate state token for adressing CSRF
-        final String stateToken = generateStateToken();
+        final String stateToken;
+
+        final SignedStateCodec signedStateCodec = mSignedStateCodec;
 
-        LOGGER.fine("SET SESSION stateToken=" + stateToken);
-        req.getSession().setAttribute(OAuthConst.SESSION_KEY_OAUTH2_STATE_TOKEN, stateToken);
+        if (signedStateCodec != null) {
+            // - stateless,the return url is carried by the signed state itself
 
-        final String storedRedirectAppUrl = (String) req.getSession().getAttribute(OAuthConst.SESSION_KEY_REDIRECT_URL_AFTER_OAUTH);
+            final String returnUrl = mReturnUrl != null ? mReturnUrl : getCurrentUrl(req, mForceUseHttps);
 
-        if (storedRedirectAppUrl == null) {
-            
-            final String currentUrl = getCurrentUrl(req, mForceUseHttps);
+            stateToken = signedStateCodec.issue(req, resp, returnUrl);
 
-            LOGGER.fine("SET SESSION currentUrl=" + currentUrl);
-            req.getSession().setAttribute(OAuthConst.SESSION_KEY_REDIRECT_URL_AFTER_OAUTH, currentUrl);
+            LOGGER.fine("signed state returnUrl=" + returnUrl);
 
         } else {
 
+            // state tokens pending in the session,several flows started by
+            // concurrent requests can be completed
+            final PendingStateTokens pendingStateTokens = PendingStateTokens.getOrCreate(req);
+
+            final long now = System.currentTimeMillis();
+
+            final String reusedStateToken = pendingStateTokens.reuse(now, mStateTokenReuseMillis);
+
+            if (reusedStateToken != null) {
+
+                stateToken = reusedStateToken;
+
+                LOGGER.fine("REUSE SESSION stateToken=" + stateToken);
+                OAuthMetrics.getInstance().increment(OAuthMetrics.Counter.REDIRECTS_COALESCED);
+
+            } else {
+
+                // generate state token for adressing CSRF
+                stateToken = generateStateToken();
+
+                LOGGER.fine("SET SESSION stateToken=" + stateToken);
+                pendingStateTokens.add(stateToken, now);
+            }
+
+            pendingStateTokens.save(req);
+
+            final String storedRedirectAppUrl = (String) req.getSession().getAttribute(OAuthConst.SESSION_KEY_REDIRECT_URL_AFTER_OAUTH);
+
+            if (storedRedirectAppUrl == null) {
+
+                final String currentUrl = mReturnUrl != null ? mReturnUrl : getCurrentUrl(req, mForceUseHttps);
+
+                LOGGER.fine("SET SESSION currentUrl=" + currentUrl);
+                req.getSession().setAttribute(OAuthConst.SESSION_KEY_REDIRECT_URL_AFTER_OAUTH, currentUrl);
+            }
         }
-        
-        final GoogleAuthorizationCodeRequestUrl authorizationCodeRequestUrl = OAuthUtil.createFlow()
-                .newAuthorizationUrl()
-                .setAccessType("offline")
-                .setRedirectUri(mRedirectUrl)
-                .setState(stateToken);
-
-        if (forceApprovalPrompt) {
-            // When you want to confirm every time (set both
-            // setAccessType ("offline") and setApprovalPrompt("force"), you can
-            // get refreshtoken every time.
-            authorizationCodeRequestUrl.setApprovalPrompt("force");
-        }
 
-        final String authUrl = authorizationCodeRequestUrl.toString();
+        // static part of the url is encoded once and only state is appended
+        final OAuthUrlTemplate urlTemplate = OAuthUrlTemplate.get(OAuthUtil.getFlow(), mRedirectUrl);
+
+        final String authUrl;
+
+        if (mPromptNone && !forceApprovalPrompt) {
+            authUrl = urlTemplate.buildPromptNone(stateToken, mLoginHint);
+        } else {
+            authUrl = urlTemplate.build(stateToken, forceApprovalPrompt);
+        }
 
-        LOGGER.fine("redirect to auth url=" + authorizationCodeRequestUrl.toString());
+        LOGGER.fine("redirect to auth url=" + authUrl);
 
         // redirect to authorization code request url
         resp.sendRedirect(authUrl);
 
+        final OAuthMetrics metrics = OAuthMetrics.getInstance();
+        metrics.increment(OAuthMetrics.Counter.REDIRECTS);
+        metrics.recordSince(OAuthMetrics.Timer.REDIRECT, startNanos);
+
     }
 
     /**
@@ -160,7 +309,7 @@ public final class OAuthHandler {
      * @return
      */
     private final String generateStateToken() {
-        final String stateToken = new BigInteger(130, new SecureRandom()).toString(32);
+        final String stateToken = mStateTokenGenerator.generate();
         return stateToken;
     }
 
@@ -172,27 +321,34 @@ public final class OAuthHandler {
      *            true:forcibly change the currently requested URL to "https"
      * @return
      */
-    private String getCurrentUrl(final HttpServletRequest req, boolean forceUseHttps) {
+    static String getCurrentUrl(final HttpServletRequest req, boolean forceUseHttps) {
 
         final String scheme = forceUseHttps ? "https" : req.getScheme();
+        final String serverName = req.getServerName();
         final int currentPort = req.getServerPort();
 
-        final StringBuilder sb = new StringBuilder();
+        final String requestURI = req.getRequestURI();
+        final String queryString = req.getQueryString();
+        final boolean hasQueryString = queryString != null && !queryString.isEmpty();
+
+        // sized for "scheme://host:port" + uri + "?query"
+        final StringBuilder sb = new StringBuilder(scheme.length() + serverName.length() + 9 + requestURI.length()
+                + (hasQueryString ? queryString.length() + 1 : 0));
 
         sb.append(scheme);
         sb.append("://");
-        sb.append(req.getServerName());
+        sb.append(serverName);
 
         if (currentPort != 80 && currentPort != 443) {
             sb.append(":");
             sb.append(currentPort);
         }
 
-        sb.append(req.getRequestURI());
+        sb.append(requestURI);
 
-        if (req.getQueryString() != null && !req.getQueryString().isEmpty()) {
+        if (hasQueryString) {
             sb.append("?");
-            sb.append(req.getQueryString());
+            sb.append(queryString);
         }
 
         final String currentUrl = sb.toString();
@@ -204,24 +360,64 @@ public final class OAuthHandler {
      * Get token response by authorization code<br>
      * 
      * @param code
-     * @return
+     * @return null if the token request failed or was rejected
+     */
+    public GoogleTokenResponse getTokenResponseFromCode(final String code) {
+        try {
+            return requestTokenResponse(code);
+        } catch (OAuthCallRejectedException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Get token response by authorization code,telling the rejection by
+     * {@link OAuthCallGuard} from other failures
+     * 
+     * @param code
+     * @return null if the token request failed
+     * @throws OAuthCallRejectedException
+     *             rejected without accessing Google
      */
-    public GoogleTokenResponse getTokenResponseFromCode(String code) {
+    GoogleTokenResponse requestTokenResponse(final String code) throws OAuthCallRejectedException {
 
         LOGGER.fine("code=" + code);
 
+        final OAuthMetrics metrics = OAuthMetrics.getInstance();
+
+        final long startNanos = System.nanoTime();
+
         GoogleTokenResponse tokenResponse = null;
 
         try {
 
-            final GoogleAuthorizationCodeFlow flow = OAuthUtil.createFlow();
+            final GoogleAuthorizationCodeFlow flow = OAuthUtil.getFlow();
+
+            final OAuthCallGuard callGuard = OAuthUtil.getCallGuard();
 
             LOGGER.fine("execute newTokenRequest(" + code + ")");
 
-            tokenResponse = flow
-                    .newTokenRequest(code)
-                    .setRedirectUri(mRedirectUrl)
-                    .execute();
+            // limit concurrency,fail fast while Google is unavailable and
+            // retry errors which are safe to retry
+            tokenResponse = callGuard.execute(new Callable<GoogleTokenResponse>() {
+                @Override
+                public GoogleTokenResponse call() throws IOException {
+                    return flow
+                            .newTokenRequest(code)
+                            .setRedirectUri(mRedirectUrl)
+                            .setRequestInitializer(callGuard.getRequestInitializer(flow.getRequestInitializer()))
+                            .execute();
+                }
+            });
+
+        } catch (OAuthCallRejectedException e) {
+
+            LOGGER.warning("Token request was rejected " + e.getMessage());
+
+            metrics.increment(OAuthMetrics.Counter.TOKEN_EXCHANGE_FAILURES);
+            metrics.recordSince(OAuthMetrics.Timer.TOKEN_EXCHANGE, startNanos);
+
+            throw e;
 
         } catch (Exception e) {
 
@@ -235,11 +431,51 @@ public final class OAuthHandler {
             // TODO
             e.printStackTrace();
 
+            metrics.increment(OAuthMetrics.Counter.TOKEN_EXCHANGE_FAILURES);
         }
 
+        metrics.recordSince(OAuthMetrics.Timer.TOKEN_EXCHANGE, startNanos);
+
         return tokenResponse;
     }
 
+    /**
+     * Get token response by authorization code on the executor<br>
+     * The future completes with null if the token request failed in the same
+     * way as {@link OAuthHandler#getTokenResponseFromCode(String)}.
+     * 
+     * @param code
+     * @param executor
+     * @return
+     */
+    public CompletableFuture<GoogleTokenResponse> getTokenResponseFromCodeAsync(final String code, Executor executor) {
+
+        return CompletableFuture.supplyAsync(new Supplier<GoogleTokenResponse>() {
+            @Override
+            public GoogleTokenResponse get() {
+                return getTokenResponseFromCode(code);
+            }
+        }, executor);
+    }
+
+    /**
+     * Parse and verify idToken of tokenResponse on the executor<br>
+     * The future completes with null if verification failed.
+     * 
+     * @param tokenResponse
+     * @param executor
+     * @return
+     */
+    public CompletableFuture<GoogleIdToken> getIdTokenAsync(final GoogleTokenResponse tokenResponse, Executor executor) {
+
+        return CompletableFuture.supplyAsync(new Supplier<GoogleIdToken>() {
+            @Override
+            public GoogleIdToken get() {
+                return getIdToken(tokenResponse);
+            }
+        }, executor);
+    }
+
     /**
      * Parse tokenResponse and returns idToken
      * 
@@ -254,26 +490,77 @@ public final class OAuthHandler {
             return null;
         }
 
-        // GoogleIdTokenVerifier is Not-thread-safe.
-        // access "https://www.googleapis.com/oauth2/v1/certs" for verification
-        final GoogleIdTokenVerifier idTokenVerifier = new GoogleIdTokenVerifier(OAuthUtil.HTTP_TRANSPORT, OAuthUtil.JSON_FACTORY);
+        final OAuthMetrics metrics = OAuthMetrics.getInstance();
+
+        final long startNanos = System.nanoTime();
 
         GoogleIdToken idToken = null;
 
         try {
             idToken = GoogleIdToken.parse(OAuthUtil.JSON_FACTORY, tokenResponse.getIdToken());
 
-            if (!idTokenVerifier.verify(idToken)) {
-                return null;
+            if (!verifyIdToken(idToken)) {
+                idToken = null;
             }
 
         } catch (Exception e) {
             e.printStackTrace();
-            return null;
+            idToken = null;
         }
+
+        if (idToken == null) {
+            metrics.increment(OAuthMetrics.Counter.ID_TOKEN_VERIFICATION_FAILURES);
+        }
+
+        metrics.recordSince(OAuthMetrics.Timer.ID_TOKEN_VERIFICATION, startNanos);
+
         return idToken;
     }
 
+    /**
+     * Verify issuer,expiration and signature of idToken<br>
+     * Signature is verified with the public keys cached in
+     * {@link OAuthKeyStore} instead of accessing
+     * "https://www.googleapis.com/oauth2/v1/certs" every time.
+     * 
+     * @param idToken
+     * @return
+     * @throws GeneralSecurityException
+     * @throws IOException
+     */
+    static boolean verifyIdToken(GoogleIdToken idToken) throws GeneralSecurityException, IOException {
+
+        if (!ID_TOKEN_VERIFIER.verify(idToken)) {
+            return false;
+        }
+
+        for (PublicKey publicKey : OAuthKeyStore.getInstance().getPublicKeys()) {
+            if (idToken.verifySignature(publicKey)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Validate access token received from other components by tokeninfo
+     * endpoint<br>
+     * Results are cached,valid tokens until they expire and invalid tokens for
+     * a short time.
+     * 
+     * @param accessToken
+     * @return null if the token is invalid or expired
+     * @throws IOException
+     *             tokeninfo endpoint is not available
+     */
+    public AccessTokenInfo introspectAccessToken(String accessToken) throws IOException {
+
+        final AccessTokenInfoCache accessTokenInfoCache = mAccessTokenInfoCache != null ? mAccessTokenInfoCache : DefaultAccessTokenInfoCacheHolder.CACHE;
+
+        return accessTokenInfoCache.introspect(accessToken);
+    }
+
     /**
      * Returns true if token revocation occurred
      * 
@@ -0,0 +1,363 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.json.GenericJson;
+
+/**
+ * Shared store of Google's public signing keys used to verify idTokens<br>
+ * <br>
+ * Keys are fetched from the certs endpoint once and kept until the
+ * "Cache-Control: max-age" of the response expires.<br>
+ * Before they expire, a background thread fetches them again. If the refresh
+ * fails, the keys already held are still served and the refresh is retried
+ * later.<br>
+ * <br>
+ * For testing, the certs url can be pointed at a stub server or a local file
+ * (like "file:/path/to/certs.json") by {@link OAuthKeyStore#setCertsUrl}.<br>
+ * Both PEM certificates(v1) and JWK set(v3) formats are accepted.<br>
+ * Thread-safe
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public final class OAuthKeyStore {
+
+    private static final Logger LOGGER = Logger.getLogger(OAuthKeyStore.class.getName());
+
+    public static final String DEFAULT_CERTS_URL = "https://www.googleapis.com/oauth2/v1/certs";
+
+    // used when "max-age" is not available(ex. local file)
+    private static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    // refresh keys this time before they expire
+    private static final long REFRESH_SKEW_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    // lower bound of refresh interval to avoid hammering the endpoint
+    private static final long MIN_REFRESH_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final OAuthKeyStore instance = new OAuthKeyStore();
+
+    private final Object mLoadLock = new Object();
+
+    private final ScheduledExecutorService mScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "oauth2-keystore-refresh");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private volatile String mCertsUrl = DEFAULT_CERTS_URL;
+
+    private volatile List<PublicKey> mPublicKeys = null;
+
+    // epoch millis when current keys expire
+    private volatile long mExpirationTimeMillis = 0;
+
+    // incremented when the certs url is changed to discard pending refresh
+    private volatile int mGeneration = 0;
+
+    private OAuthKeyStore() {
+    }
+
+    public static OAuthKeyStore getInstance() {
+        return instance;
+    }
+
+    /**
+     * Set url of certs endpoint<br>
+     * Keys already loaded are discarded.
+     * 
+     * @param certsUrl
+     *            url like "https://www.googleapis.com/oauth2/v1/certs" or
+     *            "file:/path/to/certs.json"
+     */
+    public void setCertsUrl(String certsUrl) {
+        synchronized (mLoadLock) {
+            mCertsUrl = certsUrl;
+            mGeneration++;
+            mPublicKeys = null;
+            mExpirationTimeMillis = 0;
+        }
+    }
+
+    public String getCertsUrl() {
+        return mCertsUrl;
+    }
+
+    /**
+     * Returns epoch millis when current keys expire
+     * 
+     * @return
+     */
+    public long getExpirationTimeMillis() {
+        return mExpirationTimeMillis;
+    }
+
+    /**
+     * Returns public keys<br>
+     * Keys are loaded synchronously only for the first time,after that cached
+     * keys are returned and refreshed in the background.
+     * 
+     * @return
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public List<PublicKey> getPublicKeys() throws IOException, GeneralSecurityException {
+
+        final List<PublicKey> publicKeys = mPublicKeys;
+
+        if (publicKeys != null) {
+            return publicKeys;
+        }
+
+        synchronized (mLoadLock) {
+
+            if (mPublicKeys == null) {
+                refresh(mGeneration);
+            }
+
+            return mPublicKeys;
+        }
+    }
+
+    /**
+     * Fetch keys from certs url and schedule the next refresh
+     * 
+     * @param generation
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    private void refresh(int generation) throws IOException, GeneralSecurityException {
+
+        final String certsUrl = mCertsUrl;
+
+        LOGGER.fine("certsUrl=" + certsUrl);
+
+        final long now = System.currentTimeMillis();
+
+        final List<PublicKey> publicKeys;
+        final long maxAgeMillis;
+
+        if (certsUrl.startsWith("file:")) {
+
+            final InputStream is = new URL(certsUrl).openStream();
+            try {
+                publicKeys = parseKeys(is);
+            } finally {
+                is.close();
+            }
+            maxAgeMillis = DEFAULT_MAX_AGE_MILLIS;
+
+        } else {
+
+            final OAuthTransport transport = OAuthUtil.getTransport();
+            final OAuthCallGuard callGuard = OAuthUtil.getCallGuard();
+
+            final FetchedKeys fetchedKeys = callGuard.execute(new Callable<FetchedKeys>() {
+                @Override
+                public FetchedKeys call() throws IOException, GeneralSecurityException {
+
+                    final HttpResponse response = transport.getHttpTransport()
+                            .createRequestFactory(callGuard.getRequestInitializer(transport.getRequestInitializer()))
+                            .buildGetRequest(new GenericUrl(certsUrl))
+                            .execute();
+                    try {
+                        return new FetchedKeys(parseKeys(response.getContent()), getMaxAgeMillis(response.getHeaders().getCacheControl()));
+                    } finally {
+                        response.disconnect();
+                    }
+                }
+            });
+
+            publicKeys = fetchedKeys.publicKeys;
+            maxAgeMillis = fetchedKeys.maxAgeMillis;
+        }
+
+        synchronized (mLoadLock) {
+
+            if (generation != mGeneration) {
+                // certs url was changed while fetching
+                return;
+            }
+
+            mPublicKeys = publicKeys;
+            mExpirationTimeMillis = now + maxAgeMillis;
+        }
+
+        LOGGER.fine("loaded " + publicKeys.size() + " keys, maxAge=" + maxAgeMillis + "ms");
+
+        scheduleRefresh(generation, Math.max(maxAgeMillis - REFRESH_SKEW_MILLIS, MIN_REFRESH_INTERVAL_MILLIS));
+    }
+
+    /**
+     * Keys fetched from certs url and their max age
+     */
+    private static final class FetchedKeys {
+
+        final List<PublicKey> publicKeys;
+        final long maxAgeMillis;
+
+        FetchedKeys(List<PublicKey> publicKeys, long maxAgeMillis) {
+            this.publicKeys = publicKeys;
+            this.maxAgeMillis = maxAgeMillis;
+        }
+    }
+
+    private void scheduleRefresh(final int generation, long delayMillis) {
+
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+
+                if (generation != mGeneration) {
+                    return;
+                }
+
+                try {
+                    refresh(generation);
+                } catch (Exception e) {
+                    // keep serving current keys and retry later
+                    LOGGER.warning("Failed to refresh public keys from " + mCertsUrl + " " + e);
+                    scheduleRefresh(generation, MIN_REFRESH_INTERVAL_MILLIS);
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Parse certs json like {"keyId":"-----BEGIN CERTIFICATE-----..."} or JWK
+     * set like {"keys":[{"kty":"RSA","n":"...","e":"AQAB"}]}
+     * 
+     * @param is
+     * @return
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    private List<PublicKey> parseKeys(InputStream is) throws IOException, GeneralSecurityException {
+
+        final GenericJson json = OAuthUtil.JSON_FACTORY.fromInputStream(is, UTF_8, GenericJson.class);
+
+        final List<PublicKey> publicKeys = new ArrayList<PublicKey>();
+
+        final Object jwks = json.get("keys");
+
+        if (jwks instanceof List) {
+
+            final KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+
+            for (Object jwk : (List<?>) jwks) {
+
+                if (!(jwk instanceof Map) || !"RSA".equals(((Map<?, ?>) jwk).get("kty"))) {
+                    continue;
+                }
+
+                final Map<?, ?> rsaJwk = (Map<?, ?>) jwk;
+
+                final BigInteger modulus = new BigInteger(1, Base64.getUrlDecoder().decode((String) rsaJwk.get("n")));
+                final BigInteger exponent = new BigInteger(1, Base64.getUrlDecoder().decode((String) rsaJwk.get("e")));
+
+                publicKeys.add(keyFactory.generatePublic(new RSAPublicKeySpec(modulus, exponent)));
+            }
+
+        } else {
+
+            final CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
+
+            for (Object certValue : json.values()) {
+
+                if (!(certValue instanceof String)) {
+                    continue;
+                }
+
+                final X509Certificate x509Cert = (X509Certificate) certificateFactory.generateCertificate(
+                        new ByteArrayInputStream(((String) certValue).getBytes(UTF_8)));
+
+                publicKeys.add(x509Cert.getPublicKey());
+            }
+        }
+
+        if (publicKeys.isEmpty()) {
+            throw new IOException("No public keys found");
+        }
+
+        return Collections.unmodifiableList(publicKeys);
+    }
+
+    /**
+     * Returns max-age of "Cache-Control" header in millis
+     * 
+     * @param cacheControl
+     * @return
+     */
+    static long getMaxAgeMillis(String cacheControl) {
+
+        if (cacheControl == null) {
+            return DEFAULT_MAX_AGE_MILLIS;
+        }
+
+        for (String directive : cacheControl.split(",")) {
+
+            final String trimmed = directive.trim();
+
+            if (trimmed.startsWith("max-age=")) {
+                try {
+                    return TimeUnit.SECONDS.toMillis(Long.parseLong(trimmed.substring("max-age=".length())));
+                } catch (NumberFormatException e) {
+                    break;
+                }
+            }
+        }
+
+        return DEFAULT_MAX_AGE_MILLIS;
+    }
+}
@@ -0,0 +1,481 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Counters and latency histograms of each stage of OAuth2 flow<br>
+ * <br>
+ * Counters are LongAdders and latencies are recorded in
+ * {@link LatencyHistogram},so recording on the hot path neither allocates nor
+ * locks.<br>
+ * Metrics can be read by JMX({@link #registerMBean()}) or in Prometheus text
+ * format by {@link OAuthMetricsServlet}.<br>
+ * Thread-safe
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public final class OAuthMetrics {
+
+    private static final Logger LOGGER = Logger.getLogger(OAuthMetrics.class.getName());
+
+    public static final String OBJECT_NAME = "org.riversun.oauth2.google:type=OAuthMetrics";
+
+    private static final String PREFIX = "goauth_";
+
+    private static final double NANOS_PER_SECOND = 1000000000.0;
+
+    private static final double[] PERCENTILES = { 50.0, 90.0, 99.0 };
+
+    private static final OAuthMetrics instance = new OAuthMetrics();
+
+    /**
+     * Counted events
+     */
+    public enum Counter {
+
+        FILTER_REQUESTS("filter_requests_total", "Requests handled by OAuthFilter"),
+        FILTER_EXCLUDED("filter_excluded_total", "Requests passed by exclude paths"),
+        FILTER_AUTHENTICATED("filter_authenticated_total", "Requests passed as already authenticated"),
+        REDIRECTS("redirects_total", "Redirects to authorization endpoint"),
+        REDIRECTS_COALESCED("redirects_coalesced_total", "Redirects reusing the pending state token"),
+        API_REJECTIONS("api_rejections_total", "Unauthenticated API requests answered with 401 and login url"),
+        SUBRESOURCE_REJECTIONS("subresource_rejections_total", "Unauthenticated subresource requests answered without redirect"),
+        CALLBACKS("callbacks_total", "Requests to OAuthCallbackServlet"),
+        STATE_MISMATCHES("state_mismatches_total", "Callbacks with invalid state token"),
+        TOKEN_EXCHANGE_FAILURES("token_exchange_failures_total", "Failed authorization code exchanges"),
+        ID_TOKEN_VERIFICATION_FAILURES("id_token_verification_failures_total", "idTokens failed verification"),
+        LOGINS("logins_total", "Completed logins"),
+        REVOCATIONS("revocations_total", "Revoked or missing refresh tokens detected by OAuthFilter"),
+        BEARER_REJECTIONS("bearer_rejections_total", "Requests rejected in bearer token mode");
+
+        private final String mName;
+        private final String mHelp;
+
+        private Counter(String name, String help) {
+            mName = name;
+            mHelp = help;
+        }
+
+        public String getMetricName() {
+            return PREFIX + mName;
+        }
+    }
+
+    /**
+     * Timed stages
+     */
+    public enum Timer {
+
+        FILTER("filter_seconds", "Time spent in OAuthFilter excluding the filter chain"),
+        REDIRECT("redirect_seconds", "Time to build and send redirect to authorization endpoint"),
+        TOKEN_EXCHANGE("token_exchange_seconds", "Time to exchange authorization code for tokens"),
+        ID_TOKEN_VERIFICATION("id_token_verification_seconds", "Time to parse and verify idToken"),
+        CALLBACK("callback_seconds", "Time to handle OAuth2 callback");
+
+        private final String mName;
+        private final String mHelp;
+
+        private Timer(String name, String help) {
+            mName = name;
+            mHelp = help;
+        }
+
+        public String getMetricName() {
+            return PREFIX + mName;
+        }
+    }
+
+    /**
+     * Metrics read from other components of OAuth2 flow,exported in the same
+     * way as {@link Counter}
+     */
+    private enum ComponentMetric {
+
+        REFRESHES("refreshes_total", "Access token refreshes sent to token endpoint", true) {
+            @Override
+            long read() {
+                return RefreshCoordinator.getInstance().getRefreshCount();
+            }
+        },
+        REFRESHES_COALESCED("refreshes_coalesced_total", "Access token refreshes coalesced into another refresh", true) {
+            @Override
+            long read() {
+                return RefreshCoordinator.getInstance().getCoalescedCount();
+            }
+        },
+        CODE_EXCHANGES("code_exchanges_total", "Authorization code exchanges sent to token endpoint", true) {
+            @Override
+            long read() {
+                return CodeExchangeCache.getInstance().getExchangeCount();
+            }
+        },
+        CODE_EXCHANGES_DEDUPLICATED("code_exchanges_deduplicated_total", "Duplicate callbacks which reused the result of code exchange", true) {
+            @Override
+            long read() {
+                return CodeExchangeCache.getInstance().getDeduplicatedCount();
+            }
+        },
+        CALL_BULKHEAD_REJECTIONS("call_bulkhead_rejections_total", "Calls to Google rejected by bulkhead", true) {
+            @Override
+            long read() {
+                return OAuthUtil.getCallGuard().getBulkheadRejectionCount();
+            }
+        },
+        CALL_CIRCUIT_OPEN_REJECTIONS("call_circuit_open_rejections_total", "Calls to Google rejected while the circuit is open", true) {
+            @Override
+            long read() {
+                return OAuthUtil.getCallGuard().getCircuitOpenRejectionCount();
+            }
+        },
+        CALL_RETRIES("call_retries_total", "Retried calls to Google", true) {
+            @Override
+            long read() {
+                return OAuthUtil.getCallGuard().getRetryCount();
+            }
+        },
+        CALL_FAILURES("call_failures_total", "Failed calls to Google counted by circuit breaker", true) {
+            @Override
+            long read() {
+                return OAuthUtil.getCallGuard().getFailureCount();
+            }
+        },
+        CALLS_IN_FLIGHT("calls_in_flight", "Calls to Google in flight", false) {
+            @Override
+            long read() {
+                return OAuthUtil.getCallGuard().getInFlightCalls();
+            }
+        },
+        CALLS_WAITING("calls_waiting", "Calls to Google waiting for bulkhead", false) {
+            @Override
+            long read() {
+                return OAuthUtil.getCallGuard().getWaitingCalls();
+            }
+        },
+        CIRCUIT_STATE("circuit_state", "State of circuit breaker(0:closed,1:open,2:half-open)", false) {
+            @Override
+            long read() {
+                return OAuthUtil.getCallGuard().getState().ordinal();
+            }
+        };
+
+        private final String mName;
+        private final String mHelp;
+
+        // counter or gauge
+        private final boolean mCounter;
+
+        private ComponentMetric(String name, String help, boolean counter) {
+            mName = name;
+            mHelp = help;
+            mCounter = counter;
+        }
+
+        abstract long read();
+    }
+
+    private final LongAdder[] mCounters = new LongAdder[Counter.values().length];
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[Timer.values().length];
+
+    private boolean mMBeanRegistered = false;
+
+    private OAuthMetrics() {
+
+        for (int i = 0; i < mCounters.length; i++) {
+            mCounters[i] = new LongAdder();
+        }
+
+        for (int i = 0; i < mHistograms.length; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    public static OAuthMetrics getInstance() {
+        return instance;
+    }
+
+    public void increment(Counter counter) {
+        mCounters[counter.ordinal()].increment();
+    }
+
+    public long getCount(Counter counter) {
+        return mCounters[counter.ordinal()].sum();
+    }
+
+    /**
+     * Record latency of the stage since the start time
+     * 
+     * @param timer
+     * @param startNanos
+     *            value of System.nanoTime() at the start
+     */
+    public void recordSince(Timer timer, long startNanos) {
+        mHistograms[timer.ordinal()].recordSince(startNanos);
+    }
+
+    public LatencyHistogram getHistogram(Timer timer) {
+        return mHistograms[timer.ordinal()];
+    }
+
+    /**
+     * Reset all metrics
+     */
+    public void reset() {
+
+        for (LongAdder counter : mCounters) {
+            counter.reset();
+        }
+
+        for (LatencyHistogram histogram : mHistograms) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Write metrics in Prometheus text exposition format
+     * 
+     * @param writer
+     * @throws IOException
+     */
+    public void writePrometheus(Writer writer) throws IOException {
+
+        final StringBuilder sb = new StringBuilder(4096);
+
+        for (Counter counter : Counter.values()) {
+            appendCounter(sb, counter.getMetricName(), counter.mHelp, getCount(counter));
+        }
+
+        // refreshes,code exchanges,bulkhead and circuit breaker
+        for (ComponentMetric metric : ComponentMetric.values()) {
+            if (metric.mCounter) {
+                appendCounter(sb, PREFIX + metric.mName, metric.mHelp, metric.read());
+            } else {
+                appendGauge(sb, PREFIX + metric.mName, metric.mHelp, metric.read());
+            }
+        }
+
+        for (Timer timer : Timer.values()) {
+
+            final LatencyHistogram histogram = getHistogram(timer);
+            final String name = timer.getMetricName();
+
+            sb.append("# HELP ").append(name).append(' ').append(timer.mHelp).append('\n');
+            sb.append("# TYPE ").append(name).append(" summary\n");
+
+            for (double percentile : PERCENTILES) {
+                sb.append(name).append("{quantile=\"").append(percentile / 100.0).append("\"} ")
+                        .append(histogram.getPercentileNanos(percentile) / NANOS_PER_SECOND).append('\n');
+            }
+
+            sb.append(name).append("_sum ").append(histogram.getSumNanos() / NANOS_PER_SECOND).append('\n');
+            sb.append(name).append("_count ").append(histogram.getCount()).append('\n');
+        }
+
+        writer.write(sb.toString());
+    }
+
+    private static void appendCounter(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void appendGauge(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" gauge\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Register MBean named {@link #OBJECT_NAME} to the platform MBean server
+     */
+    public synchronized void registerMBean() {
+
+        if (mMBeanRegistered) {
+            return;
+        }
+
+        final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+
+        try {
+            mBeanServer.registerMBean(new MetricsMBean(), new ObjectName(OBJECT_NAME));
+            mMBeanRegistered = true;
+        } catch (InstanceAlreadyExistsException e) {
+            // registered by other web application
+            LOGGER.warning("MBean " + OBJECT_NAME + " is already registered");
+        } catch (JMException e) {
+            LOGGER.warning("Failed to register MBean " + OBJECT_NAME + " " + e);
+        }
+    }
+
+    /**
+     * Unregister MBean registered by {@link #registerMBean()}
+     */
+    public synchronized void unregisterMBean() {
+
+        if (!mMBeanRegistered) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            LOGGER.warning("Failed to unregister MBean " + OBJECT_NAME + " " + e);
+        }
+        mMBeanRegistered = false;
+    }
+
+    /**
+     * Read-only MBean whose attributes are the same metrics as Prometheus
+     * output(without prefix) and latency statistics like
+     * "token_exchange_seconds_p99"
+     */
+    private final class MetricsMBean implements DynamicMBean {
+
+        private final MBeanInfo mInfo;
+
+        MetricsMBean() {
+
+            final List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+
+            for (Counter counter : Counter.values()) {
+                attributes.add(new MBeanAttributeInfo(counter.mName, "long", counter.mHelp, true, false, false));
+            }
+
+            for (ComponentMetric metric : ComponentMetric.values()) {
+                attributes.add(new MBeanAttributeInfo(metric.mName, "long", metric.mHelp, true, false, false));
+            }
+
+            for (Timer timer : Timer.values()) {
+                attributes.add(new MBeanAttributeInfo(timer.mName + "_count", "long", timer.mHelp, true, false, false));
+                attributes.add(new MBeanAttributeInfo(timer.mName + "_mean", "double", timer.mHelp, true, false, false));
+                for (double percentile : PERCENTILES) {
+                    attributes.add(new MBeanAttributeInfo(timer.mName + "_p" + (int) percentile, "double", timer.mHelp, true, false, false));
+                }
+                attributes.add(new MBeanAttributeInfo(timer.mName + "_max", "double", timer.mHelp, true, false, false));
+            }
+
+            mInfo = new MBeanInfo(OAuthMetrics.class.getName(), "Metrics of OAuth2 flow",
+                    attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[0], null);
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+
+            for (Counter counter : Counter.values()) {
+                if (counter.mName.equals(attribute)) {
+                    return getCount(counter);
+                }
+            }
+
+            for (ComponentMetric metric : ComponentMetric.values()) {
+                if (metric.mName.equals(attribute)) {
+                    return metric.read();
+                }
+            }
+
+            for (Timer timer : Timer.values()) {
+
+                if (!attribute.startsWith(timer.mName + "_")) {
+                    continue;
+                }
+
+                final LatencyHistogram histogram = getHistogram(timer);
+                final String stat = attribute.substring(timer.mName.length() + 1);
+
+                if ("count".equals(stat)) {
+                    return histogram.getCount();
+                } else if ("mean".equals(stat)) {
+                    return histogram.getMeanNanos() / NANOS_PER_SECOND;
+                } else if ("max".equals(stat)) {
+                    return histogram.getMaxNanos() / NANOS_PER_SECOND;
+                } else if (stat.startsWith("p")) {
+                    try {
+                        return histogram.getPercentileNanos(Double.parseDouble(stat.substring(1))) / NANOS_PER_SECOND;
+                    } catch (NumberFormatException e) {
+                        break;
+                    }
+                }
+            }
+
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+
+            final AttributeList list = new AttributeList();
+
+            for (String attribute : attributes) {
+                try {
+                    list.add(new Attribute(attribute, getAttribute(attribute)));
+                } catch (AttributeNotFoundException e) {
+                    // skip unknown attribute
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Read-only " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            // no operations
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            return mInfo;
+        }
+    }
+}
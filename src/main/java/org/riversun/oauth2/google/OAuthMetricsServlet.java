@@ -23,38 +23,30 @@
 package org.riversun.oauth2.google;
 
 import java.io.IOException;
-import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
 
-import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
-import com.google.api.client.http.HttpTransport;
-import com.google.api.client.http.javanet.NetHttpTransport;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.jackson2.JacksonFactory;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 /**
+ * Servlet which exposes {@link OAuthMetrics} in Prometheus text format<br>
+ * <br>
+ * Map it to a path like "/metrics" and exclude the path from
+ * {@link OAuthFilter} by {@link OAuthFilter#getExcludePaths()}.
  * 
  * @author Tom Misawa (riversun.org@gmail.com)
- *
  */
-final class OAuthCommon {
+@SuppressWarnings("serial")
+public class OAuthMetricsServlet extends OAuthBaseServlet {
 
-	// SCOPE
-	static final List<String> SCOPES = new CopyOnWriteArrayList<String>();
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
 
-	// Thread-safed
-	static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
 
-	// Thread-safed
-	static final HttpTransport HTTP_TRANSPORT = new NetHttpTransport();
-
-	static final GoogleAuthorizationCodeFlow createFlow() throws IOException {
-		return new GoogleAuthorizationCodeFlow.Builder(
-				HTTP_TRANSPORT,
-				JSON_FACTORY,
-				OAuthSecrets.getClientSecrets(),
-				SCOPES)
-				.build();
-	}
+        resp.setContentType(CONTENT_TYPE);
+        resp.setHeader("Cache-Control", "no-store");
 
+        OAuthMetrics.getInstance().writePrometheus(resp.getWriter());
+    }
 }
@@ -0,0 +1,320 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Matcher of request paths compiled from url patterns<br>
+ * <br>
+ * Patterns are the same as servlet url-pattern.<br>
+ * "/health" exact match<br>
+ * "/static/*" path prefix(matches "/static" and "/static/...")<br>
+ * "*.css" extension(suffix) match<br>
+ * <br>
+ * Exact paths are kept in a HashSet,prefixes in a char trie and suffixes in a
+ * reversed char trie,so a path is matched in O(path length) regardless of the
+ * number of patterns.<br>
+ * Requests are matched on the servlet path and the path info,which the
+ * container has already decoded and normalized,not on the raw request uri.
+ * Otherwise "/static/..;/admin" would match "/static/*" and "/admin;x.css"
+ * would match "*.css".<br>
+ * Immutable and thread-safe
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+final class OAuthPathMatcher {
+
+    private final Set<String> mExactPaths = new HashSet<String>();
+
+    // prefixes without trailing "/*"
+    private final Node mPrefixRoot = new Node();
+
+    // suffixes like ".css" stored in reverse order
+    private final Node mSuffixRoot = new Node();
+
+    private OAuthPathMatcher() {
+    }
+
+    /**
+     * Compile url patterns
+     * 
+     * @param patterns
+     * @return null if no pattern is specified
+     */
+    static OAuthPathMatcher compile(List<String> patterns) {
+
+        if (patterns == null || patterns.isEmpty()) {
+            return null;
+        }
+
+        final OAuthPathMatcher matcher = new OAuthPathMatcher();
+
+        for (String rawPattern : patterns) {
+
+            if (rawPattern == null || rawPattern.trim().isEmpty()) {
+                continue;
+            }
+
+            final String pattern = rawPattern.trim();
+
+            if (pattern.startsWith("*.")) {
+                // "*.css" -> reversed ".css"
+                matcher.mSuffixRoot.add(new StringBuilder(pattern.substring(1)).reverse().toString());
+            } else if (pattern.equals("/*")) {
+                matcher.mPrefixRoot.add("");
+            } else if (pattern.startsWith("/") && pattern.endsWith("/*")) {
+                matcher.mPrefixRoot.add(pattern.substring(0, pattern.length() - 2));
+            } else if (pattern.startsWith("/") && pattern.indexOf('*') < 0) {
+                matcher.mExactPaths.add(pattern);
+            } else {
+                throw new IllegalArgumentException("Invalid url pattern \"" + pattern + "\"");
+            }
+        }
+
+        return matcher;
+    }
+
+    /**
+     * Returns true if the path of the request in the context matches any
+     * pattern
+     * 
+     * @param req
+     * @return
+     */
+    boolean matches(HttpServletRequest req) {
+        return matches(getPathInContext(req));
+    }
+
+    /**
+     * Returns the path of the request in the context<br>
+     * servletPath + pathInfo like "/static/app.css"
+     * 
+     * @param req
+     * @return
+     */
+    static String getPathInContext(HttpServletRequest req) {
+
+        final String servletPath = req.getServletPath();
+        final String pathInfo = req.getPathInfo();
+
+        final String path;
+
+        if (pathInfo == null) {
+            path = servletPath != null ? servletPath : "";
+        } else if (servletPath == null || servletPath.isEmpty()) {
+            path = pathInfo;
+        } else {
+            path = servletPath + pathInfo;
+        }
+
+        return normalize(path);
+    }
+
+    /**
+     * Removes path parameters(";xxx") and dot segments from the path<br>
+     * Containers already do this for the servlet path,so this is just a
+     * safeguard against one which doesn't.The path is not decoded again,since
+     * decoding an already decoded path twice causes mismatch in turn.
+     * 
+     * @param path
+     *            decoded path
+     * @return
+     */
+    static String normalize(String path) {
+
+        if (path.indexOf(';') < 0 && path.indexOf("/.") < 0) {
+            // nothing to do in most cases
+            return path;
+        }
+
+        final List<String> segments = new ArrayList<String>();
+
+        int start = path.startsWith("/") ? 1 : 0;
+
+        while (start <= path.length()) {
+
+            int end = path.indexOf('/', start);
+
+            if (end < 0) {
+                end = path.length();
+            }
+
+            String segment = path.substring(start, end);
+
+            final int semicolon = segment.indexOf(';');
+
+            if (semicolon >= 0) {
+                segment = segment.substring(0, semicolon);
+            }
+
+            if (segment.equals("..")) {
+                if (!segments.isEmpty()) {
+                    segments.remove(segments.size() - 1);
+                }
+            } else if (!segment.equals(".")) {
+                segments.add(segment);
+            }
+
+            start = end + 1;
+        }
+
+        final StringBuilder sb = new StringBuilder(path.length());
+
+        for (String segment : segments) {
+            sb.append('/').append(segment);
+        }
+
+        final String last = path.substring(path.lastIndexOf('/') + 1);
+
+        if (sb.length() == 0 || last.equals(".") || last.equals("..")) {
+            // "/static/.." is the directory "/"
+            sb.append('/');
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Returns true if the path matches any pattern
+     * 
+     * @param path
+     *            path in the context like "/static/app.css"
+     * @return
+     */
+    boolean matches(String path) {
+
+        final int length = path.length();
+
+        if (!mExactPaths.isEmpty() && mExactPaths.contains(path)) {
+            return true;
+        }
+
+        if (matchesPrefix(path, 0, length)) {
+            return true;
+        }
+
+        return matchesSuffix(path, 0, length);
+    }
+
+    private boolean matchesPrefix(String uri, int offset, int length) {
+
+        Node node = mPrefixRoot;
+
+        for (int i = offset;; i++) {
+
+            // a prefix matches only at a segment boundary
+            if (node.mTerminal && (i == length || uri.charAt(i) == '/')) {
+                return true;
+            }
+
+            if (i == length) {
+                return false;
+            }
+
+            node = node.child(uri.charAt(i));
+
+            if (node == null) {
+                return false;
+            }
+        }
+    }
+
+    private boolean matchesSuffix(String uri, int offset, int length) {
+
+        Node node = mSuffixRoot;
+
+        for (int i = length - 1; i >= offset; i--) {
+
+            final char c = uri.charAt(i);
+
+            if (c == '/') {
+                // extension is in the last segment only
+                return false;
+            }
+
+            node = node.child(c);
+
+            if (node == null) {
+                return false;
+            }
+
+            if (node.mTerminal) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Node of char trie<br>
+     * Children are few,so they are kept in arrays and scanned linearly.
+     */
+    private static final class Node {
+
+        private char[] mKeys = new char[0];
+        private Node[] mChildren = new Node[0];
+        private boolean mTerminal;
+
+        void add(String key) {
+
+            Node node = this;
+
+            for (int i = 0; i < key.length(); i++) {
+
+                final char c = key.charAt(i);
+
+                Node child = node.child(c);
+
+                if (child == null) {
+                    child = new Node();
+                    final int size = node.mKeys.length;
+                    node.mKeys = Arrays.copyOf(node.mKeys, size + 1);
+                    node.mChildren = Arrays.copyOf(node.mChildren, size + 1);
+                    node.mKeys[size] = c;
+                    node.mChildren[size] = child;
+                }
+                node = child;
+            }
+            node.mTerminal = true;
+        }
+
+        Node child(char c) {
+
+            final char[] keys = mKeys;
+
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == c) {
+                    return mChildren[i];
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+/**
+ * Kind of unauthenticated request reaching {@link OAuthFilter}<br>
+ * Decides how the filter answers it.
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public enum OAuthRequestType {
+
+    /**
+     * Page navigation of the browser.Redirected to the authorization server.
+     */
+    NAVIGATION,
+
+    /**
+     * XHR/fetch or API client expecting JSON.Answered with 401 and JSON body
+     * containing the url to log in.
+     */
+    API,
+
+    /**
+     * Image,script,stylesheet and so on loaded by a page.Answered with 401
+     * without body.
+     */
+    SUBRESOURCE;
+}
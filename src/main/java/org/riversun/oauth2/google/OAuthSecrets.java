@@ -41,7 +41,7 @@ import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
  */
 public class OAuthSecrets {
 
-	private static GoogleClientSecrets sGoogleClientSecrets = null;
+	private static volatile GoogleClientSecrets sGoogleClientSecrets = null;
 
 	public static void setClientSecrets(GoogleClientSecrets googleClientSecrets) {
 		sGoogleClientSecrets = googleClientSecrets;
@@ -23,10 +23,18 @@
 package org.riversun.oauth2.google;
 
 import java.io.IOException;
+import java.util.logging.Logger;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.auth.oauth2.CredentialRefreshListener;
+import com.google.api.client.auth.oauth2.TokenErrorResponse;
+import com.google.api.client.auth.oauth2.TokenResponse;
 import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.googleapis.auth.oauth2.GoogleIdToken;
 
 /**
  * Get OAuth 2 status and authentication result stored in http session<br>
@@ -36,22 +44,152 @@ import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
  */
 public class OAuthSession {
 
+    private static final Logger LOGGER = Logger.getLogger(OAuthSession.class.getName());
+
     private static final OAuthSession instance = new OAuthSession();
 
+    private volatile TokenRefreshScheduler mTokenRefreshScheduler = null;
+
+    private volatile CookieSessionCodec mCookieSessionCodec = null;
+
+    private volatile SignedStateCodec mSignedStateCodec = null;
+
     private OAuthSession() {
     }
 
+    /**
+     * Set scheduler whose refreshed access tokens are used by
+     * {@link OAuthSession#createCredential(HttpServletRequest)}<br>
+     * Set automatically by {@link OAuthCallbackServlet} when
+     * {@link OAuthCallbackServlet#getTokenRefreshScheduler()} is enabled.
+     * 
+     * @param tokenRefreshScheduler
+     */
+    public void setTokenRefreshScheduler(TokenRefreshScheduler tokenRefreshScheduler) {
+        mTokenRefreshScheduler = tokenRefreshScheduler;
+    }
+
     public static OAuthSession getInstance() {
         return instance;
     }
 
     /**
-     * Clear OAuth2 state.Once cleared, execute OAuth flow again
+     * Set codec of encrypted cookie.If set,the result of OAuth2 flow is read
+     * from the cookie instead of HttpSession.<br>
+     * Set automatically by {@link OAuthFilter#getCookieSessionCodec()}.
+     * 
+     * @param cookieSessionCodec
+     */
+    public void setCookieSessionCodec(CookieSessionCodec cookieSessionCodec) {
+        mCookieSessionCodec = cookieSessionCodec;
+    }
+
+    public CookieSessionCodec getCookieSessionCodec() {
+        return mCookieSessionCodec;
+    }
+
+    /**
+     * Set codec of signed state.If set,the state token and the url to return
+     * after OAuth2 flow are carried by "state" parameter instead of
+     * HttpSession.<br>
+     * Set automatically by {@link OAuthFilter#getSignedStateCodec()}.
+     * 
+     * @param signedStateCodec
+     */
+    public void setSignedStateCodec(SignedStateCodec signedStateCodec) {
+        mSignedStateCodec = signedStateCodec;
+    }
+
+    public SignedStateCodec getSignedStateCodec() {
+        return mSignedStateCodec;
+    }
+
+    /**
+     * Clear OAuth2 state.Once cleared, execute OAuth flow again<br>
+     * In encrypted cookie mode,use
+     * {@link OAuthSession#clearOAuth2State(HttpServletRequest, HttpServletResponse)}
      * 
      * @param req
      */
     public void clearOAuth2State(HttpServletRequest req) {
-        req.getSession().setAttribute(OAuthConst.SESSION_KEY_OAUTH2_DONE, null);
+
+        final HttpSession session = req.getSession();
+        final OAuthAuthState state = (OAuthAuthState) session.getAttribute(OAuthConst.SESSION_KEY_AUTH_STATE);
+
+        if (state != null && state.isOAuth2Done()) {
+            session.setAttribute(OAuthConst.SESSION_KEY_AUTH_STATE, state.withOAuth2Done(false));
+            cancelTokenRefresh(state.getUserId());
+        }
+    }
+
+    /**
+     * Clear OAuth2 state.Once cleared, execute OAuth flow again
+     * 
+     * @param req
+     * @param resp
+     */
+    public void clearOAuth2State(HttpServletRequest req, HttpServletResponse resp) {
+
+        final OAuthAuthState state = getAuthState(req);
+
+        if (state != null && state.isOAuth2Done()) {
+            setAuthState(req, resp, state.withOAuth2Done(false));
+            cancelTokenRefresh(state.getUserId());
+        }
+    }
+
+    /**
+     * Stop refreshing access token of the user in the background
+     * 
+     * @param userId
+     */
+    void cancelTokenRefresh(String userId) {
+
+        final TokenRefreshScheduler tokenRefreshScheduler = mTokenRefreshScheduler;
+
+        if (tokenRefreshScheduler != null && userId != null) {
+            tokenRefreshScheduler.cancel(userId);
+        }
+    }
+
+    /**
+     * Returns the result of OAuth2 flow stored in the session(or the encrypted
+     * cookie)
+     * 
+     * @param req
+     * @return null if OAuth2 flow has never been passed
+     */
+    OAuthAuthState getAuthState(HttpServletRequest req) {
+
+        final CookieSessionCodec cookieSessionCodec = mCookieSessionCodec;
+
+        if (cookieSessionCodec != null) {
+            return cookieSessionCodec.readState(req);
+        }
+
+        // don't create session only to find it empty
+        final HttpSession session = req.getSession(false);
+
+        return session != null ? (OAuthAuthState) session.getAttribute(OAuthConst.SESSION_KEY_AUTH_STATE) : null;
+    }
+
+    /**
+     * Store the result of OAuth2 flow in the session(or the encrypted cookie)
+     * 
+     * @param req
+     * @param resp
+     * @param state
+     */
+    void setAuthState(HttpServletRequest req, HttpServletResponse resp, OAuthAuthState state) {
+
+        final CookieSessionCodec cookieSessionCodec = mCookieSessionCodec;
+
+        if (cookieSessionCodec != null) {
+            cookieSessionCodec.writeState(req, resp, state);
+            return;
+        }
+
+        req.getSession().setAttribute(OAuthConst.SESSION_KEY_AUTH_STATE, state);
     }
 
     /**
@@ -110,13 +248,98 @@ public class OAuthSession {
      * @throws IOException
      */
     public GoogleCredential createCredential(HttpServletRequest req) throws IOException {
+
+        final OAuthAuthState state = getAuthState(req);
+
+        if (state == null) {
+            return OAuthUtil.createCredential(null, null);
+        }
+
+        final String userId = state.getUserId();
+
+        String accessToken = state.getAccessToken();
+        Long expirationTimeMillis = state.getAccessTokenExpiresAt();
+
+        final TokenRefreshScheduler tokenRefreshScheduler = mTokenRefreshScheduler;
+
+        if (tokenRefreshScheduler != null && userId != null) {
+
+            // keep refreshing while the user is active
+            tokenRefreshScheduler.touch(userId);
+
+            // use access token refreshed in the background if it is newer
+            final TokenRefreshScheduler.RefreshedToken refreshedToken = tokenRefreshScheduler.getRefreshedToken(userId);
+
+            if (refreshedToken != null && (expirationTimeMillis == null || refreshedToken.getExpirationTimeMillis() > expirationTimeMillis)) {
+
+                accessToken = refreshedToken.getAccessToken();
+                expirationTimeMillis = refreshedToken.getExpirationTimeMillis();
+
+                if (mCookieSessionCodec == null) {
+                    writeBackAccessToken(req.getSession(), accessToken, expirationTimeMillis);
+                }
+            }
+        }
+
+        // In encrypted cookie mode, refreshed token can't be written back
+        // without the response,and HttpSession must not be created.
+        final CredentialRefreshListener refreshListener = mCookieSessionCodec == null ? new SessionWriteBackListener(req.getSession()) : null;
+
         final GoogleCredential credential = OAuthUtil.createCredential(
-                getAccessToken(req),
-                getRefreshToken(req));
+                userId,
+                accessToken,
+                state.getRefreshToken(),
+                expirationTimeMillis,
+                refreshListener);
         return credential;
 
     }
 
+    /**
+     * Replace access token of the auth state in the session
+     * 
+     * @param session
+     * @param accessToken
+     * @param expirationTimeMillis
+     */
+    private static void writeBackAccessToken(HttpSession session, String accessToken, Long expirationTimeMillis) {
+
+        final OAuthAuthState state = (OAuthAuthState) session.getAttribute(OAuthConst.SESSION_KEY_AUTH_STATE);
+
+        if (state != null) {
+            session.setAttribute(OAuthConst.SESSION_KEY_AUTH_STATE, state.withAccessToken(accessToken, expirationTimeMillis));
+        }
+    }
+
+    /**
+     * Writes refreshed access token back to the session,so that the next
+     * request uses it until it expires instead of refreshing again.
+     */
+    private static final class SessionWriteBackListener implements CredentialRefreshListener {
+
+        private final HttpSession mSession;
+
+        SessionWriteBackListener(HttpSession session) {
+            mSession = session;
+        }
+
+        @Override
+        public void onTokenResponse(Credential credential, TokenResponse tokenResponse) throws IOException {
+
+            try {
+                writeBackAccessToken(mSession, credential.getAccessToken(), credential.getExpirationTimeMilliseconds());
+            } catch (IllegalStateException e) {
+                // session has been invalidated
+                LOGGER.fine("session invalidated " + e);
+            }
+        }
+
+        @Override
+        public void onTokenErrorResponse(Credential credential, TokenErrorResponse tokenErrorResponse) throws IOException {
+            LOGGER.fine("Failed to refresh access token " + tokenErrorResponse);
+        }
+    }
+
     /**
      * Returns refresh_token stored in the session
      * 
@@ -124,7 +347,8 @@ public class OAuthSession {
      * @return
      */
     public String getRefreshToken(HttpServletRequest req) {
-        return (String) req.getSession().getAttribute(OAuthConst.SESSION_KEY_REFRESH_TOKEN);
+        final OAuthAuthState state = getAuthState(req);
+        return state != null ? state.getRefreshToken() : null;
     }
 
     /**
@@ -134,7 +358,30 @@ public class OAuthSession {
      * @return
      */
     public String getAccessToken(HttpServletRequest req) {
-        return (String) req.getSession().getAttribute(OAuthConst.SESSION_KEY_ACCESS_TOKEN);
+        final OAuthAuthState state = getAuthState(req);
+        return state != null ? state.getAccessToken() : null;
+    }
+
+    /**
+     * Returns epoch millis when access_token stored in the session expires
+     * 
+     * @param req
+     * @return
+     */
+    public Long getAccessTokenExpirationTimeMillis(HttpServletRequest req) {
+        final OAuthAuthState state = getAuthState(req);
+        return state != null ? state.getAccessTokenExpiresAt() : null;
+    }
+
+    /**
+     * Returns idToken verified by {@link OAuthFilter} in bearer token mode
+     * 
+     * @param req
+     * @return null if the request is not authenticated by "Authorization:
+     *         Bearer"
+     */
+    public GoogleIdToken getBearerIdToken(HttpServletRequest req) {
+        return (GoogleIdToken) req.getAttribute(OAuthConst.REQUEST_KEY_BEARER_ID_TOKEN);
     }
 
     /**
@@ -144,8 +391,15 @@ public class OAuthSession {
      * @return
      */
     public String getUserId(HttpServletRequest req) {
-        final String userId = (String) req.getSession().getAttribute(OAuthConst.SESSION_KEY_UNIQUE_USER_ID);
-        return userId;
+
+        final GoogleIdToken bearerIdToken = getBearerIdToken(req);
+
+        if (bearerIdToken != null) {
+            return bearerIdToken.getPayload().getSubject();
+        }
+
+        final OAuthAuthState state = getAuthState(req);
+        return state != null ? state.getUserId() : null;
     }
 
 }
@@ -0,0 +1,273 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+
+/**
+ * HTTP transport used to access Google's token/certs endpoints<br>
+ * <br>
+ * Default transport is {@link NetHttpTransport} with default timeouts.<br>
+ * Use {@link OAuthTransport.Builder} to create a connection-pooled transport
+ * with keep-alive connections and timeouts,and set it by
+ * {@link OAuthUtil#setTransport(OAuthTransport)} before OAuth2-flow starts.
+ * 
+ * <pre>
+ * OAuthUtil.setTransport(new OAuthTransport.Builder()
+ *         .setMaxConnectionsPerRoute(50)
+ *         .setConnectTimeoutMillis(3000)
+ *         .setReadTimeoutMillis(5000)
+ *         .build());
+ * </pre>
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public final class OAuthTransport {
+
+    private final HttpTransport mHttpTransport;
+    private final HttpRequestInitializer mRequestInitializer;
+    private final ScheduledExecutorService mIdleConnectionEvictor;
+
+    private OAuthTransport(HttpTransport httpTransport, HttpRequestInitializer requestInitializer, ScheduledExecutorService idleConnectionEvictor) {
+        mHttpTransport = httpTransport;
+        mRequestInitializer = requestInitializer;
+        mIdleConnectionEvictor = idleConnectionEvictor;
+    }
+
+    /**
+     * Returns transport which uses httpTransport as it is
+     * 
+     * @param httpTransport
+     * @return
+     */
+    public static OAuthTransport of(HttpTransport httpTransport) {
+        return new OAuthTransport(httpTransport, null, null);
+    }
+
+    public HttpTransport getHttpTransport() {
+        return mHttpTransport;
+    }
+
+    /**
+     * Returns initializer applying timeouts to each request.null if not
+     * specified
+     * 
+     * @return
+     */
+    public HttpRequestInitializer getRequestInitializer() {
+        return mRequestInitializer;
+    }
+
+    /**
+     * Stop idle connection eviction and close pooled connections
+     * 
+     * @throws IOException
+     */
+    public void shutdown() throws IOException {
+
+        if (mIdleConnectionEvictor != null) {
+            mIdleConnectionEvictor.shutdownNow();
+        }
+
+        mHttpTransport.shutdown();
+    }
+
+    /**
+     * Builder of {@link OAuthTransport}<br>
+     * <br>
+     * Unless {@link Builder#setHttpTransport(HttpTransport)} is called, a
+     * connection-pooled Apache HttpClient based transport is created.
+     */
+    public static final class Builder {
+
+        private HttpTransport mHttpTransport = null;
+
+        private int mMaxConnectionsPerRoute = 20;
+        private int mMaxConnectionsTotal = 200;
+        private long mIdleTimeoutMillis = TimeUnit.SECONDS.toMillis(30);
+
+        private int mConnectTimeoutMillis = -1;
+        private int mReadTimeoutMillis = -1;
+
+        /**
+         * Use your own transport instead of the pooled one.<br>
+         * Pool settings are ignored,timeouts are applied.
+         * 
+         * @param httpTransport
+         * @return
+         */
+        public Builder setHttpTransport(HttpTransport httpTransport) {
+            mHttpTransport = httpTransport;
+            return Builder.this;
+        }
+
+        /**
+         * Set max number of pooled connections per route(host)
+         * 
+         * @param maxConnectionsPerRoute
+         * @return
+         */
+        public Builder setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+            mMaxConnectionsPerRoute = maxConnectionsPerRoute;
+            return Builder.this;
+        }
+
+        /**
+         * Set max number of pooled connections in total
+         * 
+         * @param maxConnectionsTotal
+         * @return
+         */
+        public Builder setMaxConnectionsTotal(int maxConnectionsTotal) {
+            mMaxConnectionsTotal = maxConnectionsTotal;
+            return Builder.this;
+        }
+
+        /**
+         * Set time after which idle pooled connections are closed
+         * 
+         * @param idleTimeoutMillis
+         * @return
+         */
+        public Builder setIdleTimeoutMillis(long idleTimeoutMillis) {
+            mIdleTimeoutMillis = idleTimeoutMillis;
+            return Builder.this;
+        }
+
+        /**
+         * Set connect timeout.(-1:default of google-http-client)
+         * 
+         * @param connectTimeoutMillis
+         * @return
+         */
+        public Builder setConnectTimeoutMillis(int connectTimeoutMillis) {
+            mConnectTimeoutMillis = connectTimeoutMillis;
+            return Builder.this;
+        }
+
+        /**
+         * Set read timeout.(-1:default of google-http-client)
+         * 
+         * @param readTimeoutMillis
+         * @return
+         */
+        public Builder setReadTimeoutMillis(int readTimeoutMillis) {
+            mReadTimeoutMillis = readTimeoutMillis;
+            return Builder.this;
+        }
+
+        public OAuthTransport build() {
+
+            final HttpRequestInitializer requestInitializer = createRequestInitializer(mConnectTimeoutMillis, mReadTimeoutMillis);
+
+            if (mHttpTransport != null) {
+                return new OAuthTransport(mHttpTransport, requestInitializer, null);
+            }
+
+            final HttpParams params = new BasicHttpParams();
+            HttpConnectionParams.setStaleCheckingEnabled(params, false);
+            HttpConnectionParams.setSocketBufferSize(params, 8192);
+            ConnManagerParams.setMaxTotalConnections(params, mMaxConnectionsTotal);
+            ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(mMaxConnectionsPerRoute));
+
+            final SchemeRegistry registry = new SchemeRegistry();
+            registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+            // TLS sessions are reused through the default SSLContext session cache
+            registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+            final ClientConnectionManager connectionManager = new ThreadSafeClientConnManager(params, registry);
+            final HttpClient httpClient = new DefaultHttpClient(connectionManager, params);
+
+            final ScheduledExecutorService idleConnectionEvictor = createIdleConnectionEvictor(connectionManager, mIdleTimeoutMillis);
+
+            return new OAuthTransport(new ApacheHttpTransport(httpClient), requestInitializer, idleConnectionEvictor);
+        }
+
+        private static HttpRequestInitializer createRequestInitializer(final int connectTimeoutMillis, final int readTimeoutMillis) {
+
+            if (connectTimeoutMillis < 0 && readTimeoutMillis < 0) {
+                return null;
+            }
+
+            return new HttpRequestInitializer() {
+                @Override
+                public void initialize(HttpRequest request) throws IOException {
+                    if (connectTimeoutMillis >= 0) {
+                        request.setConnectTimeout(connectTimeoutMillis);
+                    }
+                    if (readTimeoutMillis >= 0) {
+                        request.setReadTimeout(readTimeoutMillis);
+                    }
+                }
+            };
+        }
+
+        private static ScheduledExecutorService createIdleConnectionEvictor(final ClientConnectionManager connectionManager, final long idleTimeoutMillis) {
+
+            final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "oauth2-idle-connection-evictor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+            final long intervalMillis = Math.max(idleTimeoutMillis / 2, 1000);
+
+            evictor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    connectionManager.closeExpiredConnections();
+                    connectionManager.closeIdleConnections(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+                }
+            }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+
+            return evictor;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
+import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeRequestUrl;
+
+/**
+ * Precompiled authorization code request url<br>
+ * <br>
+ * The static part of the url (client_id, redirect_uri, scope, access_type,
+ * approval_prompt/prompt) is encoded once per flow and redirect url, and only
+ * the "state" is appended for each request.<br>
+ * Thread-safe
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+final class OAuthUrlTemplate {
+
+    private static final Map<String, OAuthUrlTemplate> sTemplates = new ConcurrentHashMap<String, OAuthUrlTemplate>();
+
+    private static final String STATE_PARAM = "&state=";
+    private static final String LOGIN_HINT_PARAM = "&login_hint=";
+
+    private final GoogleAuthorizationCodeFlow mFlow;
+
+    // like "https://accounts.google.com/o/oauth2/auth?access_type=offline&client_id=...&state="
+    private final String mPrefix;
+    private final String mPrefixForceApprovalPrompt;
+    private final String mPrefixPromptNone;
+
+    private OAuthUrlTemplate(GoogleAuthorizationCodeFlow flow, String redirectUrl) {
+
+        mFlow = flow;
+
+        final GoogleAuthorizationCodeRequestUrl url = flow.newAuthorizationUrl()
+                .setAccessType("offline")
+                .setRedirectUri(redirectUrl);
+
+        mPrefix = url.build() + STATE_PARAM;
+
+        // When you want to confirm every time (set both
+        // setAccessType ("offline") and setApprovalPrompt("force"), you can
+        // get refreshtoken every time.
+        url.setApprovalPrompt("force");
+
+        mPrefixForceApprovalPrompt = url.build() + STATE_PARAM;
+
+        // "prompt=none" can't be used with "approval_prompt"
+        final GoogleAuthorizationCodeRequestUrl promptNoneUrl = flow.newAuthorizationUrl()
+                .setAccessType("offline")
+                .setRedirectUri(redirectUrl)
+                .set("prompt", "none");
+
+        mPrefixPromptNone = promptNoneUrl.build() + STATE_PARAM;
+    }
+
+    /**
+     * Returns template for the flow and redirect url<br>
+     * Template is rebuilt when the flow is changed.
+     * 
+     * @param flow
+     * @param redirectUrl
+     * @return
+     */
+    static OAuthUrlTemplate get(GoogleAuthorizationCodeFlow flow, String redirectUrl) {
+
+        final OAuthUrlTemplate template = sTemplates.get(redirectUrl);
+
+        if (template != null && template.mFlow == flow) {
+            return template;
+        }
+
+        final OAuthUrlTemplate created = new OAuthUrlTemplate(flow, redirectUrl);
+        sTemplates.put(redirectUrl, created);
+        return created;
+    }
+
+    /**
+     * Returns authorization code request url with state
+     * 
+     * @param state
+     * @param forceApprovalPrompt
+     * @return
+     */
+    String build(String state, boolean forceApprovalPrompt) {
+
+        final String prefix = forceApprovalPrompt ? mPrefixForceApprovalPrompt : mPrefix;
+
+        if (!isUnreserved(state)) {
+            return prefix + encode(state);
+        }
+
+        return new StringBuilder(prefix.length() + state.length())
+                .append(prefix)
+                .append(state)
+                .toString();
+    }
+
+    /**
+     * Returns authorization code request url with "prompt=none"<br>
+     * Google returns the code without showing any page if the user is still
+     * signed in and has granted the scopes,otherwise returns an error like
+     * "login_required" to the redirect url.
+     * 
+     * @param state
+     * @param loginHint
+     *            email address or user id(sub) of the user(nullable)
+     * @return
+     */
+    String buildPromptNone(String state, String loginHint) {
+
+        final String url = mPrefixPromptNone + (isUnreserved(state) ? state : encode(state));
+
+        if (loginHint == null) {
+            return url;
+        }
+
+        return url + LOGIN_HINT_PARAM + encode(loginHint);
+    }
+
+    /**
+     * Returns true if all chars are "unreserved" of RFC 3986 and need no
+     * escape
+     * 
+     * @param value
+     * @return
+     */
+    private static boolean isUnreserved(String value) {
+
+        for (int i = 0; i < value.length(); i++) {
+
+            final char c = value.charAt(i);
+
+            if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_' || c == '.' || c == '~')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
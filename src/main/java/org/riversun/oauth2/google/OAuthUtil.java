@@ -23,12 +23,17 @@
 package org.riversun.oauth2.google;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 
+import com.google.api.client.auth.oauth2.CredentialRefreshListener;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
+import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
 import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.http.GenericUrl;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.JsonFactory;
@@ -42,42 +47,212 @@ import com.google.api.client.json.jackson2.JacksonFactory;
 public final class OAuthUtil {
 	private static final Logger LOGGER = Logger.getLogger(OAuthUtil.class.getName());
 
-	// SCOPE
-	static final List<String> SCOPES = new CopyOnWriteArrayList<String>();
+	// SCOPE(unmodifiable, replaced as a whole by setScopes)
+	private static volatile List<String> sScopes = Collections.emptyList();
 
 	// Thread-safed
 	static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
 
 	// Thread-safed
-	static final HttpTransport HTTP_TRANSPORT = new NetHttpTransport();
+	private static volatile OAuthTransport sTransport = OAuthTransport.of(new NetHttpTransport());
 
-	static final GoogleAuthorizationCodeFlow createFlow() throws IOException {
+	private static volatile OAuthEndpoints sEndpoints = OAuthEndpoints.GOOGLE;
+
+	// Thread-safed
+	private static volatile OAuthCallGuard sCallGuard = new OAuthCallGuard.Builder().build();
+
+	// Thread-safed.Rebuilt only when clientSecrets or scopes are changed
+	private static final AtomicReference<FlowHolder> sFlowHolder = new AtomicReference<FlowHolder>();
+
+	/**
+	 * Holds flow with clientSecrets and scopes used to build it
+	 */
+	private static final class FlowHolder {
+
+		final GoogleClientSecrets clientSecrets;
+		final List<String> scopes;
+		final OAuthTransport transport;
+		final OAuthEndpoints endpoints;
+		final GoogleAuthorizationCodeFlow flow;
+
+		FlowHolder(GoogleClientSecrets clientSecrets, List<String> scopes, OAuthTransport transport, OAuthEndpoints endpoints) {
+			this.clientSecrets = clientSecrets;
+			this.scopes = scopes;
+			this.transport = transport;
+			this.endpoints = endpoints;
+			this.flow = createFlow(clientSecrets, scopes, transport, endpoints);
+		}
+
+		boolean isBuiltWith(GoogleClientSecrets clientSecrets, List<String> scopes, OAuthTransport transport, OAuthEndpoints endpoints) {
+			return this.clientSecrets == clientSecrets && this.scopes == scopes && this.transport == transport && this.endpoints == endpoints;
+		}
+	}
+
+	/**
+	 * Set transport used to access Google's endpoints<br>
+	 * Call before OAuth2-flow starts.
+	 * 
+	 * @param transport
+	 */
+	public static void setTransport(OAuthTransport transport) {
+		sTransport = transport;
+	}
+
+	public static OAuthTransport getTransport() {
+		return sTransport;
+	}
+
+	static HttpTransport getHttpTransport() {
+		return sTransport.getHttpTransport();
+	}
+
+	/**
+	 * Set bulkhead,circuit breaker and retry policy of calls to Google's
+	 * endpoints<br>
+	 * Call before OAuth2-flow starts.
+	 * 
+	 * @param callGuard
+	 */
+	public static void setCallGuard(OAuthCallGuard callGuard) {
+		sCallGuard = callGuard;
+	}
+
+	public static OAuthCallGuard getCallGuard() {
+		return sCallGuard;
+	}
+
+	/**
+	 * Set urls of Google's endpoints<br>
+	 * You can point them at a local stub server for testing.
+	 * 
+	 * @param endpoints
+	 */
+	public static void setEndpoints(OAuthEndpoints endpoints) {
+		sEndpoints = endpoints;
+		OAuthKeyStore.getInstance().setCertsUrl(endpoints.getCertsUrl());
+	}
+
+	public static OAuthEndpoints getEndpoints() {
+		return sEndpoints;
+	}
+
+	/**
+	 * Set OAuth2 scopes
+	 * 
+	 * @param scopes
+	 */
+	static void setScopes(List<String> scopes) {
+		sScopes = Collections.unmodifiableList(new ArrayList<String>(scopes));
+	}
+
+	static List<String> getScopes() {
+		return sScopes;
+	}
+
+	/**
+	 * Returns shared flow<br>
+	 * The flow is built once and reused until clientSecrets or scopes are
+	 * changed.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	static final GoogleAuthorizationCodeFlow getFlow() throws IOException {
+
+		final GoogleClientSecrets clientSecrets = OAuthSecrets.getClientSecrets();
+		final List<String> scopes = sScopes;
+		final OAuthTransport transport = sTransport;
+		final OAuthEndpoints endpoints = sEndpoints;
+
+		final FlowHolder current = sFlowHolder.get();
+
+		if (current != null && current.isBuiltWith(clientSecrets, scopes, transport, endpoints)) {
+			return current.flow;
+		}
+
+		LOGGER.fine("build flow scopes=" + scopes + " endpoints=" + endpoints);
+
+		final FlowHolder created = new FlowHolder(clientSecrets, scopes, transport, endpoints);
+
+		// If another thread has already replaced it, either one is fine
+		sFlowHolder.compareAndSet(current, created);
+
+		return created.flow;
+	}
+
+	private static GoogleAuthorizationCodeFlow createFlow(GoogleClientSecrets clientSecrets, List<String> scopes, OAuthTransport transport, OAuthEndpoints endpoints) {
 
 		return new GoogleAuthorizationCodeFlow.Builder(
-				HTTP_TRANSPORT,
+				transport.getHttpTransport(),
 				JSON_FACTORY,
-				OAuthSecrets.getClientSecrets(),
-				SCOPES)
+				clientSecrets,
+				scopes)
+				.setAuthorizationServerEncodedUrl(endpoints.getAuthorizationServerUrl())
+				.setTokenServerUrl(new GenericUrl(endpoints.getTokenServerUrl()))
+				.setRequestInitializer(transport.getRequestInitializer())
 				.build();
 
 	}
 
 	// Thread-safed
 	public static final GoogleCredential createCredential(String accessToken, String refreshToken) throws IOException {
+		return createCredential(accessToken, refreshToken, null, null);
+	}
 
-		LOGGER.fine("accessToken=" + accessToken + " refreshToken=" + refreshToken);
+	/**
+	 * Create credential
+	 * 
+	 * @param accessToken
+	 * @param refreshToken
+	 * @param expirationTimeMillis
+	 *            epoch millis when accessToken expires(nullable).If set,
+	 *            accessToken is refreshed before it is used after expiration.
+	 * @param refreshListener
+	 *            called when accessToken is refreshed(nullable)
+	 * @return
+	 * @throws IOException
+	 */
+	public static final GoogleCredential createCredential(String accessToken, String refreshToken, Long expirationTimeMillis, CredentialRefreshListener refreshListener) throws IOException {
+		return createCredential(null, accessToken, refreshToken, expirationTimeMillis, refreshListener);
+	}
+
+	/**
+	 * Create credential whose refresh is coordinated per user<br>
+	 * When several credentials of the same user refresh at the same time, only
+	 * one of them calls the token endpoint.{@link RefreshCoordinator}
+	 * 
+	 * @param userId
+	 *            unique user id(nullable).If null,refresh is not coordinated.
+	 * @param accessToken
+	 * @param refreshToken
+	 * @param expirationTimeMillis
+	 * @param refreshListener
+	 * @return
+	 * @throws IOException
+	 */
+	public static final GoogleCredential createCredential(String userId, String accessToken, String refreshToken, Long expirationTimeMillis, CredentialRefreshListener refreshListener) throws IOException {
+
+		LOGGER.fine("userId=" + userId + " accessToken=" + accessToken + " refreshToken=" + refreshToken + " expirationTimeMillis=" + expirationTimeMillis);
 
-		final GoogleCredential credential = new GoogleCredential.Builder()
+		final GoogleCredential.Builder builder = new GoogleCredential.Builder()
 
-				.setTransport(OAuthUtil.HTTP_TRANSPORT)
+				.setTransport(getHttpTransport())
 				.setJsonFactory(OAuthUtil.JSON_FACTORY)
 				.setClientSecrets(OAuthSecrets.getClientSecrets())
-				.build()
+				.setTokenServerEncodedUrl(sEndpoints.getTokenServerUrl())
+				.setRequestInitializer(sTransport.getRequestInitializer());
+
+		if (refreshListener != null) {
+			builder.addRefreshListener(refreshListener);
+		}
+
+		final GoogleCredential credential = (userId == null ? builder.build() : new SingleFlightCredential(builder, userId))
 				.setAccessToken(accessToken)
 				// If refreshToken is set, new access token will be
 				// retrieved(renewed) properly
 				// even if the old access token expires.
-				.setRefreshToken(refreshToken);
+				.setRefreshToken(refreshToken)
+				.setExpirationTimeMilliseconds(expirationTimeMillis);
 		return credential;
 	}
 }
@@ -0,0 +1,222 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+/**
+ * State tokens of the OAuth2 flows pending in a session<br>
+ * <br>
+ * When a page is loaded before login,the page and its subsequent requests
+ * reach {@link OAuthFilter} at almost the same time.If each of them replaced
+ * the state token in the session,all callbacks except the last one would fail
+ * with "stateToken not matched".<br>
+ * So a token issued within the reuse window is handed out again,and a few
+ * tokens are kept valid at the same time until each of them is used by as many
+ * callbacks as redirects it was handed out for,or expires.<br>
+ * Call {@link #save(HttpServletRequest)} after changing it.
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+final class PendingStateTokens implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // max pending tokens per session,the oldest one is discarded
+    static final int MAX_PENDING_TOKENS = 8;
+
+    // pending flow not completed within this time is abandoned
+    static final long MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    // lock stripes to create the instance in a session atomically
+    private static final Object[] LOCKS = new Object[64];
+
+    static {
+        for (int i = 0; i < LOCKS.length; i++) {
+            LOCKS[i] = new Object();
+        }
+    }
+
+    private final List<Entry> mEntries = new ArrayList<Entry>(MAX_PENDING_TOKENS);
+
+    private static final class Entry implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final String token;
+        final long issuedAt;
+
+        // callbacks expected for this token
+        int remaining;
+
+        Entry(String token, long issuedAt) {
+            this.token = token;
+            this.issuedAt = issuedAt;
+            this.remaining = 1;
+        }
+    }
+
+    /**
+     * Returns pending tokens of the session,creating them if absent
+     * 
+     * @param req
+     * @return
+     */
+    static PendingStateTokens getOrCreate(HttpServletRequest req) {
+
+        final HttpSession session = req.getSession();
+
+        synchronized (lockFor(session)) {
+
+            PendingStateTokens tokens = get(session);
+
+            if (tokens == null) {
+                tokens = new PendingStateTokens();
+                session.setAttribute(OAuthConst.SESSION_KEY_OAUTH2_STATE_TOKEN, tokens);
+            }
+            return tokens;
+        }
+    }
+
+    /**
+     * Returns pending tokens of the session without creating the session
+     * 
+     * @param req
+     * @return null if no flow is pending
+     */
+    static PendingStateTokens get(HttpServletRequest req) {
+
+        final HttpSession session = req.getSession(false);
+
+        return session != null ? get(session) : null;
+    }
+
+    private static PendingStateTokens get(HttpSession session) {
+
+        final Object value = session.getAttribute(OAuthConst.SESSION_KEY_OAUTH2_STATE_TOKEN);
+
+        return value instanceof PendingStateTokens ? (PendingStateTokens) value : null;
+    }
+
+    /**
+     * Set this to the session again after it was changed<br>
+     * Replicating or persistent session managers(ex. DeltaManager of Tomcat
+     * or a session store on Redis) save only attributes which are set.
+     * 
+     * @param req
+     */
+    void save(HttpServletRequest req) {
+
+        final HttpSession session = req.getSession(false);
+
+        if (session != null) {
+            session.setAttribute(OAuthConst.SESSION_KEY_OAUTH2_STATE_TOKEN, this);
+        }
+    }
+
+    private static Object lockFor(HttpSession session) {
+        return LOCKS[(session.getId().hashCode() & 0x7fffffff) % LOCKS.length];
+    }
+
+    /**
+     * Returns the token issued within the reuse window,or null
+     * 
+     * @param now
+     * @param reuseMillis
+     * @return
+     */
+    synchronized String reuse(long now, long reuseMillis) {
+
+        if (reuseMillis <= 0 || mEntries.isEmpty()) {
+            return null;
+        }
+
+        final Entry newest = mEntries.get(mEntries.size() - 1);
+
+        if (now - newest.issuedAt > reuseMillis) {
+            return null;
+        }
+
+        newest.remaining++;
+
+        return newest.token;
+    }
+
+    /**
+     * Add newly issued token
+     * 
+     * @param token
+     * @param now
+     */
+    synchronized void add(String token, long now) {
+
+        removeExpired(now);
+
+        if (mEntries.size() >= MAX_PENDING_TOKENS) {
+            mEntries.remove(0);
+        }
+
+        mEntries.add(new Entry(token, now));
+    }
+
+    /**
+     * Check if the token received by the callback is pending and count one
+     * use of it
+     * 
+     * @param token
+     * @param now
+     * @return
+     */
+    synchronized boolean consume(String token, long now) {
+
+        removeExpired(now);
+
+        for (int i = 0; i < mEntries.size(); i++) {
+
+            final Entry entry = mEntries.get(i);
+
+            if (entry.token.equals(token)) {
+
+                if (--entry.remaining <= 0) {
+                    mEntries.remove(i);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void removeExpired(long now) {
+
+        // entries are in order of issue time
+        while (!mEntries.isEmpty() && now - mEntries.get(0).issuedAt > MAX_AGE_MILLIS) {
+            mEntries.remove(0);
+        }
+    }
+}
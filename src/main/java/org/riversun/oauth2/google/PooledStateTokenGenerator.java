@@ -0,0 +1,162 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * {@link StateTokenGenerator} that hands out pre-generated tokens<br>
+ * <br>
+ * A background thread keeps the pool filled with tokens of the delegate
+ * generator. When the pool is empty (ex. at the peak of login storm), tokens
+ * are generated by the delegate on the calling thread.<br>
+ * If the delegate fails,the background thread retries with exponential
+ * backoff,and {@link #generate()} throws the failure of the delegate to the
+ * caller once the pool runs out.<br>
+ * Call {@link PooledStateTokenGenerator#shutdown()} when it is no longer used.
+ * <br>
+ * Thread-safe
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public final class PooledStateTokenGenerator implements StateTokenGenerator {
+
+    private static final Logger LOGGER = Logger.getLogger(PooledStateTokenGenerator.class.getName());
+
+    // wait before retrying after the delegate failed,doubled on each failure
+    static final long MIN_BACKOFF_MILLIS = 10;
+    static final long MAX_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    private final StateTokenGenerator mDelegate;
+    private final BlockingQueue<String> mPool;
+    private final Thread mRefillThread;
+
+    private volatile boolean mRunning = true;
+
+    /**
+     * Create pool of tokens generated by {@link DefaultStateTokenGenerator}
+     * 
+     * @param poolSize
+     */
+    public PooledStateTokenGenerator(int poolSize) {
+        this(DefaultStateTokenGenerator.getInstance(), poolSize);
+    }
+
+    /**
+     * Create pool of tokens
+     * 
+     * @param delegate
+     *            generator which generates tokens
+     * @param poolSize
+     *            max number of pre-generated tokens
+     */
+    public PooledStateTokenGenerator(StateTokenGenerator delegate, int poolSize) {
+
+        if (poolSize <= 0) {
+            throw new IllegalArgumentException("poolSize must be positive. poolSize=" + poolSize);
+        }
+
+        mDelegate = delegate;
+        mPool = new ArrayBlockingQueue<String>(poolSize);
+
+        mRefillThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                refill();
+            }
+        }, "oauth2-state-token-pool");
+
+        mRefillThread.setDaemon(true);
+        mRefillThread.start();
+    }
+
+    private void refill() {
+
+        long backoffMillis = 0;
+
+        while (mRunning) {
+            try {
+
+                final String token;
+
+                try {
+                    token = mDelegate.generate();
+                } catch (RuntimeException e) {
+
+                    if (backoffMillis == 0) {
+                        LOGGER.warning("Failed to generate state token " + e);
+                        backoffMillis = MIN_BACKOFF_MILLIS;
+                    } else {
+                        LOGGER.fine("Failed to generate state token again " + e);
+                        backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+                    }
+
+                    // don't spin on the failing delegate,callers generate
+                    // tokens by themselves and see the failure meanwhile
+                    Thread.sleep(backoffMillis);
+                    continue;
+                }
+
+                backoffMillis = 0;
+
+                // blocks while the pool is full
+                mPool.put(token);
+
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    @Override
+    public String generate() {
+
+        final String token = mPool.poll();
+
+        if (token != null) {
+            return token;
+        }
+
+        return mDelegate.generate();
+    }
+
+    /**
+     * Returns number of tokens in the pool
+     * 
+     * @return
+     */
+    public int size() {
+        return mPool.size();
+    }
+
+    /**
+     * Stop refill thread
+     */
+    public void shutdown() {
+        mRunning = false;
+        mRefillThread.interrupt();
+    }
+}
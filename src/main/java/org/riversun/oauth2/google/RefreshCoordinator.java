@@ -0,0 +1,234 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import com.google.api.client.auth.oauth2.TokenResponse;
+
+/**
+ * Coordinates access token refresh per user<br>
+ * <br>
+ * When many requests of the same user refresh the expired access token at the
+ * same time (ex. parallel XHRs of a page),only the first one calls the token
+ * endpoint and others wait for and share its result.<br>
+ * A result is also shared with the requests which arrive within a short time
+ * after it completed.<br>
+ * Thread-safe
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public final class RefreshCoordinator {
+
+    private static final Logger LOGGER = Logger.getLogger(RefreshCoordinator.class.getName());
+
+    // completed results are shared for this time
+    private static final long DEFAULT_REUSE_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    // waiters give up on a refresh in flight after this time
+    private static final long DEFAULT_AWAIT_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+    // sweep completed entries when the map grows over this size
+    private static final int SWEEP_THRESHOLD = 1024;
+
+    // after the defaults,which are not compile-time constants
+    private static final RefreshCoordinator instance = new RefreshCoordinator();
+
+    private final ConcurrentMap<String, Flight> mFlights = new ConcurrentHashMap<String, Flight>();
+
+    private final LongAdder mRefreshCount = new LongAdder();
+    private final LongAdder mCoalescedCount = new LongAdder();
+
+    private volatile long mReuseMillis = DEFAULT_REUSE_MILLIS;
+    private volatile long mAwaitTimeoutMillis = DEFAULT_AWAIT_TIMEOUT_MILLIS;
+
+    /**
+     * A refresh in flight or recently completed
+     */
+    private static final class Flight {
+
+        final CompletableFuture<TokenResponse> future = new CompletableFuture<TokenResponse>();
+
+        // System.nanoTime() when completed successfully,0 while in flight
+        volatile long completedAtNanos = 0;
+
+        boolean isReusable(long nowNanos, long reuseMillis) {
+
+            if (!future.isDone()) {
+                return true;
+            }
+
+            return completedAtNanos != 0 && nowNanos - completedAtNanos < TimeUnit.MILLISECONDS.toNanos(reuseMillis);
+        }
+    }
+
+    private RefreshCoordinator() {
+    }
+
+    public static RefreshCoordinator getInstance() {
+        return instance;
+    }
+
+    /**
+     * Set time during which a completed refresh is shared with later callers
+     * 
+     * @param reuseMillis
+     */
+    public void setReuseMillis(long reuseMillis) {
+        mReuseMillis = reuseMillis;
+    }
+
+    /**
+     * Set max time to wait for the refresh in flight of another thread
+     * 
+     * @param awaitTimeoutMillis
+     */
+    public void setAwaitTimeoutMillis(long awaitTimeoutMillis) {
+        mAwaitTimeoutMillis = awaitTimeoutMillis;
+    }
+
+    /**
+     * Refresh for the user,or wait for the refresh already in flight
+     * 
+     * @param userId
+     * @param refresher
+     *            calls the token endpoint
+     * @return
+     * @throws IOException
+     */
+    public TokenResponse refresh(String userId, Callable<TokenResponse> refresher) throws IOException {
+
+        final long reuseMillis = mReuseMillis;
+
+        while (true) {
+
+            final Flight current = mFlights.get(userId);
+
+            if (current != null && current.isReusable(System.nanoTime(), reuseMillis)) {
+                mCoalescedCount.increment();
+                LOGGER.fine("coalesced refresh userId=" + userId);
+                return await(current.future, mAwaitTimeoutMillis);
+            }
+
+            final Flight flight = new Flight();
+
+            final boolean won = current == null ? mFlights.putIfAbsent(userId, flight) == null : mFlights.replace(userId, current, flight);
+
+            if (!won) {
+                // another thread started a refresh,join it
+                continue;
+            }
+
+            sweepIfNeeded();
+
+            mRefreshCount.increment();
+
+            try {
+                final TokenResponse tokenResponse = refresher.call();
+                flight.completedAtNanos = System.nanoTime();
+                flight.future.complete(tokenResponse);
+                return tokenResponse;
+            } catch (Throwable t) {
+                // don't share failures with later callers.Errors also
+                // complete the flight,or its waiters would block forever
+                mFlights.remove(userId, flight);
+                flight.future.completeExceptionally(t);
+
+                if (t instanceof Error) {
+                    throw (Error) t;
+                }
+                throw asIOException(t);
+            }
+        }
+    }
+
+    /**
+     * Returns number of refreshes actually executed
+     * 
+     * @return
+     */
+    public long getRefreshCount() {
+        return mRefreshCount.sum();
+    }
+
+    /**
+     * Returns number of refreshes which shared another's result
+     * 
+     * @return
+     */
+    public long getCoalescedCount() {
+        return mCoalescedCount.sum();
+    }
+
+    private void sweepIfNeeded() {
+
+        if (mFlights.size() < SWEEP_THRESHOLD) {
+            return;
+        }
+
+        final long now = System.nanoTime();
+        final long reuseMillis = mReuseMillis;
+
+        for (Iterator<Flight> it = mFlights.values().iterator(); it.hasNext();) {
+            if (!it.next().isReusable(now, reuseMillis)) {
+                it.remove();
+            }
+        }
+    }
+
+    private static TokenResponse await(CompletableFuture<TokenResponse> future, long timeoutMillis) throws IOException {
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new IOException("Timed out waiting for token refresh", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for token refresh", e);
+        } catch (ExecutionException e) {
+            throw asIOException(e.getCause());
+        }
+    }
+
+    private static IOException asIOException(Throwable t) {
+
+        if (t instanceof IOException) {
+            return (IOException) t;
+        }
+
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+
+        return new IOException(t);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Store of users' refresh tokens<br>
+ * <br>
+ * RefreshToken is recommended to be persistent rather than on-memory.<br>
+ * Return your store from {@link OAuthCallbackServlet#getRefreshTokenStore()}.
+ * <br>
+ * Implementation must be thread-safe.
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public interface RefreshTokenStore {
+
+    /**
+     * Returns refresh token of user or null if not stored
+     * 
+     * @param userId
+     * @return
+     * @throws IOException
+     */
+    String load(String userId) throws IOException;
+
+    /**
+     * Returns refresh tokens of users.<br>
+     * Users whose refresh token is not stored are not contained in the
+     * returned map.
+     * 
+     * @param userIds
+     * @return
+     * @throws IOException
+     */
+    Map<String, String> loadAll(Collection<String> userIds) throws IOException;
+
+    /**
+     * Save refresh token of user
+     * 
+     * @param userId
+     * @param refreshToken
+     * @throws IOException
+     */
+    void save(String userId, String refreshToken) throws IOException;
+
+    /**
+     * Save refresh tokens
+     * 
+     * @param refreshTokens
+     *            map of userId and refresh token
+     * @throws IOException
+     */
+    void saveAll(Map<String, String> refreshTokens) throws IOException;
+
+    /**
+     * Remove refresh token of user(ex. when it is revoked)
+     * 
+     * @param userId
+     * @throws IOException
+     */
+    void remove(String userId) throws IOException;
+}
@@ -0,0 +1,418 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Carries the url to return after OAuth2 flow in an HMAC-signed "state"
+ * parameter instead of HttpSession<br>
+ * <br>
+ * The state consists of the return url,a nonce and the issue time,signed with
+ * HMAC-SHA256.The callback accepts it only if the signature matches(compared
+ * in constant time),it is not older than max age and the nonce matches the
+ * short-lived cookie set to the browser which started the flow(so that a
+ * state issued to someone else can't be used for CSRF).<br>
+ * Each flow has its own nonce cookie named after the nonce,so flows started
+ * at the same time(ex. a page and its XHRs,or another tab) don't overwrite
+ * each other's cookie.<br>
+ * <br>
+ * Return it from {@link OAuthFilter#getSignedStateCodec()} so that redirects
+ * of anonymous requests(including crawlers) create no session.The session is
+ * created only after login succeeds.<br>
+ * Thread-safe
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public final class SignedStateCodec {
+
+    private static final Logger LOGGER = Logger.getLogger(SignedStateCodec.class.getName());
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static final String DEFAULT_COOKIE_NAME = "goauth_state";
+
+    private static final byte VERSION = 1;
+
+    private static final int NONCE_LENGTH = 16;
+
+    // bytes of the nonce used in the cookie name
+    private static final int NONCE_ID_LENGTH = 6;
+
+    // max nonce cookies of pending flows per browser,an existing one is
+    // reused beyond this
+    static final int MAX_PENDING_NONCES = 8;
+
+    // HMAC-SHA256 truncated to 128 bits
+    private static final int MAC_LENGTH = 16;
+
+    // version + issuedAt + nonce
+    private static final int HEADER_LENGTH = 1 + 8 + NONCE_LENGTH;
+
+    // tolerated clock difference between servers
+    private static final long CLOCK_SKEW_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final SecretKeySpec mKey;
+
+    private volatile long mMaxAgeMillis = TimeUnit.MINUTES.toMillis(10);
+    private volatile String mCookieName = DEFAULT_COOKIE_NAME;
+    private volatile String mPath = "/";
+    private volatile boolean mSecure = true;
+
+    private final ThreadLocal<Mac> mMac = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                final Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(mKey);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private final SecureRandom mRandom = new SecureRandom();
+
+    /**
+     * @param key
+     *            HMAC key(at least 32 bytes).Share the same key between
+     *            servers behind a load balancer.
+     */
+    public SignedStateCodec(byte[] key) {
+
+        if (key.length < 32) {
+            throw new IllegalArgumentException("key must be at least 32 bytes. length=" + key.length);
+        }
+
+        mKey = new SecretKeySpec(key.clone(), "HmacSHA256");
+    }
+
+    /**
+     * Set how long the state is accepted after the redirect(10 minutes by
+     * default)
+     * 
+     * @param maxAgeMillis
+     * @return
+     */
+    public SignedStateCodec setMaxAgeMillis(long maxAgeMillis) {
+        mMaxAgeMillis = maxAgeMillis;
+        return SignedStateCodec.this;
+    }
+
+    public SignedStateCodec setCookieName(String cookieName) {
+        mCookieName = cookieName;
+        return SignedStateCodec.this;
+    }
+
+    public SignedStateCodec setPath(String path) {
+        mPath = path;
+        return SignedStateCodec.this;
+    }
+
+    public SignedStateCodec setSecure(boolean secure) {
+        mSecure = secure;
+        return SignedStateCodec.this;
+    }
+
+    /**
+     * Issue state for the redirect to the authorization server and bind it to
+     * the browser by the nonce cookie
+     * 
+     * @param req
+     * @param resp
+     * @param returnUrl
+     *            url to return after OAuth2 flow
+     * @return value of "state" parameter
+     */
+    public String issue(HttpServletRequest req, HttpServletResponse resp, String returnUrl) {
+
+        byte[] nonce = reusePendingNonce(req);
+
+        if (nonce == null) {
+            nonce = new byte[NONCE_LENGTH];
+            mRandom.nextBytes(nonce);
+        }
+
+        // (re)set to extend the cookie as long as the new state
+        addCookieHeader(resp, getCookieName(nonce), encodeNonce(nonce), (int) TimeUnit.MILLISECONDS.toSeconds(mMaxAgeMillis));
+
+        return encode(returnUrl, nonce, System.currentTimeMillis());
+    }
+
+    /**
+     * Verify state received by the callback and remove the nonce cookie
+     * 
+     * @param req
+     * @param resp
+     * @param state
+     *            value of "state" parameter
+     * @return url to return after OAuth2 flow,or null if the state is
+     *         invalid,too old or issued to another browser
+     */
+    public String verify(HttpServletRequest req, HttpServletResponse resp, String state) {
+
+        final byte[] blob = decode(state, System.currentTimeMillis());
+
+        if (blob == null) {
+            return null;
+        }
+
+        final byte[] nonce = getNonce(blob);
+
+        final byte[] cookieNonce = decodeNonce(getCookieValue(req, getCookieName(nonce)));
+
+        if (cookieNonce == null || !MessageDigest.isEqual(nonce, cookieNonce)) {
+            LOGGER.fine("nonce of state not matched");
+            return null;
+        }
+
+        // each state can be used only once by the browser
+        addCookieHeader(resp, getCookieName(nonce), "", 0);
+
+        return new String(blob, HEADER_LENGTH, blob.length - HEADER_LENGTH - MAC_LENGTH, UTF_8);
+    }
+
+    /**
+     * Sign return url,nonce and issue time into state
+     * 
+     * @param returnUrl
+     * @param nonce
+     * @param issuedAt
+     * @return
+     */
+    String encode(String returnUrl, byte[] nonce, long issuedAt) {
+
+        final byte[] url = returnUrl.getBytes(UTF_8);
+
+        final ByteBuffer blob = ByteBuffer.allocate(HEADER_LENGTH + url.length + MAC_LENGTH);
+        blob.put(VERSION);
+        blob.putLong(issuedAt);
+        blob.put(nonce);
+        blob.put(url);
+
+        final Mac mac = mMac.get();
+        mac.update(blob.array(), 0, blob.position());
+        blob.put(mac.doFinal(), 0, MAC_LENGTH);
+
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(blob.array());
+    }
+
+    /**
+     * Check signature and age of state
+     * 
+     * @param state
+     * @param now
+     * @return signed bytes of state,or null if it is broken,modified or too
+     *         old
+     */
+    byte[] decode(String state, long now) {
+
+        final byte[] blob;
+
+        try {
+            blob = Base64.getUrlDecoder().decode(state);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        if (blob.length < HEADER_LENGTH + MAC_LENGTH || blob[0] != VERSION) {
+            return null;
+        }
+
+        final int signedLength = blob.length - MAC_LENGTH;
+
+        final Mac mac = mMac.get();
+        mac.update(blob, 0, signedLength);
+        final byte[] expected = mac.doFinal();
+
+        // compare in constant time
+        int diff = 0;
+        for (int i = 0; i < MAC_LENGTH; i++) {
+            diff |= expected[i] ^ blob[signedLength + i];
+        }
+
+        if (diff != 0) {
+            LOGGER.fine("signature of state not matched");
+            return null;
+        }
+
+        final long issuedAt = ByteBuffer.wrap(blob, 1, 8).getLong();
+
+        if (issuedAt > now + CLOCK_SKEW_MILLIS || now - issuedAt > mMaxAgeMillis) {
+            LOGGER.fine("state expired issuedAt=" + issuedAt);
+            return null;
+        }
+
+        return blob;
+    }
+
+    /**
+     * Returns value of the nonce cookie of the state,which identifies the
+     * browser during the flow<br>
+     * The state is not verified here.
+     * 
+     * @param req
+     * @param state
+     *            value of "state" parameter
+     * @return null if not found
+     */
+    String getNonceCookieValue(HttpServletRequest req, String state) {
+
+        final byte[] blob;
+
+        try {
+            blob = Base64.getUrlDecoder().decode(state);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        if (blob.length < HEADER_LENGTH) {
+            return null;
+        }
+
+        return getCookieValue(req, getCookieName(getNonce(blob)));
+    }
+
+    /**
+     * Returns the nonce of a pending flow if the browser already has too many
+     * nonce cookies
+     * 
+     * @param req
+     * @return null if a new nonce should be issued
+     */
+    private byte[] reusePendingNonce(HttpServletRequest req) {
+
+        final Cookie[] cookies = req.getCookies();
+
+        if (cookies == null) {
+            return null;
+        }
+
+        final String prefix = mCookieName + "_";
+
+        int count = 0;
+        byte[] last = null;
+
+        for (Cookie cookie : cookies) {
+
+            if (!cookie.getName().startsWith(prefix)) {
+                continue;
+            }
+
+            final byte[] nonce = decodeNonce(cookie.getValue());
+
+            if (nonce != null && cookie.getName().equals(getCookieName(nonce))) {
+                count++;
+                last = nonce;
+            }
+        }
+
+        return count >= MAX_PENDING_NONCES ? last : null;
+    }
+
+    private static byte[] getNonce(byte[] blob) {
+
+        final byte[] nonce = new byte[NONCE_LENGTH];
+        System.arraycopy(blob, 1 + 8, nonce, 0, NONCE_LENGTH);
+
+        return nonce;
+    }
+
+    /**
+     * Returns name of the nonce cookie,ex. "goauth_state_3q2-7wAB"
+     * 
+     * @param nonce
+     * @return
+     */
+    String getCookieName(byte[] nonce) {
+        return mCookieName + "_" + Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(nonce, NONCE_ID_LENGTH));
+    }
+
+    private static String encodeNonce(byte[] nonce) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(nonce);
+    }
+
+    private static byte[] decodeNonce(String value) {
+
+        if (value == null) {
+            return null;
+        }
+
+        try {
+            final byte[] nonce = Base64.getUrlDecoder().decode(value);
+            return nonce.length == NONCE_LENGTH ? nonce : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static String getCookieValue(HttpServletRequest req, String name) {
+
+        final Cookie[] cookies = req.getCookies();
+
+        if (cookies == null) {
+            return null;
+        }
+
+        for (Cookie cookie : cookies) {
+            if (name.equals(cookie.getName())) {
+                return cookie.getValue();
+            }
+        }
+        return null;
+    }
+
+    private void addCookieHeader(HttpServletResponse resp, String name, String value, int maxAgeSeconds) {
+
+        final StringBuilder sb = new StringBuilder(value.length() + 96);
+
+        sb.append(name).append('=').append(value);
+        sb.append("; Path=").append(mPath);
+        sb.append("; Max-Age=").append(maxAgeSeconds);
+        sb.append("; HttpOnly");
+
+        if (mSecure) {
+            sb.append("; Secure");
+        }
+
+        // sent on the top-level redirect back from the authorization server
+        sb.append("; SameSite=Lax");
+
+        resp.addHeader("Set-Cookie", sb.toString());
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+
+import com.google.api.client.auth.oauth2.TokenResponse;
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+
+/**
+ * GoogleCredential whose refresh is coordinated per user by
+ * {@link RefreshCoordinator}
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+final class SingleFlightCredential extends GoogleCredential {
+
+    private final String mUserId;
+
+    SingleFlightCredential(GoogleCredential.Builder builder, String userId) {
+        super(builder);
+        mUserId = userId;
+    }
+
+    @Override
+    protected TokenResponse executeRefreshToken() throws IOException {
+
+        return RefreshCoordinator.getInstance().refresh(mUserId, new Callable<TokenResponse>() {
+            @Override
+            public TokenResponse call() throws Exception {
+                return executeRefreshTokenDirectly();
+            }
+        });
+    }
+
+    private TokenResponse executeRefreshTokenDirectly() throws IOException {
+        return super.executeRefreshToken();
+    }
+}
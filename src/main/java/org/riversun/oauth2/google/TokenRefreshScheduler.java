@@ -0,0 +1,538 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.google.api.client.auth.oauth2.TokenResponseException;
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+
+/**
+ * Refreshes users' access tokens in the background shortly before they
+ * expire<br>
+ * <br>
+ * For users who use offline access through the stored refresh token, the
+ * request path always finds a valid access token.<br>
+ * Timers of all users are kept in one hashed timing wheel driven by a single
+ * thread,and refreshes run on a bounded executor.Each refresh time is moved
+ * earlier by a random jitter so that refreshes of users who logged in at the
+ * same time are spread out.<br>
+ * Users who have been idle(no credential created by
+ * {@link OAuthSession#createCredential(javax.servlet.http.HttpServletRequest)})
+ * longer than maxIdle are no longer refreshed,and the number of scheduled users is
+ * capped.<br>
+ * <br>
+ * Return it from {@link OAuthCallbackServlet#getTokenRefreshScheduler()} to
+ * schedule users on login.<br>
+ * Thread-safe
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public class TokenRefreshScheduler {
+
+    private static final Logger LOGGER = Logger.getLogger(TokenRefreshScheduler.class.getName());
+
+    private static final long TICK_MILLIS = 1000;
+
+    // 512 ticks(about 8.5 minutes) per round,must be power of 2
+    private static final int WHEEL_SIZE = 512;
+
+    // retry after failure(ex. network error)
+    private static final long RETRY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final long DEFAULT_MAX_IDLE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private static final int DEFAULT_MAX_USERS = 100000;
+
+    /**
+     * Loads refresh token of user
+     */
+    public interface RefreshTokenLoader {
+
+        /**
+         * Returns refresh token or null if not stored
+         * 
+         * @param userId
+         * @return
+         */
+        String load(String userId);
+    }
+
+    /**
+     * Access token refreshed in the background
+     */
+    public static final class RefreshedToken {
+
+        private final String mAccessToken;
+        private final long mExpirationTimeMillis;
+
+        RefreshedToken(String accessToken, long expirationTimeMillis) {
+            mAccessToken = accessToken;
+            mExpirationTimeMillis = expirationTimeMillis;
+        }
+
+        public String getAccessToken() {
+            return mAccessToken;
+        }
+
+        public long getExpirationTimeMillis() {
+            return mExpirationTimeMillis;
+        }
+    }
+
+    /**
+     * Timer of a user on the wheel
+     */
+    private static final class Timeout {
+
+        final String userId;
+        final long deadlineNanos;
+
+        volatile boolean cancelled = false;
+
+        // epoch millis when the user was active last
+        volatile long lastActiveMillis;
+
+        // accessed only by the wheel thread
+        long remainingRounds;
+
+        Timeout(String userId, long deadlineNanos, long lastActiveMillis) {
+            this.userId = userId;
+            this.deadlineNanos = deadlineNanos;
+            this.lastActiveMillis = lastActiveMillis;
+        }
+    }
+
+    private final RefreshTokenLoader mLoader;
+    private final long mLeadTimeMillis;
+    private final long mJitterMillis;
+
+    private final ExecutorService mExecutor;
+
+    // both are kept only for scheduled users,so bounded by maxUsers
+    private final ConcurrentMap<String, Timeout> mTimeouts = new ConcurrentHashMap<String, Timeout>();
+    private final ConcurrentMap<String, RefreshedToken> mRefreshedTokens = new ConcurrentHashMap<String, RefreshedToken>();
+
+    // timeouts added by other threads,moved to buckets by the wheel thread
+    private final Queue<Timeout> mPendingTimeouts = new ConcurrentLinkedQueue<Timeout>();
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private final ArrayDeque<Timeout>[] mWheel = new ArrayDeque[WHEEL_SIZE];
+
+    private final Random mRandom = new Random();
+
+    private final long mStartNanos = System.nanoTime();
+    private final Thread mWheelThread;
+
+    private volatile boolean mRunning = true;
+
+    private volatile long mMaxIdleMillis = DEFAULT_MAX_IDLE_MILLIS;
+    private volatile int mMaxUsers = DEFAULT_MAX_USERS;
+
+    /**
+     * Create scheduler which refreshes 5 minutes(with up to 2 minutes jitter)
+     * before expiration
+     * 
+     * @param loader
+     */
+    public TokenRefreshScheduler(RefreshTokenLoader loader) {
+        this(loader, TimeUnit.MINUTES.toMillis(5), TimeUnit.MINUTES.toMillis(2), 8);
+    }
+
+    /**
+     * Create scheduler
+     * 
+     * @param loader
+     *            loads refresh token of user.(ex. calls
+     *            {@link OAuthCallbackServlet#loadRefreshTokenFor(String)})
+     * @param leadTimeMillis
+     *            refresh this time before expiration
+     * @param jitterMillis
+     *            max random time added to leadTime
+     * @param maxConcurrentRefreshes
+     *            max number of refreshes running at the same time
+     */
+    public TokenRefreshScheduler(RefreshTokenLoader loader, long leadTimeMillis, long jitterMillis, int maxConcurrentRefreshes) {
+
+        mLoader = loader;
+        mLeadTimeMillis = leadTimeMillis;
+        mJitterMillis = jitterMillis;
+
+        mExecutor = OAuthExecutors.newBoundedExecutor("oauth2-token-refresh", maxConcurrentRefreshes, 65536);
+
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            mWheel[i] = new ArrayDeque<Timeout>();
+        }
+
+        mWheelThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWheel();
+            }
+        }, "oauth2-token-refresh-wheel");
+
+        mWheelThread.setDaemon(true);
+        mWheelThread.start();
+    }
+
+    /**
+     * Set how long refreshes continue after the user was active last<br>
+     * 1 hour by default.
+     * 
+     * @param maxIdleMillis
+     * @return
+     */
+    public TokenRefreshScheduler setMaxIdleMillis(long maxIdleMillis) {
+        mMaxIdleMillis = maxIdleMillis;
+        return TokenRefreshScheduler.this;
+    }
+
+    /**
+     * Set max number of scheduled users<br>
+     * Users beyond this are not refreshed in the background,and their access
+     * tokens are refreshed on the request path as usual.100000 by default.
+     * 
+     * @param maxUsers
+     * @return
+     */
+    public TokenRefreshScheduler setMaxUsers(int maxUsers) {
+        mMaxUsers = maxUsers;
+        return TokenRefreshScheduler.this;
+    }
+
+    /**
+     * Schedule refresh of user's access token before expiration<br>
+     * Previous schedule of the user is replaced.The user is regarded as
+     * active now.
+     * 
+     * @param userId
+     * @param expirationTimeMillis
+     *            epoch millis when current access token expires
+     */
+    public void schedule(String userId, long expirationTimeMillis) {
+
+        if (mTimeouts.size() >= mMaxUsers && !mTimeouts.containsKey(userId)) {
+            LOGGER.warning("Too many users scheduled.Not refreshed in the background userId=" + userId);
+            return;
+        }
+
+        final Timeout timeout = new Timeout(userId, deadlineOf(expirationTimeMillis), System.currentTimeMillis());
+
+        final Timeout previous = mTimeouts.put(userId, timeout);
+
+        if (previous != null) {
+            previous.cancelled = true;
+        }
+
+        mPendingTimeouts.add(timeout);
+    }
+
+    /**
+     * Record that the user is active(ex. credential of the user is created)
+     * 
+     * @param userId
+     */
+    public void touch(String userId) {
+
+        final Timeout timeout = mTimeouts.get(userId);
+
+        if (timeout != null) {
+            timeout.lastActiveMillis = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Cancel refresh of user(ex. on logout)
+     * 
+     * @param userId
+     */
+    public void cancel(String userId) {
+
+        final Timeout timeout = mTimeouts.remove(userId);
+
+        if (timeout != null) {
+            timeout.cancelled = true;
+        }
+
+        mRefreshedTokens.remove(userId);
+    }
+
+    /**
+     * Returns the latest access token refreshed in the background or null
+     * 
+     * @param userId
+     * @return
+     */
+    public RefreshedToken getRefreshedToken(String userId) {
+
+        final RefreshedToken token = mRefreshedTokens.get(userId);
+
+        if (token != null && token.getExpirationTimeMillis() <= System.currentTimeMillis()) {
+            mRefreshedTokens.remove(userId, token);
+            return null;
+        }
+
+        return token;
+    }
+
+    /**
+     * Returns number of scheduled users
+     * 
+     * @return
+     */
+    public int size() {
+        return mTimeouts.size();
+    }
+
+    public void shutdown() {
+        mRunning = false;
+        mWheelThread.interrupt();
+        mExecutor.shutdownNow();
+    }
+
+    private long deadlineOf(long expirationTimeMillis) {
+
+        final long jitter = mJitterMillis > 0 ? (long) (nextDouble() * mJitterMillis) : 0;
+
+        final long delayMillis = Math.max(expirationTimeMillis - mLeadTimeMillis - jitter - System.currentTimeMillis(), 0);
+
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+    }
+
+    /**
+     * Replace the expired timeout with the next one<br>
+     * Not rescheduled if the user was cancelled or scheduled again meanwhile.
+     * 
+     * @param previous
+     * @param deadlineNanos
+     */
+    private void reschedule(Timeout previous, long deadlineNanos) {
+
+        final Timeout timeout = new Timeout(previous.userId, deadlineNanos, previous.lastActiveMillis);
+
+        if (!mTimeouts.replace(previous.userId, previous, timeout)) {
+            return;
+        }
+
+        // activity recorded while replacing
+        timeout.lastActiveMillis = Math.max(timeout.lastActiveMillis, previous.lastActiveMillis);
+
+        mPendingTimeouts.add(timeout);
+    }
+
+    /**
+     * Stop refreshing unless the user was scheduled again meanwhile
+     * 
+     * @param timeout
+     */
+    private void stop(Timeout timeout) {
+
+        timeout.cancelled = true;
+
+        if (mTimeouts.remove(timeout.userId, timeout)) {
+            mRefreshedTokens.remove(timeout.userId);
+        }
+    }
+
+    private static long retryDeadline() {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RETRY_MILLIS);
+    }
+
+    private synchronized double nextDouble() {
+        return mRandom.nextDouble();
+    }
+
+    private void runWheel() {
+
+        final long tickNanos = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+
+        long tick = 0;
+
+        while (mRunning) {
+
+            // wait until the end of current tick
+            final long sleepNanos = mStartNanos + (tick + 1) * tickNanos - System.nanoTime();
+
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+
+            transferPendingTimeouts(tick, tickNanos);
+
+            expireTimeouts(mWheel[(int) (tick & (WHEEL_SIZE - 1))]);
+
+            tick++;
+        }
+    }
+
+    private void transferPendingTimeouts(long tick, long tickNanos) {
+
+        Timeout timeout;
+
+        while ((timeout = mPendingTimeouts.poll()) != null) {
+
+            if (timeout.cancelled) {
+                continue;
+            }
+
+            final long calculated = (timeout.deadlineNanos - mStartNanos) / tickNanos;
+
+            timeout.remainingRounds = (calculated - tick) / WHEEL_SIZE;
+
+            // deadline already passed is expired on current tick
+            final long ticks = Math.max(calculated, tick);
+
+            mWheel[(int) (ticks & (WHEEL_SIZE - 1))].add(timeout);
+        }
+    }
+
+    private void expireTimeouts(ArrayDeque<Timeout> bucket) {
+
+        for (Iterator<Timeout> it = bucket.iterator(); it.hasNext();) {
+
+            final Timeout timeout = it.next();
+
+            if (timeout.cancelled) {
+                it.remove();
+            } else if (timeout.remainingRounds <= 0) {
+                it.remove();
+                submitRefresh(timeout);
+            } else {
+                timeout.remainingRounds--;
+            }
+        }
+    }
+
+    private void submitRefresh(final Timeout timeout) {
+
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!timeout.cancelled) {
+                        refresh(timeout);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOGGER.warning("Too many refreshes queued.Retry later userId=" + timeout.userId);
+            reschedule(timeout, retryDeadline());
+        }
+    }
+
+    private void refresh(Timeout timeout) {
+
+        final String userId = timeout.userId;
+
+        if (System.currentTimeMillis() - timeout.lastActiveMillis > mMaxIdleMillis) {
+            LOGGER.fine("user is idle.Stop refreshing userId=" + userId);
+            stop(timeout);
+            return;
+        }
+
+        final String refreshToken = mLoader.load(userId);
+
+        if (refreshToken == null || OAuthCallbackServlet.DUMMY_REFRESH_TOKEN.equals(refreshToken)) {
+            LOGGER.fine("refresh token not found userId=" + userId);
+            stop(timeout);
+            return;
+        }
+
+        try {
+
+            // refresh is coordinated with the request path by userId
+            final GoogleCredential credential = OAuthUtil.createCredential(userId, null, refreshToken, null, null);
+
+            if (!credential.refreshToken()) {
+                // ex. 5xx of the token endpoint
+                LOGGER.warning("Failed to refresh access token.Retry later userId=" + userId);
+                reschedule(timeout, retryDeadline());
+                return;
+            }
+
+            final Long expirationTimeMillis = credential.getExpirationTimeMilliseconds();
+
+            LOGGER.fine("refreshed userId=" + userId + " expirationTimeMillis=" + expirationTimeMillis);
+
+            if (expirationTimeMillis == null) {
+                stop(timeout);
+                return;
+            }
+
+            final RefreshedToken refreshedToken = new RefreshedToken(credential.getAccessToken(), expirationTimeMillis);
+
+            mRefreshedTokens.put(userId, refreshedToken);
+
+            if (!mTimeouts.containsKey(userId)) {
+                // cancelled(ex. logged out) while refreshing
+                mRefreshedTokens.remove(userId, refreshedToken);
+                return;
+            }
+
+            reschedule(timeout, deadlineOf(expirationTimeMillis));
+
+        } catch (TokenResponseException e) {
+
+            if (isRejected(e.getStatusCode())) {
+                // ex. invalid_grant,refresh token was revoked or expired
+                LOGGER.warning("Refresh token was rejected.Stop refreshing userId=" + userId + " " + e.getStatusCode());
+                stop(timeout);
+                return;
+            }
+
+            LOGGER.warning("Failed to refresh access token.Retry later userId=" + userId + " " + e.getStatusCode());
+            reschedule(timeout, retryDeadline());
+
+        } catch (Exception e) {
+            LOGGER.warning("Failed to refresh access token.Retry later userId=" + userId + " " + e);
+            reschedule(timeout, retryDeadline());
+        }
+    }
+
+    /**
+     * Returns true if the token endpoint rejected the refresh token itself,so
+     * retrying never succeeds<br>
+     * 429 is a request to retry later.
+     * 
+     * @param status
+     *            status code of the token response
+     * @return
+     */
+    static boolean isRejected(int status) {
+        return status >= 400 && status < 500 && status != 429;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link AsyncLogHandler}
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public class AsyncLogHandlerTest {
+
+    @Test
+    public void testRecordsAreWrittenOnClose() {
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        final AsyncLogHandler handler = new AsyncLogHandler(out, 1024, AsyncLogHandler.OverflowPolicy.BLOCK);
+
+        for (int i = 0; i < 1000; i++) {
+            handler.publish(new LogRecord(Level.INFO, "message" + i));
+        }
+        handler.close();
+
+        final String text = new String(out.toByteArray());
+
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(text.contains("message" + i + System.lineSeparator()) || text.contains("message" + i + "\n"));
+        }
+        assertEquals(0, handler.getDroppedCount());
+    }
+
+    /**
+     * Every record published by concurrent threads is either written or
+     * counted as dropped
+     */
+    @Test
+    public void testRecordsPublishedWhileClosing() throws InterruptedException {
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        final AsyncLogHandler handler = new AsyncLogHandler(out, 1 << 16, AsyncLogHandler.OverflowPolicy.DROP);
+
+        final int threads = 4;
+        final int records = 2000;
+
+        final CountDownLatch started = new CountDownLatch(threads);
+        final Thread[] publishers = new Thread[threads];
+
+        for (int t = 0; t < threads; t++) {
+
+            final int id = t;
+
+            publishers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    for (int i = 0; i < records; i++) {
+                        handler.publish(new LogRecord(Level.INFO, "record-" + id + "-" + i + "-end"));
+                    }
+                }
+            });
+            publishers[t].start();
+        }
+
+        started.await();
+        handler.close();
+
+        for (Thread publisher : publishers) {
+            publisher.join();
+        }
+
+        final String text = new String(out.toByteArray());
+
+        int written = 0;
+
+        for (int index = text.indexOf("-end"); index >= 0; index = text.indexOf("-end", index + 1)) {
+            written++;
+        }
+
+        // records published after close returned are dropped
+        assertEquals(threads * records, written + handler.getDroppedCount());
+    }
+
+    @Test
+    public void testPublishAfterClose() {
+
+        final AsyncLogHandler handler = new AsyncLogHandler(new ByteArrayOutputStream(), 16, AsyncLogHandler.OverflowPolicy.DROP);
+        handler.close();
+
+        handler.publish(new LogRecord(Level.INFO, "late"));
+
+        assertEquals(1, handler.getDroppedCount());
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleTokenResponse;
+
+/**
+ * Tests for {@link CodeExchangeCache}
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public class CodeExchangeCacheTest {
+
+    private final CodeExchangeCache mCache = CodeExchangeCache.getInstance();
+
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testJoinWithoutExchange() {
+        assertNull(mCache.join(TokenKey.of("absent")));
+    }
+
+    /**
+     * Duplicate callback gets the token response and the url verified by the
+     * first callback
+     */
+    @Test
+    public void testJoinCompletedExchange() throws Exception {
+
+        final TokenKey key = TokenKey.of("completed");
+        final GoogleTokenResponse tokenResponse = new GoogleTokenResponse();
+
+        final CodeExchangeCache.Result result = mCache.exchange(key, "/app/page", returning(tokenResponse));
+        assertSame(tokenResponse, result.tokenResponse);
+
+        final CodeExchangeCache.Result duplicate = mCache.join(key);
+        assertSame(tokenResponse, duplicate.tokenResponse);
+        assertEquals("/app/page", duplicate.returnUrl);
+    }
+
+    /**
+     * Duplicate callback waiting for the first exchange must not reuse its
+     * failure,so that it verifies the state by itself
+     */
+    @Test
+    public void testJoinFailedExchange() throws Exception {
+
+        final TokenKey key = TokenKey.of("failed");
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final Future<CodeExchangeCache.Result> first = mExecutor.submit(new Callable<CodeExchangeCache.Result>() {
+            @Override
+            public CodeExchangeCache.Result call() throws Exception {
+                return mCache.exchange(key, "/app/page", new Callable<GoogleTokenResponse>() {
+                    @Override
+                    public GoogleTokenResponse call() throws Exception {
+                        started.countDown();
+                        release.await();
+                        return null;
+                    }
+                });
+            }
+        });
+
+        started.await();
+
+        final Future<CodeExchangeCache.Result> duplicate = mExecutor.submit(new Callable<CodeExchangeCache.Result>() {
+            @Override
+            public CodeExchangeCache.Result call() throws Exception {
+                return mCache.join(key);
+            }
+        });
+
+        release.countDown();
+
+        assertNull(first.get(10, TimeUnit.SECONDS));
+        assertNull(duplicate.get(10, TimeUnit.SECONDS));
+
+        // failure is not kept
+        assertNull(mCache.join(key));
+    }
+
+    /**
+     * Verified callback exchanges again after the exchange in flight failed
+     */
+    @Test
+    public void testExchangeAfterFailure() throws Exception {
+
+        final TokenKey key = TokenKey.of("retried");
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        mExecutor.submit(new Callable<CodeExchangeCache.Result>() {
+            @Override
+            public CodeExchangeCache.Result call() throws Exception {
+                return mCache.exchange(key, "/first", new Callable<GoogleTokenResponse>() {
+                    @Override
+                    public GoogleTokenResponse call() throws Exception {
+                        started.countDown();
+                        release.await();
+                        throw new IllegalStateException("failed");
+                    }
+                });
+            }
+        });
+
+        started.await();
+
+        final AtomicInteger calls = new AtomicInteger();
+        final GoogleTokenResponse tokenResponse = new GoogleTokenResponse();
+
+        final Future<CodeExchangeCache.Result> second = mExecutor.submit(new Callable<CodeExchangeCache.Result>() {
+            @Override
+            public CodeExchangeCache.Result call() throws Exception {
+                return mCache.exchange(key, "/second", new Callable<GoogleTokenResponse>() {
+                    @Override
+                    public GoogleTokenResponse call() {
+                        calls.incrementAndGet();
+                        return tokenResponse;
+                    }
+                });
+            }
+        });
+
+        release.countDown();
+
+        final CodeExchangeCache.Result result = second.get(10, TimeUnit.SECONDS);
+        assertSame(tokenResponse, result.tokenResponse);
+        assertEquals("/second", result.returnUrl);
+        assertEquals(1, calls.get());
+    }
+
+    /**
+     * Rejection by OAuthCallGuard reaches the caller and is not kept
+     */
+    @Test
+    public void testRejected() throws Exception {
+
+        final TokenKey key = TokenKey.of("rejected");
+
+        try {
+            mCache.exchange(key, "/app/page", new Callable<GoogleTokenResponse>() {
+                @Override
+                public GoogleTokenResponse call() throws Exception {
+                    throw new OAuthCallRejectedException("Circuit is open", 1000);
+                }
+            });
+            fail();
+        } catch (OAuthCallRejectedException e) {
+            assertEquals(1000, e.getRetryAfterMillis());
+        }
+
+        assertNull(mCache.join(key));
+    }
+
+    private static Callable<GoogleTokenResponse> returning(final GoogleTokenResponse tokenResponse) {
+        return new Callable<GoogleTokenResponse>() {
+            @Override
+            public GoogleTokenResponse call() {
+                return tokenResponse;
+            }
+        };
+    }
+}
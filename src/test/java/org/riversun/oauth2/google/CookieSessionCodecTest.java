@@ -0,0 +1,157 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link CookieSessionCodec}
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public class CookieSessionCodecTest {
+
+    private final OAuthAuthState mState = new OAuthAuthState("user1", "access", "refresh", 123L, true);
+
+    @Test
+    public void testEncodeAndDecode() {
+
+        final CookieSessionCodec codec = new CookieSessionCodec(1, key(1));
+
+        final OAuthAuthState decoded = codec.decode(codec.encode(mState));
+
+        assertNotNull(decoded);
+        assertEquals("user1", decoded.getUserId());
+        assertEquals("access", decoded.getAccessToken());
+        assertEquals("refresh", decoded.getRefreshToken());
+        assertEquals(Long.valueOf(123L), decoded.getAccessTokenExpiresAt());
+        assertTrue(decoded.isOAuth2Done());
+    }
+
+    @Test
+    public void testTampered() {
+
+        final CookieSessionCodec codec = new CookieSessionCodec(1, key(1));
+
+        final byte[] blob = Base64.getUrlDecoder().decode(codec.encode(mState));
+
+        for (int i : new int[] { 2, 20, blob.length - 1 }) {
+
+            final byte[] tampered = blob.clone();
+            tampered[i] ^= 1;
+
+            assertNull("index=" + i, codec.decode(Base64.getUrlEncoder().withoutPadding().encodeToString(tampered)));
+        }
+
+        // truncated
+        assertNull(codec.decode(Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(blob, blob.length - 1))));
+
+        assertNull(codec.decode("not base64!"));
+        assertNull(codec.decode(""));
+    }
+
+    /**
+     * Cookie name is authenticated,so a value can't be moved to another cookie
+     */
+    @Test
+    public void testCookieNameIsAuthenticated() {
+
+        final CookieSessionCodec codec = new CookieSessionCodec(1, key(1));
+        final CookieSessionCodec other = new CookieSessionCodec(1, key(1)).setCookieName("other");
+
+        assertNull(other.decode(codec.encode(mState)));
+    }
+
+    @Test
+    public void testExpired() {
+
+        final CookieSessionCodec codec = new CookieSessionCodec(1, key(1)).setMaxAgeSeconds(60);
+
+        final long now = System.currentTimeMillis();
+
+        assertNull(codec.decode(codec.encode(mState, now - TimeUnit.SECONDS.toMillis(61))));
+        assertNotNull(codec.decode(codec.encode(mState, now - TimeUnit.SECONDS.toMillis(30))));
+    }
+
+    /**
+     * Cookies encrypted with the old key are accepted until the key is
+     * removed
+     */
+    @Test
+    public void testKeyRotation() {
+
+        final CookieSessionCodec codec = new CookieSessionCodec(1, key(1));
+
+        final String oldCookie = codec.encode(mState);
+
+        codec.addKey(2, key(2)).setCurrentKeyId(2);
+
+        final String newCookie = codec.encode(mState);
+
+        assertNotNull(codec.decode(oldCookie));
+        assertNotNull(codec.decode(newCookie));
+
+        // encrypted by the new key
+        assertNull(new CookieSessionCodec(1, key(1)).decode(newCookie));
+
+        codec.removeKey(1);
+
+        assertNull(codec.decode(oldCookie));
+        assertNotNull(codec.decode(newCookie));
+    }
+
+    /**
+     * Another key registered with the same id doesn't decrypt
+     */
+    @Test
+    public void testWrongKey() {
+        assertNull(new CookieSessionCodec(1, key(2)).decode(new CookieSessionCodec(1, key(1)).encode(mState)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRemoveCurrentKey() {
+        new CookieSessionCodec(1, key(1)).removeKey(1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidKeyLength() {
+        new CookieSessionCodec(1, new byte[15]);
+    }
+
+    private static byte[] key(int seed) {
+
+        final byte[] key = new byte[32];
+        Arrays.fill(key, (byte) seed);
+
+        return key;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link ExpiringTokenMap}
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public class ExpiringTokenMapTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidMaxEntries() {
+        new ExpiringTokenMap<ExpiringTokenMap.Entry>(0);
+    }
+
+    @Test
+    public void testGet() {
+
+        final ExpiringTokenMap<ExpiringTokenMap.Entry> map = new ExpiringTokenMap<ExpiringTokenMap.Entry>(10);
+
+        final ExpiringTokenMap.Entry entry = new ExpiringTokenMap.Entry(2000);
+
+        map.put(TokenKey.of("token"), entry, 1000);
+
+        assertSame(entry, map.get(TokenKey.of("token"), 1999));
+        assertNull(map.get(TokenKey.of("other"), 1999));
+
+        // expired entry is removed
+        assertNull(map.get(TokenKey.of("token"), 2000));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void testPutExpired() {
+
+        final ExpiringTokenMap<ExpiringTokenMap.Entry> map = new ExpiringTokenMap<ExpiringTokenMap.Entry>(10);
+
+        map.put(TokenKey.of("token"), new ExpiringTokenMap.Entry(1000), 1000);
+
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void testEvict() {
+
+        final ExpiringTokenMap<ExpiringTokenMap.Entry> map = new ExpiringTokenMap<ExpiringTokenMap.Entry>(16);
+
+        for (int i = 0; i < 8; i++) {
+            map.put(TokenKey.of("expiring" + i), new ExpiringTokenMap.Entry(2000), 1000);
+        }
+        for (int i = 0; i < 8; i++) {
+            map.put(TokenKey.of("fresh" + i), new ExpiringTokenMap.Entry(10000), 1000);
+        }
+        assertEquals(16, map.size());
+
+        // expired entries are swept first
+        map.put(TokenKey.of("new"), new ExpiringTokenMap.Entry(10000), 3000);
+        assertEquals(9, map.size());
+
+        for (int i = 0; i < 100; i++) {
+            map.put(TokenKey.of("more" + i), new ExpiringTokenMap.Entry(10000), 3000);
+            assertTrue(map.size() <= 16);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link FileRefreshTokenStore}
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public class FileRefreshTokenStoreTest {
+
+    private File mDir;
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = Files.createTempDirectory("refresh-token-store").toFile();
+        mFile = new File(mDir, "tokens.log");
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(mDir);
+    }
+
+    @Test
+    public void testReopen() throws IOException {
+
+        final FileRefreshTokenStore store = new FileRefreshTokenStore(mFile);
+        store.save("user1", "token1");
+        store.save("user2", "token2");
+        store.remove("user1");
+        store.close();
+
+        final FileRefreshTokenStore reopened = new FileRefreshTokenStore(mFile);
+        try {
+            assertNull(reopened.load("user1"));
+            assertEquals("token2", reopened.load("user2"));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void testCompact() throws IOException {
+
+        final FileRefreshTokenStore store = new FileRefreshTokenStore(mFile);
+
+        for (int i = 0; i < 1000; i++) {
+            store.save("user" + (i % 10), "token" + i);
+        }
+        store.compact();
+
+        assertEquals(10, store.size());
+        assertEquals("token999", store.load("user9"));
+        assertFalse(new File(mFile.getPath() + ".compact").exists());
+
+        // still writable after compaction
+        store.save("user10", "token10");
+        store.close();
+
+        final FileRefreshTokenStore reopened = new FileRefreshTokenStore(mFile);
+        try {
+            assertEquals(11, reopened.size());
+            assertEquals("token999", reopened.load("user9"));
+            assertEquals("token10", reopened.load("user10"));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    /**
+     * Failed compaction leaves the store usable
+     */
+    @Test
+    public void testCompactFailure() throws IOException {
+
+        final FileRefreshTokenStore store = new FileRefreshTokenStore(mFile);
+        store.save("user1", "token1");
+
+        // temp file can't be created
+        final File tmpFile = new File(mFile.getPath() + ".compact");
+        assertTrue(tmpFile.mkdir());
+
+        try {
+            store.compact();
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+
+        store.save("user2", "token2");
+        store.sync();
+        assertEquals("token1", store.load("user1"));
+        store.close();
+
+        final FileRefreshTokenStore reopened = new FileRefreshTokenStore(mFile);
+        try {
+            assertEquals("token1", reopened.load("user1"));
+            assertEquals("token2", reopened.load("user2"));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void testClosed() throws IOException {
+
+        final FileRefreshTokenStore store = new FileRefreshTokenStore(mFile);
+        store.close();
+
+        try {
+            store.save("user1", "token1");
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+
+        // no-op after closed
+        store.sync();
+        store.close();
+    }
+
+    private static void deleteRecursively(File file) {
+
+        final File[] children = file.listFiles();
+
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
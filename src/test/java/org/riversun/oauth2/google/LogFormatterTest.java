@@ -0,0 +1,83 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link LogFormatter}
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public class LogFormatterTest {
+
+    private final LogFormatter mFormatter = new LogFormatter();
+
+    @Test
+    public void testFormat() {
+
+        final LogRecord record = new LogRecord(Level.INFO, "hello {0}");
+        record.setParameters(new Object[] { "world" });
+        record.setSourceClassName("Foo");
+        record.setSourceMethodName("bar");
+
+        final String text = mFormatter.format(record);
+
+        assertTrue(text, text.endsWith(" [  INFO] Foo #bar hello world\n"));
+    }
+
+    /**
+     * Parameter which logs on the same thread in its toString() doesn't
+     * corrupt the outer record
+     */
+    @Test
+    public void testReentrant() {
+
+        final Object parameter = new Object() {
+            @Override
+            public String toString() {
+
+                final LogRecord inner = new LogRecord(Level.FINE, "inner");
+                inner.setSourceClassName("Inner");
+                mFormatter.format(inner);
+
+                return "param";
+            }
+        };
+
+        final LogRecord record = new LogRecord(Level.INFO, "outer {0}");
+        record.setParameters(new Object[] { parameter });
+        record.setSourceClassName("Outer");
+
+        final String text = mFormatter.format(record);
+
+        assertTrue(text, text.endsWith(" [  INFO] Outer  outer param\n"));
+        assertEquals(1, text.split("\n").length);
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+
+/**
+ * Tests for {@link OAuthCallGuard}
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public class OAuthCallGuardTest {
+
+    @Test
+    public void testIsRetryable() {
+
+        assertTrue(OAuthCallGuard.isRetryable(new ConnectException()));
+        assertTrue(OAuthCallGuard.isRetryable(new UnknownHostException()));
+        assertTrue(OAuthCallGuard.isRetryable(status(429)));
+        assertTrue(OAuthCallGuard.isRetryable(status(503)));
+
+        // may have reached Google
+        assertFalse(OAuthCallGuard.isRetryable(status(502)));
+        assertFalse(OAuthCallGuard.isRetryable(status(504)));
+        assertFalse(OAuthCallGuard.isRetryable(new SocketTimeoutException()));
+
+        assertFalse(OAuthCallGuard.isRetryable(status(400)));
+        assertFalse(OAuthCallGuard.isRetryable(status(500)));
+    }
+
+    @Test
+    public void testIsFailure() {
+
+        assertTrue(OAuthCallGuard.isFailure(status(429)));
+        assertTrue(OAuthCallGuard.isFailure(status(500)));
+        assertTrue(OAuthCallGuard.isFailure(new SocketTimeoutException()));
+        assertTrue(OAuthCallGuard.isFailure(new ConnectException()));
+
+        assertFalse(OAuthCallGuard.isFailure(status(400)));
+    }
+
+    /**
+     * 502 is not retried,and counted as a failure
+     */
+    @Test
+    public void testBadGatewayIsNotRetried() {
+
+        final OAuthCallGuard guard = new OAuthCallGuard.Builder().setMaxRetries(2).setBackoffMillis(0, 0).build();
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        try {
+            guard.execute(new Callable<Object>() {
+                @Override
+                public Object call() throws IOException {
+                    calls.incrementAndGet();
+                    throw status(502);
+                }
+            });
+            fail();
+        } catch (IOException e) {
+            assertEquals(502, ((HttpResponseException) e).getStatusCode());
+        }
+
+        assertEquals(1, calls.get());
+        assertEquals(0, guard.getRetryCount());
+        assertEquals(1, guard.getFailureCount());
+    }
+
+    /**
+     * 503 is retried
+     */
+    @Test
+    public void testServiceUnavailableIsRetried() throws IOException {
+
+        final OAuthCallGuard guard = new OAuthCallGuard.Builder().setMaxRetries(2).setBackoffMillis(0, 0).build();
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        final String result = guard.execute(new Callable<String>() {
+            @Override
+            public String call() throws IOException {
+                if (calls.incrementAndGet() < 3) {
+                    throw status(503);
+                }
+                return "ok";
+            }
+        });
+
+        assertEquals("ok", result);
+        assertEquals(2, guard.getRetryCount());
+        assertEquals(0, guard.getFailureCount());
+    }
+
+    /**
+     * Non-I/O exception of the call doesn't open the circuit
+     */
+    @Test
+    public void testWrappedExceptionIsNotFailure() throws IOException {
+
+        final OAuthCallGuard guard = new OAuthCallGuard.Builder().setFailureThreshold(1).setMaxRetries(2).build();
+
+        for (int i = 0; i < 3; i++) {
+            try {
+                guard.execute(new Callable<Object>() {
+                    @Override
+                    public Object call() throws GeneralSecurityException {
+                        throw new GeneralSecurityException("bad key");
+                    }
+                });
+                fail();
+            } catch (OAuthCallRejectedException e) {
+                fail("circuit must not be opened");
+            } catch (IOException e) {
+                assertTrue(e.getCause() instanceof GeneralSecurityException);
+            }
+        }
+
+        assertEquals(0, guard.getRetryCount());
+        assertEquals(0, guard.getFailureCount());
+        assertEquals(OAuthCallGuard.State.CLOSED, guard.getState());
+    }
+
+    /**
+     * Open circuit tells how long until the probe is let through
+     */
+    @Test
+    public void testRetryAfterOfOpenCircuit() throws IOException {
+
+        final OAuthCallGuard guard = new OAuthCallGuard.Builder().setFailureThreshold(1).setMaxRetries(0).setOpenMillis(10000).build();
+
+        try {
+            guard.execute(new Callable<Object>() {
+                @Override
+                public Object call() throws IOException {
+                    throw status(500);
+                }
+            });
+            fail();
+        } catch (HttpResponseException e) {
+            assertEquals(500, e.getStatusCode());
+        }
+
+        try {
+            guard.execute(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    return "ok";
+                }
+            });
+            fail();
+        } catch (OAuthCallRejectedException e) {
+            assertTrue(String.valueOf(e.getRetryAfterMillis()), e.getRetryAfterMillis() > 9000 && e.getRetryAfterMillis() <= 10000);
+        }
+    }
+
+    private static HttpResponseException status(int statusCode) {
+        return new HttpResponseException.Builder(statusCode, null, new HttpHeaders()).build();
+    }
+}
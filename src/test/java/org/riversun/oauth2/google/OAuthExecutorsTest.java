@@ -0,0 +1,146 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link OAuthExecutors}<br>
+ * Runs on virtual threads on Java 21+,otherwise on platform threads.
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public class OAuthExecutorsTest {
+
+    @Test
+    public void testBoundedExecutor() throws InterruptedException {
+
+        final ExecutorService executor = OAuthExecutors.newBoundedExecutor("test", 2, 2);
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(4);
+
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+
+                final int current = running.incrementAndGet();
+
+                synchronized (maxRunning) {
+                    maxRunning.set(Math.max(maxRunning.get(), current));
+                }
+
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            }
+        };
+
+        for (int i = 0; i < 4; i++) {
+            executor.execute(task);
+        }
+
+        // maxThreads + queueSize tasks are accepted
+        try {
+            executor.execute(task);
+            fail();
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+
+        release.countDown();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue(maxRunning.get() <= 2);
+
+        // accepted again after the tasks completed
+        final CountDownLatch again = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                again.countDown();
+            }
+        });
+        assertTrue(again.await(10, TimeUnit.SECONDS));
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertTrue(executor.isTerminated());
+    }
+
+    @Test
+    public void testShutdownNow() throws InterruptedException {
+
+        final ExecutorService executor = OAuthExecutors.newBoundedExecutor("test", 1, 1);
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicInteger interrupted = new AtomicInteger();
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+                } catch (InterruptedException e) {
+                    interrupted.incrementAndGet();
+                }
+            }
+        });
+
+        started.await();
+        executor.shutdownNow();
+
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(1, interrupted.get());
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+            fail();
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+    }
+}
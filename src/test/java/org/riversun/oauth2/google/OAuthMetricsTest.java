@@ -0,0 +1,105 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link OAuthMetrics}
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public class OAuthMetricsTest {
+
+    private final MBeanServer mServer = ManagementFactory.getPlatformMBeanServer();
+
+    private ObjectName mName;
+
+    @Before
+    public void setUp() throws Exception {
+        mName = new ObjectName(OAuthMetrics.OBJECT_NAME);
+        OAuthMetrics.getInstance().registerMBean();
+    }
+
+    @After
+    public void tearDown() {
+        OAuthMetrics.getInstance().unregisterMBean();
+    }
+
+    /**
+     * JMX exposes the same metrics as Prometheus output
+     */
+    @Test
+    public void testMBeanAttributesMatchPrometheus() throws Exception {
+
+        final StringWriter writer = new StringWriter();
+        OAuthMetrics.getInstance().writePrometheus(writer);
+
+        final Set<String> attributes = new HashSet<String>();
+
+        for (MBeanAttributeInfo info : mServer.getMBeanInfo(mName).getAttributes()) {
+            attributes.add(info.getName());
+        }
+
+        for (String line : writer.toString().split("\n")) {
+
+            if (!line.startsWith("# TYPE ") || line.endsWith(" summary")) {
+                continue;
+            }
+
+            final String name = line.split(" ")[2].substring("goauth_".length());
+
+            assertTrue(name, attributes.contains(name));
+            mServer.getAttribute(mName, name);
+        }
+
+        assertEquals(RefreshCoordinator.getInstance().getRefreshCount(), mServer.getAttribute(mName, "refreshes_total"));
+        assertEquals((long) OAuthUtil.getCallGuard().getState().ordinal(), mServer.getAttribute(mName, "circuit_state"));
+    }
+
+    @Test
+    public void testInvoke() throws Exception {
+        try {
+            mServer.invoke(mName, "reset", null, null);
+            fail();
+        } catch (ReflectionException e) {
+            assertTrue(e.getCause() instanceof NoSuchMethodException);
+        }
+    }
+}
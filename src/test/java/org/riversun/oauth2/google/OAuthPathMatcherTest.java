@@ -0,0 +1,198 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link OAuthPathMatcher}
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public class OAuthPathMatcherTest {
+
+    @Test
+    public void testCompile() {
+
+        assertNull(OAuthPathMatcher.compile(null));
+        assertNull(OAuthPathMatcher.compile(Collections.<String> emptyList()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCompileInvalidPattern() {
+        OAuthPathMatcher.compile(Arrays.asList("/static/*.css"));
+    }
+
+    @Test
+    public void testMatches() {
+
+        final OAuthPathMatcher matcher = OAuthPathMatcher.compile(Arrays.asList("/health", "/static/*", "*.css"));
+
+        assertTrue(matcher.matches("/health"));
+        assertFalse(matcher.matches("/health/x"));
+
+        assertTrue(matcher.matches("/static"));
+        assertTrue(matcher.matches("/static/"));
+        assertTrue(matcher.matches("/static/js/app.js"));
+        assertFalse(matcher.matches("/staticx"));
+
+        assertTrue(matcher.matches("/app.css"));
+        assertTrue(matcher.matches("/a/b/app.css"));
+        assertFalse(matcher.matches("/app.css/x"));
+        assertFalse(matcher.matches("/app.cs"));
+    }
+
+    @Test
+    public void testMatchesAll() {
+
+        final OAuthPathMatcher matcher = OAuthPathMatcher.compile(Arrays.asList("/*"));
+
+        assertTrue(matcher.matches("/"));
+        assertTrue(matcher.matches("/admin"));
+    }
+
+    @Test
+    public void testNormalize() {
+
+        assertEquals("/admin", OAuthPathMatcher.normalize("/admin"));
+        assertEquals("/admin", OAuthPathMatcher.normalize("/static/..;/admin"));
+        assertEquals("/admin", OAuthPathMatcher.normalize("/static/../admin"));
+        assertEquals("/admin", OAuthPathMatcher.normalize("/admin;x.css"));
+        assertEquals("/admin/x", OAuthPathMatcher.normalize("/admin;jsessionid=1/x"));
+        assertEquals("/a/b", OAuthPathMatcher.normalize("/a/./b"));
+        assertEquals("/a/b/", OAuthPathMatcher.normalize("/a/b/"));
+        assertEquals("/", OAuthPathMatcher.normalize("/static/.."));
+        assertEquals("/", OAuthPathMatcher.normalize("/../.."));
+        assertEquals("/.well-known/x", OAuthPathMatcher.normalize("/.well-known/x"));
+    }
+
+    @Test
+    public void testGetPathInContext() {
+
+        assertEquals("/static/app.css", OAuthPathMatcher.getPathInContext(request("/ctx/static/app.css", "/static/app.css", null)));
+        assertEquals("/api/users", OAuthPathMatcher.getPathInContext(request("/ctx/api/users", "/api", "/users")));
+        assertEquals("/api/users", OAuthPathMatcher.getPathInContext(request("/ctx/api/users", "", "/api/users")));
+        assertEquals("", OAuthPathMatcher.getPathInContext(request("/ctx", "", null)));
+    }
+
+    /**
+     * "/static/..;/admin" is "/admin" for the container,so it must not be
+     * excluded by "/static/*"
+     */
+    @Test
+    public void testDotSegmentIsNotExcluded() {
+
+        final OAuthPathMatcher exclude = OAuthPathMatcher.compile(Arrays.asList("/static/*"));
+
+        // servlet path normalized by the container
+        assertFalse(exclude.matches(request("/ctx/static/..;/admin", "/admin", null)));
+
+        // container which doesn't normalize the servlet path
+        assertFalse(exclude.matches(request("/ctx/static/..;/admin", "/static/..;/admin", null)));
+        assertFalse(exclude.matches(request("/ctx/static/../admin", "/static/../admin", null)));
+
+        assertTrue(exclude.matches(request("/ctx/static/app.js", "/static/app.js", null)));
+    }
+
+    /**
+     * Path parameter is not a part of the extension
+     */
+    @Test
+    public void testPathParameterIsNotExcluded() {
+
+        final OAuthPathMatcher exclude = OAuthPathMatcher.compile(Arrays.asList("*.css"));
+
+        assertFalse(exclude.matches(request("/ctx/admin;x.css", "/admin", null)));
+        assertFalse(exclude.matches(request("/ctx/admin;x.css", "/admin;x.css", null)));
+
+        assertTrue(exclude.matches(request("/ctx/app.css;jsessionid=1", "/app.css", null)));
+    }
+
+    /**
+     * Percent-encoded path is matched after decoded
+     */
+    @Test
+    public void testEncodedPathIsIncluded() {
+
+        final OAuthPathMatcher include = OAuthPathMatcher.compile(Arrays.asList("/app/*"));
+
+        assertTrue(include.matches(request("/ctx/ap%70/x", "/app/x", null)));
+        assertTrue(include.matches(request("/ctx/%61pp", "/app", null)));
+        assertFalse(include.matches(request("/ctx/apps/x", "/apps/x", null)));
+    }
+
+    /**
+     * Api paths are matched on the same path as include/exclude patterns
+     */
+    @Test
+    public void testApiPath() {
+
+        final OAuthPathMatcher api = OAuthPathMatcher.compile(Arrays.asList("/api/*"));
+
+        assertTrue(api.matches(request("/ctx/%61pi/users", "/api", "/users")));
+        assertTrue(api.matches(request("/ctx/static/..;/api/users", "/api/users", null)));
+        assertTrue(api.matches(request("/ctx/static/..;/api/users", "", "/static/..;/api/users")));
+        assertFalse(api.matches(request("/ctx/api;x/../page", "/page", null)));
+    }
+
+    /**
+     * Returns request whose paths are already processed by the container
+     */
+    private static HttpServletRequest request(final String requestURI, final String servletPath, final String pathInfo) {
+
+        final InvocationHandler handler = new InvocationHandler() {
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+                final String name = method.getName();
+
+                if ("getRequestURI".equals(name)) {
+                    return requestURI;
+                } else if ("getContextPath".equals(name)) {
+                    return "/ctx";
+                } else if ("getServletPath".equals(name)) {
+                    return servletPath;
+                } else if ("getPathInfo".equals(name)) {
+                    return pathInfo;
+                }
+                throw new UnsupportedOperationException(name);
+            }
+        };
+
+        return (HttpServletRequest) Proxy.newProxyInstance(OAuthPathMatcherTest.class.getClassLoader(), new Class<?>[] { HttpServletRequest.class }, handler);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link PendingStateTokens}
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public class PendingStateTokensTest {
+
+    @Test
+    public void testReuseAndConsume() {
+
+        final PendingStateTokens tokens = new PendingStateTokens();
+
+        assertNull(tokens.reuse(0, 1000));
+
+        tokens.add("a", 0);
+
+        // handed out for two redirects
+        assertEquals("a", tokens.reuse(500, 1000));
+        assertNull(tokens.reuse(2000, 1000));
+
+        assertTrue(tokens.consume("a", 2000));
+        assertTrue(tokens.consume("a", 2000));
+        assertFalse(tokens.consume("a", 2000));
+    }
+
+    @Test
+    public void testExpired() {
+
+        final PendingStateTokens tokens = new PendingStateTokens();
+
+        tokens.add("a", 0);
+
+        assertFalse(tokens.consume("a", PendingStateTokens.MAX_AGE_MILLIS + 1));
+    }
+
+    /**
+     * Changed tokens are set to the session again so that replicating session
+     * managers see the change
+     */
+    @Test
+    public void testSave() {
+
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        final int[] setCount = new int[1];
+
+        final HttpSession session = (HttpSession) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { HttpSession.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+                final String name = method.getName();
+
+                if ("getId".equals(name)) {
+                    return "session1";
+                } else if ("getAttribute".equals(name)) {
+                    return attributes.get(args[0]);
+                } else if ("setAttribute".equals(name)) {
+                    setCount[0]++;
+                    attributes.put((String) args[0], args[1]);
+                    return null;
+                }
+                throw new UnsupportedOperationException(name);
+            }
+        });
+
+        final HttpServletRequest req = (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+                if ("getSession".equals(method.getName())) {
+                    return session;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+
+        final PendingStateTokens tokens = PendingStateTokens.getOrCreate(req);
+        assertEquals(1, setCount[0]);
+
+        tokens.add("a", System.currentTimeMillis());
+        tokens.save(req);
+
+        assertEquals(2, setCount[0]);
+        assertSame(tokens, PendingStateTokens.get(req));
+    }
+}
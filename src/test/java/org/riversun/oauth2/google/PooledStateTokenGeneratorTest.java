@@ -0,0 +1,132 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link PooledStateTokenGenerator}
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public class PooledStateTokenGeneratorTest {
+
+    @Test
+    public void testGenerate() throws InterruptedException {
+
+        final AtomicInteger count = new AtomicInteger();
+
+        final PooledStateTokenGenerator generator = new PooledStateTokenGenerator(new StateTokenGenerator() {
+            @Override
+            public String generate() {
+                return "token" + count.incrementAndGet();
+            }
+        }, 4);
+
+        try {
+            waitForSize(generator, 4);
+
+            assertEquals("token1", generator.generate());
+        } finally {
+            generator.shutdown();
+        }
+    }
+
+    /**
+     * Refill thread must not spin on the failing delegate
+     */
+    @Test
+    public void testBackoffOnFailure() throws InterruptedException {
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        final PooledStateTokenGenerator generator = new PooledStateTokenGenerator(new StateTokenGenerator() {
+            @Override
+            public String generate() {
+                calls.incrementAndGet();
+                throw new IllegalStateException("no entropy");
+            }
+        }, 4);
+
+        try {
+            Thread.sleep(300);
+
+            // 10+20+40+80+160ms,far fewer than a spinning loop
+            assertTrue("calls=" + calls.get(), calls.get() <= 8);
+            assertEquals(0, generator.size());
+
+            // the failure reaches the caller once the pool is empty
+            try {
+                generator.generate();
+                fail();
+            } catch (IllegalStateException e) {
+                assertEquals("no entropy", e.getMessage());
+            }
+        } finally {
+            generator.shutdown();
+        }
+    }
+
+    /**
+     * Refill resumes when the delegate recovers
+     */
+    @Test
+    public void testRecoverFromFailure() throws InterruptedException {
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        final PooledStateTokenGenerator generator = new PooledStateTokenGenerator(new StateTokenGenerator() {
+            @Override
+            public String generate() {
+                if (calls.incrementAndGet() <= 3) {
+                    throw new IllegalStateException("no entropy");
+                }
+                return "token";
+            }
+        }, 4);
+
+        try {
+            waitForSize(generator, 4);
+
+            assertEquals("token", generator.generate());
+        } finally {
+            generator.shutdown();
+        }
+    }
+
+    private static void waitForSize(PooledStateTokenGenerator generator, int size) throws InterruptedException {
+
+        final long deadline = System.currentTimeMillis() + 5000;
+
+        while (generator.size() < size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(size, generator.size());
+    }
+}
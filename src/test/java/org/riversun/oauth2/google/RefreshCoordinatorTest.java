@@ -0,0 +1,166 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.api.client.auth.oauth2.TokenResponse;
+
+/**
+ * Tests for {@link RefreshCoordinator}
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public class RefreshCoordinatorTest {
+
+    private final RefreshCoordinator mCoordinator = RefreshCoordinator.getInstance();
+
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        mCoordinator.setAwaitTimeoutMillis(TimeUnit.SECONDS.toMillis(60));
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Error thrown by the refresher must release waiters and must not be
+     * kept as the refresh in flight
+     */
+    @Test
+    public void testErrorCompletesFlight() throws Exception {
+
+        final String userId = "error-user";
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final Future<TokenResponse> first = mExecutor.submit(new Callable<TokenResponse>() {
+            @Override
+            public TokenResponse call() throws Exception {
+                return mCoordinator.refresh(userId, new Callable<TokenResponse>() {
+                    @Override
+                    public TokenResponse call() throws Exception {
+                        started.countDown();
+                        release.await();
+                        throw new NoClassDefFoundError("missing");
+                    }
+                });
+            }
+        });
+
+        started.await();
+
+        final Future<TokenResponse> waiter = mExecutor.submit(new Callable<TokenResponse>() {
+            @Override
+            public TokenResponse call() throws Exception {
+                return mCoordinator.refresh(userId, returning(new TokenResponse()));
+            }
+        });
+
+        // let the waiter join the flight
+        Thread.sleep(100);
+        release.countDown();
+
+        try {
+            first.get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof NoClassDefFoundError);
+        }
+
+        try {
+            waiter.get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+
+        // next refresh calls the refresher again
+        final TokenResponse tokenResponse = new TokenResponse();
+        assertSame(tokenResponse, mCoordinator.refresh(userId, returning(tokenResponse)));
+    }
+
+    /**
+     * Waiter gives up on a refresh which doesn't complete
+     */
+    @Test
+    public void testAwaitTimeout() throws Exception {
+
+        final String userId = "stuck-user";
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        mExecutor.submit(new Callable<TokenResponse>() {
+            @Override
+            public TokenResponse call() throws Exception {
+                return mCoordinator.refresh(userId, new Callable<TokenResponse>() {
+                    @Override
+                    public TokenResponse call() throws Exception {
+                        started.countDown();
+                        release.await();
+                        return new TokenResponse();
+                    }
+                });
+            }
+        });
+
+        started.await();
+
+        mCoordinator.setAwaitTimeoutMillis(100);
+
+        try {
+            mCoordinator.refresh(userId, returning(new TokenResponse()));
+            fail();
+        } catch (IOException e) {
+            assertEquals("Timed out waiting for token refresh", e.getMessage());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    private static Callable<TokenResponse> returning(final TokenResponse tokenResponse) {
+        return new Callable<TokenResponse>() {
+            @Override
+            public TokenResponse call() {
+                return tokenResponse;
+            }
+        };
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link SignedStateCodec}
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public class SignedStateCodecTest {
+
+    private final SignedStateCodec mCodec = new SignedStateCodec(key(1));
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testShortKey() {
+        new SignedStateCodec(new byte[31]);
+    }
+
+    @Test
+    public void testIssueAndVerify() {
+
+        final List<String> setCookies = new ArrayList<String>();
+
+        final String state = mCodec.issue(request(), response(setCookies), "/app/page?x=1");
+
+        assertEquals(1, setCookies.size());
+        assertTrue(setCookies.get(0), setCookies.get(0).startsWith("goauth_state_"));
+        assertTrue(setCookies.get(0), setCookies.get(0).contains("; HttpOnly; Secure; SameSite=Lax"));
+
+        final List<String> removeCookies = new ArrayList<String>();
+
+        assertEquals("/app/page?x=1", mCodec.verify(request(toCookies(setCookies)), response(removeCookies), state));
+
+        // nonce cookie is removed after used
+        assertEquals(1, removeCookies.size());
+        assertTrue(removeCookies.get(0), removeCookies.get(0).contains("=; Path=/; Max-Age=0"));
+    }
+
+    /**
+     * Flows started at the same time by the same browser are all verified
+     */
+    @Test
+    public void testConcurrentFlows() {
+
+        final List<String> setCookies = new ArrayList<String>();
+
+        final String page = mCodec.issue(request(), response(setCookies), "/app/page");
+        final String xhr = mCodec.issue(request(), response(setCookies), "/app/api");
+
+        assertEquals(2, setCookies.size());
+
+        final Cookie[] cookies = toCookies(setCookies);
+
+        assertEquals("/app/api", mCodec.verify(request(cookies), response(new ArrayList<String>()), xhr));
+        assertEquals("/app/page", mCodec.verify(request(cookies), response(new ArrayList<String>()), page));
+    }
+
+    /**
+     * Browser with too many pending flows reuses one of their nonces
+     */
+    @Test
+    public void testMaxPendingNonces() {
+
+        final List<String> setCookies = new ArrayList<String>();
+
+        for (int i = 0; i < SignedStateCodec.MAX_PENDING_NONCES; i++) {
+            mCodec.issue(request(toCookies(setCookies)), response(setCookies), "/app/page" + i);
+        }
+
+        final Cookie[] cookies = toCookies(setCookies);
+        final List<String> reused = new ArrayList<String>();
+
+        final String state = mCodec.issue(request(cookies), response(reused), "/app/next");
+
+        assertEquals(1, reused.size());
+        assertTrue(setCookies.contains(reused.get(0)));
+        assertEquals("/app/next", mCodec.verify(request(cookies), response(new ArrayList<String>()), state));
+    }
+
+    @Test
+    public void testTamperedState() {
+
+        final List<String> setCookies = new ArrayList<String>();
+
+        final String state = mCodec.issue(request(), response(setCookies), "/app/page");
+        final Cookie[] cookies = toCookies(setCookies);
+
+        final byte[] blob = Base64.getUrlDecoder().decode(state);
+
+        // modify the return url
+        blob[blob.length - 17] ^= 1;
+        assertNull(mCodec.verify(request(cookies), response(new ArrayList<String>()), Base64.getUrlEncoder().withoutPadding().encodeToString(blob)));
+
+        // signed by another key
+        final String forged = new SignedStateCodec(key(2)).encode("/evil", Arrays.copyOfRange(Base64.getUrlDecoder().decode(state), 9, 25), System.currentTimeMillis());
+        assertNull(mCodec.verify(request(cookies), response(new ArrayList<String>()), forged));
+
+        assertNull(mCodec.verify(request(cookies), response(new ArrayList<String>()), "not base64!"));
+        assertNull(mCodec.verify(request(cookies), response(new ArrayList<String>()), "AQ"));
+    }
+
+    @Test
+    public void testExpired() {
+
+        final long now = System.currentTimeMillis();
+        final byte[] nonce = new byte[16];
+
+        final String expired = mCodec.encode("/app/page", nonce, now - TimeUnit.MINUTES.toMillis(11));
+        assertNull(mCodec.decode(expired, now));
+
+        final String fresh = mCodec.encode("/app/page", nonce, now - TimeUnit.MINUTES.toMillis(9));
+        assertNotNull(mCodec.decode(fresh, now));
+    }
+
+    @Test
+    public void testIssuedInFuture() {
+
+        final long now = System.currentTimeMillis();
+        final byte[] nonce = new byte[16];
+
+        // within the clock skew
+        assertNotNull(mCodec.decode(mCodec.encode("/app/page", nonce, now + TimeUnit.SECONDS.toMillis(10)), now));
+
+        assertNull(mCodec.decode(mCodec.encode("/app/page", nonce, now + TimeUnit.MINUTES.toMillis(5)), now));
+    }
+
+    /**
+     * State issued to another browser is rejected
+     */
+    @Test
+    public void testNonceMismatch() {
+
+        final List<String> mine = new ArrayList<String>();
+        final List<String> theirs = new ArrayList<String>();
+
+        mCodec.issue(request(), response(mine), "/app/page");
+        final String state = mCodec.issue(request(), response(theirs), "/app/page");
+
+        assertNull(mCodec.verify(request(toCookies(mine)), response(new ArrayList<String>()), state));
+
+        // cookie of the same name with another nonce
+        final String name = theirs.get(0).substring(0, theirs.get(0).indexOf('='));
+        final String otherNonce = Base64.getUrlEncoder().withoutPadding().encodeToString(new byte[16]);
+
+        assertNull(mCodec.verify(request(new Cookie(name, otherNonce)), response(new ArrayList<String>()), state));
+    }
+
+    @Test
+    public void testCookieMissing() {
+
+        final String state = mCodec.issue(request(), response(new ArrayList<String>()), "/app/page");
+
+        assertNull(mCodec.verify(request(), response(new ArrayList<String>()), state));
+        assertNull(mCodec.getNonceCookieValue(request(), state));
+    }
+
+    private static byte[] key(int seed) {
+
+        final byte[] key = new byte[32];
+        Arrays.fill(key, (byte) seed);
+
+        return key;
+    }
+
+    /**
+     * Returns cookies which the browser sends back for Set-Cookie headers
+     */
+    private static Cookie[] toCookies(List<String> setCookies) {
+
+        final List<Cookie> cookies = new ArrayList<Cookie>();
+
+        for (String setCookie : setCookies) {
+
+            final String pair = setCookie.substring(0, setCookie.indexOf(';'));
+            final int eq = pair.indexOf('=');
+
+            cookies.add(new Cookie(pair.substring(0, eq), pair.substring(eq + 1)));
+        }
+        return cookies.toArray(new Cookie[cookies.size()]);
+    }
+
+    private static HttpServletRequest request(final Cookie... cookies) {
+
+        final InvocationHandler handler = new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+                if ("getCookies".equals(method.getName())) {
+                    return cookies.length == 0 ? null : cookies;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        };
+
+        return (HttpServletRequest) Proxy.newProxyInstance(SignedStateCodecTest.class.getClassLoader(), new Class<?>[] { HttpServletRequest.class }, handler);
+    }
+
+    private static HttpServletResponse response(final List<String> setCookies) {
+
+        final InvocationHandler handler = new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+                if ("addHeader".equals(method.getName()) && "Set-Cookie".equals(args[0])) {
+                    setCookies.add((String) args[1]);
+                    return null;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        };
+
+        return (HttpServletResponse) Proxy.newProxyInstance(SignedStateCodecTest.class.getClassLoader(), new Class<?>[] { HttpServletResponse.class }, handler);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * 
+ * Copyright 2016-2017 Tom Misawa, riversun.org@gmail.com
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of 
+ * this software and associated documentation files (the "Software"), to deal in the 
+ * Software without restriction, including without limitation the rights to use, 
+ * copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+ * Software, and to permit persons to whom the Software is furnished to do so, 
+ * subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all 
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED,
+ *  INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A 
+ * PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR 
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR 
+ * IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * 
+ */
+package org.riversun.oauth2.google;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests for {@link TokenRefreshScheduler}
+ * 
+ * @author Tom Misawa (riversun.org@gmail.com)
+ */
+public class TokenRefreshSchedulerTest {
+
+    private final AtomicInteger mLoadCount = new AtomicInteger();
+
+    private final TokenRefreshScheduler mScheduler = new TokenRefreshScheduler(new TokenRefreshScheduler.RefreshTokenLoader() {
+        @Override
+        public String load(String userId) {
+            mLoadCount.incrementAndGet();
+            return null;
+        }
+    }, 0, 0, 1);
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdown();
+    }
+
+    @Test
+    public void testScheduleAndCancel() {
+
+        final long expiresAt = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1);
+
+        mScheduler.schedule("user1", expiresAt);
+        mScheduler.schedule("user1", expiresAt);
+        mScheduler.schedule("user2", expiresAt);
+        assertEquals(2, mScheduler.size());
+
+        mScheduler.cancel("user1");
+        assertEquals(1, mScheduler.size());
+        assertNull(mScheduler.getRefreshedToken("user1"));
+    }
+
+    @Test
+    public void testMaxUsers() {
+
+        mScheduler.setMaxUsers(2);
+
+        final long expiresAt = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1);
+
+        mScheduler.schedule("user1", expiresAt);
+        mScheduler.schedule("user2", expiresAt);
+        mScheduler.schedule("user3", expiresAt);
+        assertEquals(2, mScheduler.size());
+
+        // users already scheduled can be rescheduled
+        mScheduler.schedule("user2", expiresAt);
+        assertEquals(2, mScheduler.size());
+    }
+
+    /**
+     * Idle user is not refreshed and no longer scheduled
+     */
+    @Test
+    public void testIdleUserIsNotRefreshed() throws InterruptedException {
+
+        mScheduler.setMaxIdleMillis(0);
+
+        // refresh is due now
+        mScheduler.schedule("user1", System.currentTimeMillis());
+        assertEquals(1, mScheduler.size());
+
+        waitUntilEmpty();
+
+        assertEquals(0, mLoadCount.get());
+    }
+
+    /**
+     * Active user without refresh token is no longer scheduled
+     */
+    @Test
+    public void testUserWithoutRefreshToken() throws InterruptedException {
+
+        mScheduler.schedule("user1", System.currentTimeMillis());
+        mScheduler.touch("user1");
+
+        waitUntilEmpty();
+
+        assertEquals(1, mLoadCount.get());
+    }
+
+    private void waitUntilEmpty() throws InterruptedException {
+
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+
+        while (mScheduler.size() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(0, mScheduler.size());
+    }
+
+    /**
+     * Credential#refreshToken() throws 4xx instead of returning false
+     */
+    @Test
+    public void testIsRejected() {
+
+        assertTrue(TokenRefreshScheduler.isRejected(400));
+        assertTrue(TokenRefreshScheduler.isRejected(401));
+
+        assertFalse(TokenRefreshScheduler.isRejected(429));
+        assertFalse(TokenRefreshScheduler.isRejected(503));
+    }
+}